@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.Span;
+import brave.http.HttpServerRequest;
+import java.util.Arrays;
+
+/**
+ * This is a snapshot of an {@link HttpServerRequest}, used while evaluating secondary sampling
+ * rules. When several sampling keys are evaluated against the same request, each rule would
+ * otherwise read {@link #method()}, {@link #path()} or the same {@link #header(String)} again. On
+ * some frameworks, these allocate or decode on each call.
+ *
+ * <p>This is only used when {@link SecondarySampling.Builder#memoizeHttpRequests(boolean)
+ * enabled}, as samplers then see a different type than the request.
+ *
+ * <p>Attributes are read from the delegate lazily, and at most once. The snapshot only lives for
+ * the duration of {@link SecondarySamplingExtractor#extract(Object)}, so is not thread-safe.
+ */
+final class MemoizedHttpServerRequest extends HttpServerRequest {
+  /** Marks an attribute that wasn't read yet. Compared by identity. */
+  static final String UNREAD = new String("unread");
+
+  /** Returns a snapshot if the request is an {@link HttpServerRequest}, or the input otherwise. */
+  static Object maybeWrap(Object request) {
+    if (!(request instanceof HttpServerRequest)) return request;
+    if (request instanceof MemoizedHttpServerRequest) return request;
+    return new MemoizedHttpServerRequest((HttpServerRequest) request);
+  }
+
+  final HttpServerRequest delegate;
+  String method = UNREAD, path = UNREAD, url = UNREAD;
+  /** Header names at even indexes, followed by their values. Headers are usually few. */
+  String[] headers;
+  int headerCount;
+
+  MemoizedHttpServerRequest(HttpServerRequest delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override public Object unwrap() {
+    return delegate.unwrap();
+  }
+
+  @Override public long startTimestamp() {
+    return delegate.startTimestamp();
+  }
+
+  @Override public String method() {
+    String result = method;
+    if (result == UNREAD) method = result = delegate.method();
+    return result;
+  }
+
+  @Override public String path() {
+    String result = path;
+    if (result == UNREAD) path = result = delegate.path();
+    return result;
+  }
+
+  /** Not memoized, as the route is usually unknown until after the request is extracted. */
+  @Override public String route() {
+    return delegate.route();
+  }
+
+  @Override public String url() {
+    String result = url;
+    if (result == UNREAD) url = result = delegate.url();
+    return result;
+  }
+
+  @Override public String header(String name) {
+    for (int i = 0; i < headerCount; i += 2) {
+      if (headers[i].equals(name)) return headers[i + 1];
+    }
+    String result = delegate.header(name);
+    if (headers == null) {
+      headers = new String[8];
+    } else if (headerCount == headers.length) {
+      headers = Arrays.copyOf(headers, headerCount * 2);
+    }
+    headers[headerCount++] = name;
+    headers[headerCount++] = result;
+    return result;
+  }
+
+  @Override public boolean parseClientIpAndPort(Span span) {
+    return delegate.parseClientIpAndPort(span);
+  }
+
+  @Override public String toString() {
+    return delegate.toString();
+  }
+}
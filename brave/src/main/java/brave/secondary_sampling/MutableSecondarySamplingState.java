@@ -68,6 +68,10 @@ public final class MutableSecondarySamplingState {
 
   final String samplingKey;
   Map<String, String> parameters = new LinkedHashMap<>();
+  long traceIdHigh, traceId; // not parameters as they are already propagated
+  @Nullable Runnable localRootEnd;
+  /** True when the secondary sampler decided this key, as opposed to TTL or provisioning. */
+  boolean sampledBySampler;
 
   MutableSecondarySamplingState(String samplingKey) {
     this.samplingKey = samplingKey;
@@ -77,6 +81,39 @@ public final class MutableSecondarySamplingState {
     return samplingKey;
   }
 
+  /**
+   * Returns the upper 64 bits of the trace ID extracted along with this sampling key, or zero if
+   * it is a 64-bit trace ID or the trace starts at this node.
+   */
+  public long traceIdHigh() {
+    return traceIdHigh;
+  }
+
+  /**
+   * Returns the lower 64 bits of the trace ID extracted along with this sampling key, or zero if
+   * the trace starts at this node.
+   *
+   * <p>This is used by {@link SecondarySampler samplers} that need to make the same decision at
+   * every node of a trace.
+   */
+  public long traceId() {
+    return traceId;
+  }
+
+  /**
+   * Registers a callback to run once when the {@link brave.propagation.TraceContext#isLocalRoot()
+   * local root} of this request ends, replacing any prior one. For example, a {@link
+   * SecondarySampler} can use this to release a permit acquired when it sampled the key.
+   *
+   * <p>If the key isn't sampled after all, for example due to {@code maxSpans}, the callback runs
+   * during extraction instead. The callback won't run if the request never starts a span.
+   */
+  public MutableSecondarySamplingState onLocalRootEnd(Runnable callback) {
+    if (callback == null) throw new NullPointerException("callback == null");
+    this.localRootEnd = callback;
+    return this;
+  }
+
   /** Retrieves the current TTL of this {@link #samplingKey()} or zero if there is none. */
   public int ttl() {
     // TODO: add a limit to TTL, like 255 and make this and below super more efficient
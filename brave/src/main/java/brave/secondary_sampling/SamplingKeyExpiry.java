@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.internal.Nullable;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * This tracks which sampling keys have expired, so that the extractor can pass them through
+ * without recording. Keys expire by {@link SecondarySampling.Builder#expiresAt(String, long)
+ * configuration} or by an {@code exp} parameter propagated with the key, in epoch seconds.
+ *
+ * <p>Configured expirations are held in a hashed timer wheel, advanced by a single daemon thread
+ * once a second. The request path only checks a set of expired keys, and compares any {@code exp}
+ * parameter against a clock the same thread updates, instead of reading the wall clock.
+ *
+ * <p>The thread only starts when expirations are configured, and stops once they have all expired
+ * or on {@link #close()}. Afterwards, or if it never started, configured expirations and
+ * {@code exp} parameters are compared against the wall clock. Requests can't start the thread, so
+ * there is no cost when expirations aren't configured.
+ */
+final class SamplingKeyExpiry implements Closeable {
+  static final int WHEEL_SIZE = 512; // power of two, so the bucket is a mask
+  static final long TICK_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  final Set<String> expired = ConcurrentHashMap.newKeySet();
+  final Map<String, Long> expiresAt; // epoch millis, for when the thread isn't ticking
+  final Queue<Expiration> pending = new ConcurrentLinkedQueue<>();
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  final ArrayDeque<Expiration>[] wheel = new ArrayDeque[WHEEL_SIZE];
+  LongSupplier currentTimeMillis = System::currentTimeMillis;
+
+  /** Wall clock in epoch seconds as of the last tick. Only read while {@link #ticking}. */
+  volatile long currentTimeSeconds;
+  volatile boolean ticking;
+  ScheduledExecutorService ticker; // guarded by this
+  long lastTick; // only accessed by the tick thread
+  int remaining; // count of expirations not yet expired, only accessed by the tick thread
+
+  SamplingKeyExpiry(Map<String, Long> expirations) {
+    this.expiresAt = new LinkedHashMap<>(expirations);
+    for (int i = 0; i < WHEEL_SIZE; i++) wheel[i] = new ArrayDeque<>();
+    for (Map.Entry<String, Long> entry : expirations.entrySet()) {
+      pending.add(new Expiration(entry.getKey(), entry.getValue() / TICK_MILLIS));
+    }
+    remaining = pending.size();
+  }
+
+  /** Returns true if the key expired, by configuration or its {@code exp} parameter. */
+  boolean isExpired(MutableSecondarySamplingState state) {
+    return isExpired(state.samplingKey(), state.parameter("exp"));
+  }
+
+  /** Like {@link #isExpired(MutableSecondarySamplingState)}, for provisioned keys. */
+  boolean isExpired(SecondarySamplingState state) {
+    return isExpired(state.samplingKey(), state.parameter("exp"));
+  }
+
+  boolean isExpired(String samplingKey, @Nullable String exp) {
+    if (expired.contains(samplingKey)) return true;
+    long nowSeconds;
+    if (ticking) {
+      if (exp == null) return false;
+      nowSeconds = currentTimeSeconds;
+    } else { // closed or never started, so the wheel won't expire configured keys
+      Long deadline = expiresAt.get(samplingKey);
+      if (deadline == null && exp == null) return false;
+      long nowMillis = currentTimeMillis.getAsLong();
+      if (deadline != null && deadline <= nowMillis) return true;
+      if (exp == null) return false;
+      nowSeconds = TimeUnit.MILLISECONDS.toSeconds(nowMillis);
+    }
+    try {
+      return Long.parseLong(exp) <= nowSeconds;
+    } catch (NumberFormatException e) {
+      return false; // ignore a malformed expiration
+    }
+  }
+
+  /** Starts the thread that expires configured keys, unless there are none. */
+  synchronized void start() {
+    if (ticker != null) throw new IllegalStateException("already started");
+    lastTick = currentTimeMillis.getAsLong() / TICK_MILLIS - 1;
+    tick(); // so that the clock is current before any request reads it
+    if (remaining == 0) return;
+    ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "SamplingKeyExpiry");
+      thread.setDaemon(true);
+      return thread;
+    });
+    ticker.scheduleAtFixedRate(this::tickOrStop, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    ticking = true;
+  }
+
+  void tickOrStop() {
+    tick();
+    if (remaining == 0) close(); // nothing left to expire
+  }
+
+  /** Stops the thread, if started. Configured keys are then checked against the wall clock. */
+  @Override public synchronized void close() {
+    ticking = false;
+    if (ticker != null) ticker.shutdown();
+  }
+
+  /** Only called by the tick thread, or tests. */
+  void tick() {
+    long now = currentTimeMillis.getAsLong(), currentTick = now / TICK_MILLIS;
+    currentTimeSeconds = TimeUnit.MILLISECONDS.toSeconds(now);
+
+    for (Expiration expiration; (expiration = pending.poll()) != null; ) {
+      if (expiration.deadlineTick <= currentTick) {
+        expire(expiration);
+      } else {
+        wheel[(int) (expiration.deadlineTick & (WHEEL_SIZE - 1))].add(expiration);
+      }
+    }
+
+    // visit each bucket passed since the last tick, at most one rotation if the clock jumped
+    long from = Math.max(lastTick + 1, currentTick - WHEEL_SIZE + 1);
+    for (long tick = from; tick <= currentTick; tick++) {
+      Iterator<Expiration> bucket = wheel[(int) (tick & (WHEEL_SIZE - 1))].iterator();
+      while (bucket.hasNext()) {
+        Expiration expiration = bucket.next();
+        if (expiration.deadlineTick > currentTick) continue; // a later rotation
+        expire(expiration);
+        bucket.remove();
+      }
+    }
+    if (currentTick > lastTick) lastTick = currentTick;
+  }
+
+  void expire(Expiration expiration) {
+    expired.add(expiration.samplingKey);
+    remaining--;
+  }
+
+  static final class Expiration {
+    final String samplingKey;
+    final long deadlineTick;
+
+    Expiration(String samplingKey, long deadlineTick) {
+      this.samplingKey = samplingKey;
+      this.deadlineTick = deadlineTick;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The relative importance of sampling keys, for example incident triage above exploratory
+ * topology. This is configured once and passed to each component that arbitrates between keys, such
+ * as the {@link SecondarySamplingCircuitBreaker.Builder#priorities(SamplingKeyPriorities) circuit
+ * breaker}, so that they can't disagree on which keys give way first.
+ *
+ * <p>Higher priorities are more important. Keys not configured have a priority of zero.
+ */
+public final class SamplingKeyPriorities {
+  public static final SamplingKeyPriorities EMPTY = newBuilder().build();
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    final Map<String, Integer> priorities = new LinkedHashMap<>();
+
+    /** Sets the priority of a sampling key. Defaults to zero. */
+    public Builder priority(String samplingKey, int priority) {
+      if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+      priorities.put(samplingKey, priority);
+      return this;
+    }
+
+    public SamplingKeyPriorities build() {
+      return new SamplingKeyPriorities(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final Map<String, Integer> priorities;
+
+  SamplingKeyPriorities(Builder builder) {
+    this.priorities = new LinkedHashMap<>(builder.priorities);
+  }
+
+  /** Returns the priority of the sampling key, or zero if it isn't configured. */
+  public int priority(String samplingKey) {
+    Integer priority = priorities.get(samplingKey);
+    return priority != null ? priority : 0;
+  }
+
+  /** Returns the distinct priorities of the given keys, lowest first. */
+  TreeSet<Integer> distinct(Collection<String> samplingKeys) {
+    TreeSet<Integer> result = new TreeSet<>();
+    for (String samplingKey : samplingKeys) result.add(priority(samplingKey));
+    return result;
+  }
+
+  @Override public String toString() {
+    return "SamplingKeyPriorities" + priorities;
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.propagation.TraceContext;
+import java.util.List;
+
+/**
+ * This is an optional extension of {@link SecondarySampler}, which decides all sampling keys of a
+ * request at once, instead of one key per call.
+ *
+ * <p>Implementations with many keys can then share work between them. For example, an HTTP rule
+ * sampler can match the request path once, and evaluate each key against that match in one loop.
+ *
+ * <p>To use this, pass an implementation to {@link
+ * SecondarySampling.Builder#secondarySampler(SecondarySampler)}. During {@link
+ * TraceContext.Extractor#extract(Object)}, {@link #sampledKeys(Object, List)} is called instead
+ * of {@link #isSampled(Object, MutableSecondarySamplingState)}.
+ */
+public interface SecondaryBatchSampler extends SecondarySampler {
+  /** The most sampling keys passed in one call, as the result has one bit per key. */
+  int MAX_BATCH_SIZE = Long.SIZE;
+
+  /**
+   * Decides which sampling keys are sampled for the {@link TraceContext#isLocalRoot() local root}
+   * of this request. This has the same semantics as calling {@link #isSampled(Object,
+   * MutableSecondarySamplingState)} for each state, in order.
+   *
+   * <p>Keys already sampled by their TTL, expired or shed by a circuit breaker are not passed.
+   *
+   * @param request incoming request
+   * @param states at most {@link #MAX_BATCH_SIZE} sampling keys associated with the request.
+   * @return a bitmask where bit {@code i} is set if {@code states.get(i)} is sampled.
+   */
+  long sampledKeys(Object request, List<MutableSecondarySamplingState> states);
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+
+/**
+ * This passes B3 sampled spans to the {@link #primary} reporter and spans only sampled for
+ * secondary sampling keys to the {@link #secondary} reporter. Other recorded spans, such as those
+ * sampled locally for unrelated reasons, are dropped before they reach encoding. So are spans only
+ * sampled for keys {@link SecondaryRoutingSpanHandler routed in-process}, as they are already
+ * reported to their participants.
+ *
+ * <p>The reporters are expected to report all spans they receive, as that is the only way to
+ * report spans that aren't B3 sampled. Without this filter, that would mean reporting any span
+ * that was recorded, whether or not a participant asked for it.
+ *
+ * <h3>Reporting lanes</h3>
+ * The primary and secondary reporters can be the same. When they differ, each has its own queue,
+ * so a burst of spans from a secondary sampling key can only overflow the secondary queue: it can't
+ * displace B3 sampled data.
+ */
+final class SecondaryReportingSpanHandler extends SpanHandler {
+  final SpanHandler primary, secondary;
+
+  SecondaryReportingSpanHandler(SpanHandler reporter) {
+    this(reporter, reporter);
+  }
+
+  SecondaryReportingSpanHandler(SpanHandler primary, SpanHandler secondary) {
+    this.primary = primary;
+    this.secondary = secondary;
+  }
+
+  @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+    if (Boolean.TRUE.equals(context.sampled())) return primary.end(context, span, cause);
+    if (!isSecondarySampled(context)) return true; // not our span to drop, so keep processing
+    return secondary.end(context, span, cause);
+  }
+
+  static boolean isSecondarySampled(TraceContext context) {
+    SecondarySamplingDecisions extra = context.findExtra(SecondarySamplingDecisions.class);
+    return extra != null && (extra.flags() & SecondarySamplingDecisions.FLAG_SAMPLED_UNROUTED) != 0;
+  }
+
+  @Override public boolean handlesAbandoned() {
+    return primary.handlesAbandoned() || secondary.handlesAbandoned();
+  }
+
+  @Override public String toString() {
+    if (primary == secondary) return "SecondaryReporting(" + primary + ")";
+    return "SecondaryReporting{primary=" + primary + ", secondary=" + secondary + "}";
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import java.util.Map;
+
+/**
+ * This does the work of the trace forwarder in-process: each span sampled for a secondary sampling
+ * key is reported directly to that key's participant, saving a network hop and a decode/encode
+ * cycle per span.
+ *
+ * <p>Unlike the trace forwarder, this reads {@link SecondarySamplingDecisions} instead of parsing
+ * the {@link SecondarySamplingSpanHandler#tagName sampled_keys tag}. Sampling keys routed here are
+ * left out of that tag, so that a downstream forwarder doesn't report them again.
+ *
+ * <h3>Hierarchy correction</h3>
+ * When the {@code spanId} parameter of a sampling key doesn't match the parent of a local root, the
+ * span's parent ID is rewritten as that upstream span ID, as the trace forwarder does for the
+ * {@code parentId} parameter. The actual parent ID is saved as the tag {@code linkedParentId}.
+ */
+final class SecondaryRoutingSpanHandler extends SpanHandler {
+  final Map<String, SpanHandler> samplingKeyToReporter;
+
+  SecondaryRoutingSpanHandler(Map<String, SpanHandler> samplingKeyToReporter) {
+    this.samplingKeyToReporter = samplingKeyToReporter;
+  }
+
+  @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+    SecondarySamplingDecisions extra = context.findExtra(SecondarySamplingDecisions.class);
+    if (extra == null || (extra.flags() & SecondarySamplingDecisions.FLAG_SAMPLED_LOCAL) == 0) {
+      return true;
+    }
+
+    String parentId;
+    if (context.isLocalRoot()) {
+      parentId = context.shared() ? context.spanIdString() : context.parentIdString();
+    } else {
+      parentId = null;
+    }
+
+    for (Map.Entry<SecondarySamplingState, Boolean> entry : extra.asReadOnlyMap().entrySet()) {
+      if (!entry.getValue()) continue;
+      SecondarySamplingState state = entry.getKey();
+      SpanHandler reporter = samplingKeyToReporter.get(state.samplingKey());
+      if (reporter == null) continue;
+
+      // Each sampling key gets its own copy as the last upstream can differ between them.
+      MutableSpan next = span;
+      String upstreamSpanId = state.parameter("spanId");
+      if (parentId != null && upstreamSpanId != null && !parentId.equals(upstreamSpanId)) {
+        next = new MutableSpan(span);
+        next.tag("linkedParentId", span.parentId());
+        next.unsetShared();
+        next.parentId(upstreamSpanId);
+      }
+      reporter.end(context, next, cause);
+    }
+    return true;
+  }
+
+  @Override public String toString() {
+    return "SecondaryRouting(" + samplingKeyToReporter.keySet() + ")";
+  }
+}
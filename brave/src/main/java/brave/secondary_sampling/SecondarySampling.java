@@ -28,12 +28,19 @@ import brave.rpc.RpcRequest;
 import brave.rpc.RpcTracing;
 import brave.rpc.RpcTracingCustomizer;
 import brave.sampler.SamplerFunction;
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import zipkin2.Span;
+import zipkin2.reporter.AsyncReporter;
+import zipkin2.reporter.Reporter;
+import zipkin2.reporter.ReporterMetrics;
 import zipkin2.reporter.brave.ZipkinSpanHandler;
 
 /**
@@ -41,7 +48,8 @@ import zipkin2.reporter.brave.ZipkinSpanHandler;
  * Sampling</a> proof of concept.
  */
 public final class SecondarySampling extends Propagation.Factory
-    implements TracingCustomizer, HttpTracingCustomizer, RpcTracingCustomizer, Propagation<String> {
+    implements TracingCustomizer, HttpTracingCustomizer, RpcTracingCustomizer, Propagation<String>,
+    Closeable {
   public static Builder newBuilder() {
     return new Builder();
   }
@@ -60,6 +68,12 @@ public final class SecondarySampling extends Propagation.Factory
     @Nullable SamplerFunction<HttpRequest> httpServerSampler;
     @Nullable SamplerFunction<RpcRequest> rpcServerSampler;
     SecondarySampler secondarySampler;
+    boolean memoizeHttpRequests;
+    @Nullable Reporter<Span> secondaryReporter;
+    @Nullable SecondarySamplingCircuitBreaker circuitBreaker;
+    final Map<String, Reporter<Span>> samplingKeyToReporter = new LinkedHashMap<>();
+    final Map<String, Integer> maxSpans = new LinkedHashMap<>();
+    final Map<String, Long> expiresAt = new LinkedHashMap<>();
 
     /** Optional: The ascii lowercase propagation field name to use. Defaults to {@code sampling}. */
     public Builder fieldName(String fieldName) {
@@ -133,6 +147,110 @@ public final class SecondarySampling extends Propagation.Factory
       return this;
     }
 
+    /**
+     * Optional: When true, the {@link #secondarySampler(SecondarySampler) secondary sampler} is
+     * passed a snapshot of an {@link brave.http.HttpServerRequest}, instead of the request itself.
+     * Defaults to false.
+     *
+     * <p>The snapshot reads each attribute, such as the path or a header, at most once for all
+     * sampling keys of the request. This helps when many keys are propagated and the framework
+     * allocates or decodes on each read.
+     *
+     * <p>The snapshot is an {@link brave.http.HttpServerRequest}, but not the same type as the
+     * request. Only enable this when samplers don't check for or cast to a subtype, nor dispatch
+     * on {@link Object#getClass()}. Use {@link brave.http.HttpServerRequest#unwrap()} to access
+     * the framework request.
+     */
+    public Builder memoizeHttpRequests(boolean memoizeHttpRequests) {
+      this.memoizeHttpRequests = memoizeHttpRequests;
+      return this;
+    }
+
+    /**
+     * Optional: Reports spans that are sampled for a secondary sampling key, but not B3 sampled.
+     * By default, these are reported with the {@link ZipkinSpanHandler} added to {@link
+     * Tracing.Builder}, sharing its queue with B3 sampled spans.
+     *
+     * <p>Setting this separates reporting into two lanes, so that B3 sampled data is never
+     * dropped due to a burst of secondary data. The {@link ZipkinSpanHandler} added to {@link
+     * Tracing.Builder} only reports B3 sampled spans, and this reports the rest. To bound the
+     * secondary lane independently, pass an {@link AsyncReporter} with its own {@link
+     * AsyncReporter.Builder#queuedMaxSpans(int) span} and {@link
+     * AsyncReporter.Builder#queuedMaxBytes(int) byte} limits, and {@link
+     * AsyncReporter.Builder#metrics(ReporterMetrics) metrics} to count drops.
+     */
+    public Builder secondaryReporter(Reporter<Span> secondaryReporter) {
+      if (secondaryReporter == null) throw new NullPointerException("secondaryReporter == null");
+      this.secondaryReporter = secondaryReporter;
+      return this;
+    }
+
+    /**
+     * Optional: Limits how many spans a local root records for the sampling key. This bounds the
+     * cost of a key with a large TTL on a high fan-out service.
+     *
+     * <p>The limit is also read from a {@code maxSpans} parameter of the sampling key, and the
+     * lower of the two applies. Spans are counted as they are created, and once none are left,
+     * new spans aren't recorded for the key. Each downstream request is sent half of the spans
+     * left, so the limit applies to the rest of the trace regardless of fan-out. Once no spans
+     * are left, the key is passed through with the upstream {@code spanId}, so that hierarchy
+     * repair still works.
+     */
+    public Builder maxSpans(String samplingKey, int maxSpans) {
+      if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+      if (maxSpans <= 0) throw new IllegalArgumentException("maxSpans <= 0");
+      this.maxSpans.put(samplingKey, maxSpans);
+      return this;
+    }
+
+    /**
+     * Optional: Sheds secondary sampling when this node is overloaded. While a sampling key is
+     * shed, it is passed through unchanged: {@link #secondarySampler(SecondarySampler)} isn't
+     * consulted, and its TTL is neither decremented nor triggers recording.
+     */
+    public Builder circuitBreaker(SecondarySamplingCircuitBreaker circuitBreaker) {
+      if (circuitBreaker == null) throw new NullPointerException("circuitBreaker == null");
+      this.circuitBreaker = circuitBreaker;
+      return this;
+    }
+
+    /**
+     * Optional: Reports spans sampled for the given sampling key directly to its participant,
+     * instead of through the trace forwarder. This is useful in smaller deployments where the
+     * forwarder is an extra hop.
+     *
+     * <p>Like the forwarder, the hierarchy is corrected for any spans skipped by the participant.
+     * The sampling key is not added to the {@link #tagName(String) sampled keys tag}, so that
+     * spans are not reported again by a forwarder.
+     */
+    public Builder samplingKeyReporter(String samplingKey, Reporter<Span> reporter) {
+      if (samplingKey == null || samplingKey.isEmpty()) {
+        throw new IllegalArgumentException("samplingKey is empty");
+      }
+      if (reporter == null) throw new NullPointerException("reporter == null");
+      samplingKeyToReporter.put(samplingKey, reporter);
+      return this;
+    }
+
+    /**
+     * Optional: Stops recording the sampling key at the given time, for example at the end of an
+     * investigation. Once expired, the key is passed through as if no rule matched it, including
+     * any TTL.
+     *
+     * <p>A key can also expire by an {@code exp} parameter, in epoch seconds. This lets the first
+     * node set a deadline that downstream nodes honor without configuration.
+     *
+     * <p>Configured expirations are checked by a daemon thread, which stops once all have expired
+     * or on {@link SecondarySampling#close()}.
+     *
+     * @param expiresAt epoch milliseconds
+     */
+    public Builder expiresAt(String samplingKey, long expiresAt) {
+      if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+      this.expiresAt.put(samplingKey, expiresAt);
+      return this;
+    }
+
     public SecondarySampling build() {
       if (propagationFactory == null) throw new NullPointerException("propagationFactory == null");
       if (secondarySampler == null) throw new NullPointerException("secondarySampler == null");
@@ -154,6 +272,12 @@ public final class SecondarySampling extends Propagation.Factory
   @Nullable final SamplerFunction<HttpRequest> httpServerSampler;
   @Nullable final SamplerFunction<RpcRequest> rpcServerSampler;
   final SecondarySampler secondarySampler;
+  final boolean memoizeHttpRequests;
+  @Nullable final Reporter<Span> secondaryReporter;
+  @Nullable final SecondarySamplingCircuitBreaker circuitBreaker;
+  final Map<String, SpanHandler> samplingKeyToReporter;
+  final Map<String, Integer> maxSpans;
+  final SamplingKeyExpiry expiry;
 
   SecondarySampling(Builder builder) {
     this.delegateFactory = builder.propagationFactory;
@@ -164,6 +288,16 @@ public final class SecondarySampling extends Propagation.Factory
     this.httpServerSampler = builder.httpServerSampler;
     this.rpcServerSampler = builder.rpcServerSampler;
     this.secondarySampler = builder.secondarySampler;
+    this.memoizeHttpRequests = builder.memoizeHttpRequests;
+    this.secondaryReporter = builder.secondaryReporter;
+    this.circuitBreaker = builder.circuitBreaker;
+    this.maxSpans = Collections.unmodifiableMap(new LinkedHashMap<>(builder.maxSpans));
+    this.expiry = new SamplingKeyExpiry(builder.expiresAt);
+    if (!builder.expiresAt.isEmpty()) expiry.start();
+    Map<String, SpanHandler> samplingKeyToReporter = new LinkedHashMap<>();
+    builder.samplingKeyToReporter.forEach((key, reporter) -> samplingKeyToReporter.put(key,
+        ZipkinSpanHandler.newBuilder(reporter).alwaysReportSpans(true).build()));
+    this.samplingKeyToReporter = Collections.unmodifiableMap(samplingKeyToReporter);
     ArrayList<String> keys = new ArrayList<>(delegate.keys());
     keys.add(fieldName);
     this.keyNames = Collections.unmodifiableList(keys);
@@ -181,9 +315,22 @@ public final class SecondarySampling extends Propagation.Factory
     return delegateFactory.requires128BitTraceId();
   }
 
+  /**
+   * Decorates each new span with its copy of the decisions. A span is taken from the {@code
+   * maxSpans} limit of each sampled key at this point, before anything is recorded. When no key is
+   * left to record, a span that isn't B3 sampled is no longer sampled locally, so it is a no-op.
+   */
   @Override public TraceContext decorate(TraceContext context) {
     TraceContext result = delegateFactory.decorate(context);
-    return SecondarySamplingDecisions.FACTORY.decorate(result);
+    result = SecondarySamplingDecisions.FACTORY.decorate(result);
+    SecondarySamplingDecisions decisions = result.findExtra(SecondarySamplingDecisions.class);
+    if (decisions == null
+        || (decisions.flags() & SecondarySamplingDecisions.FLAG_SAMPLED_MAX_SPANS) == 0
+        || decisions.tryRecordSpan(samplingKeyToReporter.keySet())
+        || Boolean.TRUE.equals(result.sampled())) {
+      return result;
+    }
+    return result.toBuilder().sampledLocal(false).build();
   }
 
   /**
@@ -212,7 +359,12 @@ public final class SecondarySampling extends Propagation.Factory
     builder.propagationFactory(this);
     Set<SpanHandler> spanHandlers = new LinkedHashSet<>(builder.spanHandlers());
     builder.clearSpanHandlers();
-    builder.addSpanHandler(new SecondarySamplingSpanHandler(tagName));
+    if (!samplingKeyToReporter.isEmpty()) {
+      // Route before the sampled keys tag is added, as participants shouldn't see it.
+      builder.addSpanHandler(new SecondaryRoutingSpanHandler(samplingKeyToReporter));
+    }
+    builder.addSpanHandler(
+        new SecondarySamplingSpanHandler(tagName, samplingKeyToReporter.keySet()));
     ZipkinSpanHandler zipkinSpanHandler = null;
     for (SpanHandler spanHandler : spanHandlers) {
       if (spanHandler instanceof ZipkinSpanHandler) {
@@ -221,8 +373,15 @@ public final class SecondarySampling extends Propagation.Factory
         builder.addSpanHandler(spanHandler);
       }
     }
-    if (zipkinSpanHandler != null) {
-      builder.addSpanHandler(zipkinSpanHandler.toBuilder().alwaysReportSpans(true).build());
+    if (secondaryReporter != null) {
+      SpanHandler primary = zipkinSpanHandler != null ? zipkinSpanHandler : SpanHandler.NOOP;
+      builder.addSpanHandler(new SecondaryReportingSpanHandler(primary,
+          ZipkinSpanHandler.newBuilder(secondaryReporter).alwaysReportSpans(true).build()));
+    } else if (zipkinSpanHandler != null) {
+      // The reporter must accept spans that aren't B3 sampled, but only those sampled for a
+      // secondary key should reach it.
+      builder.addSpanHandler(new SecondaryReportingSpanHandler(
+          zipkinSpanHandler.toBuilder().alwaysReportSpans(true).build()));
     }
   }
 
@@ -234,6 +393,11 @@ public final class SecondarySampling extends Propagation.Factory
     if (rpcServerSampler != null) builder.serverSampler(rpcServerSampler);
   }
 
+  /** Stops the thread checking {@link Builder#expiresAt(String, long) expirations}, if any. */
+  @Override public void close() {
+    expiry.close();
+  }
+
   static String validateAndLowercase(String name, String title) {
     if (name == null || name.isEmpty()) {
       throw new IllegalArgumentException(name + " is not a valid " + title + " name");
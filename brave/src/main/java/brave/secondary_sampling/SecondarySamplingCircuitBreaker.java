@@ -0,0 +1,248 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.internal.Nullable;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import zipkin2.reporter.ReporterMetrics;
+
+/**
+ * This sheds secondary sampling when the node is overloaded, so that an investigation can't make
+ * an existing incident worse. {@link SecondarySamplingExtractor} consults this before {@link
+ * SecondarySampler#isSampled(Object, MutableSecondarySamplingState)}: while a sampling key is
+ * shed, it is still propagated downstream, but it doesn't trigger recording on this node.
+ *
+ * <p>Load is judged by the reporter queue depth and the rate of dropped spans, both read from the
+ * {@link #reporterMetrics(ReporterMetrics) reporter metrics}, and optionally by a CPU signal.
+ *
+ * <h3>Hysteresis and priorities</h3>
+ * Each sampling key has a {@link SamplingKeyPriorities priority}, zero by default. When any signal
+ * exceeds its trip threshold, keys of the lowest priority are shed. If load stays above a trip
+ * threshold, each evaluation sheds the next priority up. Only once all signals are below their
+ * reset thresholds are priorities restored, one per evaluation, highest first. Between the
+ * thresholds, nothing changes.
+ *
+ * <p>Signals are evaluated at most once per {@link Builder#evaluationInterval(long, TimeUnit)
+ * interval}, by whichever request thread notices it elapsed. Otherwise, checking a key is a
+ * volatile read and a map lookup.
+ */
+public final class SecondarySamplingCircuitBreaker {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    SamplingKeyPriorities priorities = SamplingKeyPriorities.EMPTY;
+    int tripQueuedSpans = Integer.MAX_VALUE, resetQueuedSpans = Integer.MAX_VALUE;
+    long tripDroppedSpansPerSecond = Long.MAX_VALUE, resetDroppedSpansPerSecond = Long.MAX_VALUE;
+    @Nullable DoubleSupplier cpuLoad;
+    double tripCpuLoad = 1.0, resetCpuLoad = 1.0;
+    long evaluationIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Sheds when the reporter queue holds at least {@code trip} spans, until it holds fewer than
+     * {@code reset}.
+     */
+    public Builder queuedSpans(int trip, int reset) {
+      if (reset <= 0 || reset > trip) throw new IllegalArgumentException("0 < reset <= trip");
+      this.tripQueuedSpans = trip;
+      this.resetQueuedSpans = reset;
+      return this;
+    }
+
+    /**
+     * Sheds when the reporter drops at least {@code trip} spans per second, until it drops fewer
+     * than {@code reset}.
+     */
+    public Builder droppedSpansPerSecond(long trip, long reset) {
+      if (reset <= 0 || reset > trip) throw new IllegalArgumentException("0 < reset <= trip");
+      this.tripDroppedSpansPerSecond = trip;
+      this.resetDroppedSpansPerSecond = reset;
+      return this;
+    }
+
+    /**
+     * Optional: Sheds when the CPU load, from zero to one, is at least {@code trip}, until it is
+     * below {@code reset}. For example, {@code OperatingSystemMXBean.getProcessCpuLoad}.
+     */
+    public Builder cpuLoad(DoubleSupplier cpuLoad, double trip, double reset) {
+      if (cpuLoad == null) throw new NullPointerException("cpuLoad == null");
+      if (reset <= 0 || reset > trip) throw new IllegalArgumentException("0 < reset <= trip");
+      this.cpuLoad = cpuLoad;
+      this.tripCpuLoad = trip;
+      this.resetCpuLoad = reset;
+      return this;
+    }
+
+    /** Lower priorities are shed first. Defaults to {@link SamplingKeyPriorities#EMPTY}. */
+    public Builder priorities(SamplingKeyPriorities priorities) {
+      if (priorities == null) throw new NullPointerException("priorities == null");
+      this.priorities = priorities;
+      return this;
+    }
+
+    /** How often load is evaluated. Defaults to one second. */
+    public Builder evaluationInterval(long interval, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit == null");
+      if (interval <= 0) throw new IllegalArgumentException("interval <= 0");
+      this.evaluationIntervalNanos = unit.toNanos(interval);
+      return this;
+    }
+
+    public SecondarySamplingCircuitBreaker build() {
+      return new SecondarySamplingCircuitBreaker(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final SamplingKeyPriorities priorities;
+  /** Distinct priorities, lowest first: the order in which they are shed. */
+  final int[] levels;
+  final int tripQueuedSpans, resetQueuedSpans;
+  final long tripDroppedSpansPerSecond, resetDroppedSpansPerSecond;
+  @Nullable final DoubleSupplier cpuLoad;
+  final double tripCpuLoad, resetCpuLoad;
+  final long evaluationIntervalNanos;
+
+  final LongAdder droppedSpans = new LongAdder();
+  volatile int queuedSpans;
+  /** How many of the {@link #levels} are shed, starting from the lowest priority. */
+  volatile int shedLevels;
+  /** Replaced by the thread that evaluates, so that its time and counts are read together. */
+  final AtomicReference<Evaluation> lastEvaluation = new AtomicReference<>();
+  LongSupplier nanoTime = System::nanoTime;
+
+  SecondarySamplingCircuitBreaker(Builder builder) {
+    this.priorities = builder.priorities;
+    TreeSet<Integer> levels = new TreeSet<>(priorities.priorities.values());
+    levels.add(0);
+    this.levels = levels.stream().mapToInt(Integer::intValue).toArray();
+    this.tripQueuedSpans = builder.tripQueuedSpans;
+    this.resetQueuedSpans = builder.resetQueuedSpans;
+    this.tripDroppedSpansPerSecond = builder.tripDroppedSpansPerSecond;
+    this.resetDroppedSpansPerSecond = builder.resetDroppedSpansPerSecond;
+    this.cpuLoad = builder.cpuLoad;
+    this.tripCpuLoad = builder.tripCpuLoad;
+    this.resetCpuLoad = builder.resetCpuLoad;
+    this.evaluationIntervalNanos = builder.evaluationIntervalNanos;
+    this.lastEvaluation.set(new Evaluation(nanoTime.getAsLong(), 0L));
+  }
+
+  /**
+   * Returns metrics to pass to {@code AsyncReporter.Builder.metrics}, so that this can read the
+   * queue depth and dropped spans of the reporter. Calls are also passed to the delegate.
+   */
+  public ReporterMetrics reporterMetrics(ReporterMetrics delegate) {
+    if (delegate == null) throw new NullPointerException("delegate == null");
+    return new Metrics(delegate);
+  }
+
+  /** Returns true if the sampling key should not trigger recording due to overload. */
+  public boolean isShedding(String samplingKey) {
+    maybeEvaluate();
+    int shedLevels = this.shedLevels;
+    if (shedLevels == 0) return false;
+    return priorities.priority(samplingKey) <= levels[shedLevels - 1];
+  }
+
+  void maybeEvaluate() {
+    Evaluation last = lastEvaluation.get();
+    long now = nanoTime.getAsLong();
+    if (now - last.nanoTime < evaluationIntervalNanos) return;
+    long dropped = droppedSpans.sum();
+    if (!lastEvaluation.compareAndSet(last, new Evaluation(now, dropped))) {
+      return; // another thread is evaluating
+    }
+
+    double seconds = (now - last.nanoTime) / (double) TimeUnit.SECONDS.toNanos(1);
+    long droppedPerSecond = (long) ((dropped - last.droppedSpans) / seconds);
+    int queued = queuedSpans;
+    double cpu = cpuLoad != null ? cpuLoad.getAsDouble() : 0.0;
+
+    int shedLevels = this.shedLevels;
+    if (queued >= tripQueuedSpans
+        || droppedPerSecond >= tripDroppedSpansPerSecond
+        || cpu >= tripCpuLoad) {
+      if (shedLevels < levels.length) this.shedLevels = shedLevels + 1;
+    } else if (queued < resetQueuedSpans
+        && droppedPerSecond < resetDroppedSpansPerSecond
+        && cpu < resetCpuLoad) {
+      if (shedLevels > 0) this.shedLevels = shedLevels - 1;
+    }
+  }
+
+  @Override public String toString() {
+    return "SecondarySamplingCircuitBreaker{shedPriorities="
+        + Arrays.toString(Arrays.copyOf(levels, shedLevels)) + "}";
+  }
+
+  static final class Evaluation {
+    final long nanoTime, droppedSpans;
+
+    Evaluation(long nanoTime, long droppedSpans) {
+      this.nanoTime = nanoTime;
+      this.droppedSpans = droppedSpans;
+    }
+  }
+
+  final class Metrics implements ReporterMetrics {
+    final ReporterMetrics delegate;
+
+    Metrics(ReporterMetrics delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public void incrementMessages() {
+      delegate.incrementMessages();
+    }
+
+    @Override public void incrementMessagesDropped(Throwable cause) {
+      delegate.incrementMessagesDropped(cause);
+    }
+
+    @Override public void incrementSpans(int quantity) {
+      delegate.incrementSpans(quantity);
+    }
+
+    @Override public void incrementSpanBytes(int quantity) {
+      delegate.incrementSpanBytes(quantity);
+    }
+
+    @Override public void incrementMessageBytes(int quantity) {
+      delegate.incrementMessageBytes(quantity);
+    }
+
+    @Override public void incrementSpansDropped(int quantity) {
+      droppedSpans.add(quantity);
+      delegate.incrementSpansDropped(quantity);
+    }
+
+    @Override public void updateQueuedSpans(int update) {
+      queuedSpans = update;
+      delegate.updateQueuedSpans(update);
+    }
+
+    @Override public void updateQueuedBytes(int update) {
+      delegate.updateQueuedBytes(update);
+    }
+  }
+}
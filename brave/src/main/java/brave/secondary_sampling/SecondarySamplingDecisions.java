@@ -13,15 +13,38 @@
  */
 package brave.secondary_sampling;
 
+import brave.internal.collect.UnsafeArrayMap;
 import brave.internal.extra.MapExtra;
 import brave.internal.extra.MapExtraFactory;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
 final class SecondarySamplingDecisions extends
     MapExtra<SecondarySamplingState, Boolean, SecondarySamplingDecisions, SecondarySamplingDecisions.Factory>
     implements SecondaryProvisioner.Callback {
 
-  static final Factory FACTORY = new FactoryBuilder().maxDynamicEntries(32).build();
+  /**
+   * Set when at least one sampling key was sampled, so that span handlers can test decisions
+   * without iterating the map. This is an entry in the state, as opposed to a field, because copies
+   * made for new spans receive the state without a merge.
+   *
+   * <p>The comma can't appear in a propagated sampling key, so this never conflicts with one.
+   */
+  static final SecondarySamplingState SAMPLED_LOCAL = SecondarySamplingState.create(",sampled");
+  /** Like {@link #SAMPLED_LOCAL}, except only set for keys not routed in-process. */
+  static final SecondarySamplingState SAMPLED_UNROUTED =
+      SecondarySamplingState.create(",sampled_unrouted");
+  /** Like {@link #SAMPLED_LOCAL}, except only set for keys with a {@code maxSpans} limit. */
+  static final SecondarySamplingState SAMPLED_MAX_SPANS =
+      SecondarySamplingState.create(",sampled_max_spans");
+  static final Factory FACTORY = new FactoryBuilder()
+      .addInitialKey(SAMPLED_LOCAL)
+      .addInitialKey(SAMPLED_UNROUTED)
+      .addInitialKey(SAMPLED_MAX_SPANS)
+      .maxDynamicEntries(32).build();
+  static final int FLAG_SAMPLED_LOCAL = 1, FLAG_SAMPLED_UNROUTED = 1 << 1,
+      FLAG_SAMPLED_MAX_SPANS = 1 << 2;
 
   static final class FactoryBuilder extends
       MapExtraFactory.Builder<SecondarySamplingState, Boolean, SecondarySamplingDecisions, Factory, FactoryBuilder> {
@@ -41,12 +64,66 @@ final class SecondarySamplingDecisions extends
     }
   }
 
+  /**
+   * Keys {@link SecondaryRoutingSpanHandler routed in-process}. This is only read when adding
+   * decisions, which happens on extraction, so copies made for new spans don't need it.
+   */
+  Set<String> routedSamplingKeys = Collections.emptySet();
+
   SecondarySamplingDecisions(Factory factory) {
     super(factory);
   }
 
   @Override public void addSamplingState(SecondarySamplingState state, boolean sampled) {
-    if (get(state) == null) put(state, sampled);
+    if (get(state) != null || !put(state, sampled)) return;
+    if (!sampled) return;
+    put(SAMPLED_LOCAL, true);
+    if (!routedSamplingKeys.contains(state.samplingKey())) put(SAMPLED_UNROUTED, true);
+    if (state.remainingSpans != null) put(SAMPLED_MAX_SPANS, true);
+  }
+
+  /**
+   * Called when these decisions are copied for a new span, to take a span from the {@code
+   * maxSpans} limit of each sampled key. Keys with none left are marked unsampled in this copy, so
+   * that neither this span nor its children record or report them.
+   *
+   * @return false if no sampling key is left sampled.
+   */
+  boolean tryRecordSpan(Set<String> routedSamplingKeys) {
+    int flags = flags();
+    if ((flags & FLAG_SAMPLED_MAX_SPANS) == 0) return (flags & FLAG_SAMPLED_LOCAL) != 0;
+
+    boolean sampled = false, unrouted = false, limited = false;
+    for (Map.Entry<SecondarySamplingState, Boolean> entry : asReadOnlyMap().entrySet()) {
+      if (!entry.getValue()) continue;
+      SecondarySamplingState state = entry.getKey();
+      if (!state.tryRecordSpan()) {
+        put(state, false);
+        continue;
+      }
+      sampled = true;
+      if (!routedSamplingKeys.contains(state.samplingKey())) unrouted = true;
+      if (state.remainingSpans != null) limited = true;
+    }
+    if (!sampled) put(SAMPLED_LOCAL, null);
+    if (!unrouted) put(SAMPLED_UNROUTED, null);
+    if (!limited) put(SAMPLED_MAX_SPANS, null);
+    return sampled;
+  }
+
+  int flags() {
+    // initial keys are at fixed positions, so this doesn't scan the state
+    Object[] state = (Object[]) this.state;
+    int flags = 0;
+    if (state[1] != null) flags |= FLAG_SAMPLED_LOCAL;
+    if (state[3] != null) flags |= FLAG_SAMPLED_UNROUTED;
+    if (state[5] != null) flags |= FLAG_SAMPLED_MAX_SPANS;
+    return flags;
+  }
+
+  @Override // exposed for tests
+  protected void mergeStateKeepingOursOnConflict(SecondarySamplingDecisions theirs) {
+    super.mergeStateKeepingOursOnConflict(theirs);
   }
 
   @Override protected boolean isEmpty() {
@@ -57,11 +134,15 @@ final class SecondarySamplingDecisions extends
     return super.get(key);
   }
 
+  /** Returns the decisions of each sampling key, excluding the flags. */
   @Override protected Map<SecondarySamplingState, Boolean> asReadOnlyMap() {
-    return super.asReadOnlyMap();
+    return UnsafeArrayMap.<SecondarySamplingState, Boolean>newBuilder()
+        .filterKeys(SAMPLED_LOCAL, SAMPLED_UNROUTED, SAMPLED_MAX_SPANS)
+        .build((Object[]) state);
   }
 
+  /** Returns true if at least one secondary sampling key was sampled. */
   boolean sampledLocal() {
-    return asReadOnlyMap().containsValue(true);
+    return (flags() & FLAG_SAMPLED_LOCAL) != 0;
   }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2019-2020 The OpenZipkin Authors
+ * Copyright 2019-2024 The OpenZipkin Authors
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
@@ -13,11 +13,17 @@
  */
 package brave.secondary_sampling;
 
+import brave.internal.Nullable;
 import brave.internal.codec.EntrySplitter;
 import brave.internal.codec.EntrySplitter.Handler;
 import brave.propagation.Propagation.Getter;
 import brave.propagation.TraceContext.Extractor;
 import brave.propagation.TraceContextOrSamplingFlags;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This extracts the {@link SecondarySampling#fieldName sampling header}, and parses it a list of
@@ -29,63 +35,194 @@ final class SecondarySamplingExtractor<R> implements Extractor<R> {
       .keyValueSeparator(';')
       .keyValueSeparatorRequired(false)
       .build();
-
+  /** Parses the input into a list of {@link MutableSecondarySamplingState} */
+  static final Handler<List<MutableSecondarySamplingState>> PARSE_HANDLER =
+      (target, input, beginKey, endKey, beginValue, endValue) -> {
+        String key = input.subSequence(beginKey, endKey).toString();
+        MutableSecondarySamplingState state = MutableSecondarySamplingState.create(key);
+        if (beginValue != endValue) {
+          MutableSecondarySamplingState.PARAMETER_SPLITTER.parse(
+              MutableSecondarySamplingState.HANDLER, state, input, beginValue, endValue);
+        }
+        target.add(state);
+        return true;
+      };
   final Extractor<R> delegate;
   final Getter<R, String> getter;
   final SecondaryProvisioner provisioner;
-  final SecondarySampler secondarySampler;
+  final SecondaryBatchSampler secondarySampler;
+  final boolean memoizeHttpRequests;
+  @Nullable final SecondarySamplingCircuitBreaker circuitBreaker;
+  final Map<String, Integer> maxSpans;
+  final Set<String> routedSamplingKeys;
+  final SamplingKeyExpiry expiry;
   final String fieldName;
 
   SecondarySamplingExtractor(SecondarySampling secondarySampling, Getter<R, String> getter) {
     this.delegate = secondarySampling.delegate.extractor(getter);
     this.getter = getter;
     this.provisioner = secondarySampling.provisioner;
-    this.secondarySampler = secondarySampling.secondarySampler;
+    this.secondarySampler = batchSampler(secondarySampling.secondarySampler);
+    this.memoizeHttpRequests = secondarySampling.memoizeHttpRequests;
+    this.circuitBreaker = secondarySampling.circuitBreaker;
+    this.maxSpans = secondarySampling.maxSpans;
+    this.routedSamplingKeys = secondarySampling.samplingKeyToReporter.keySet();
+    this.expiry = secondarySampling.expiry;
     this.fieldName = secondarySampling.fieldName;
   }
 
   @Override public TraceContextOrSamplingFlags extract(R request) {
-    TraceContextOrSamplingFlags.Builder builder = delegate.extract(request).toBuilder();
+    TraceContextOrSamplingFlags extracted = delegate.extract(request);
+    TraceContextOrSamplingFlags.Builder builder = extracted.toBuilder();
     SecondarySamplingDecisions initial = SecondarySamplingDecisions.FACTORY.create();
+    initial.routedSamplingKeys = routedSamplingKeys;
     builder.addExtra(initial);
 
-    provisioner.provision(request, initial);
+    // provisioned keys are recorded, unless they expired
+    provisioner.provision(request,
+        (state, sampled) -> initial.addSamplingState(state, sampled && !expiry.isExpired(state)));
 
     String maybeValue = getter.get(request, fieldName);
     if (maybeValue != null) {
-      Handler<SecondarySamplingDecisions> handlerForRequest = handlerForRequest(request);
-      SPLITTER.parse(handlerForRequest, initial, maybeValue);
+      long traceIdHigh = 0L, traceId = 0L; // zero when the trace starts here
+      if (extracted.context() != null) {
+        traceIdHigh = extracted.context().traceIdHigh();
+        traceId = extracted.context().traceId();
+      } else if (extracted.traceIdContext() != null) {
+        traceIdHigh = extracted.traceIdContext().traceIdHigh();
+        traceId = extracted.traceIdContext().traceId();
+      }
+      // when enabled, each sampling key is evaluated against the same snapshot of the request
+      Object snapshot =
+          memoizeHttpRequests ? MemoizedHttpServerRequest.maybeWrap(request) : request;
+      ArrayList<MutableSecondarySamplingState> states = new ArrayList<>();
+      SPLITTER.parse(PARSE_HANDLER, states, maybeValue);
+      for (int i = 0, length = states.size(); i < length; i++) {
+        states.get(i).traceIdHigh = traceIdHigh;
+        states.get(i).traceId = traceId;
+      }
+      addSamplingStates(snapshot, states, initial);
     }
 
     if (initial.sampledLocal()) builder.sampledLocal();
     return builder.build();
   }
 
-  boolean updateStateAndSample(Object request, MutableSecondarySamplingState state) {
-    boolean ttlSampled = false;
+  /**
+   * Samples each parsed key, then adds it to the target in order. Keys not decided by their state
+   * are passed to the sampler in batches, so that it can share work between them.
+   */
+  void addSamplingStates(Object request, List<MutableSecondarySamplingState> states,
+      SecondarySamplingDecisions target) {
+    int length = states.size();
+    boolean[] sampled = new boolean[length];
+    List<MutableSecondarySamplingState> batch = new ArrayList<>();
+    int[] batchIndexes = new int[Math.min(length, SecondaryBatchSampler.MAX_BATCH_SIZE)];
+    for (int i = 0; i < length; i++) {
+      Boolean decision = updateState(states.get(i));
+      if (decision != null) {
+        sampled[i] = decision;
+        continue;
+      }
+      batchIndexes[batch.size()] = i;
+      batch.add(states.get(i));
+      if (batch.size() == SecondaryBatchSampler.MAX_BATCH_SIZE) {
+        sampleBatch(request, batch, batchIndexes, sampled);
+      }
+    }
+    if (!batch.isEmpty()) sampleBatch(request, batch, batchIndexes, sampled);
+
+    for (int i = 0; i < length; i++) {
+      addSamplingState(states.get(i), sampled[i], target);
+    }
+  }
+
+  void sampleBatch(Object request, List<MutableSecondarySamplingState> batch, int[] batchIndexes,
+      boolean[] sampled) {
+    long sampledKeys = secondarySampler.sampledKeys(request, batch);
+    for (int i = 0, length = batch.size(); i < length; i++) {
+      boolean sampledKey = (sampledKeys & (1L << i)) != 0;
+      sampled[batchIndexes[i]] = sampledKey;
+      batch.get(i).sampledBySampler = sampledKey;
+    }
+    batch.clear();
+  }
+
+  /**
+   * Updates the state of the key from configuration and upstream parameters, returning null if
+   * the secondary sampler should decide it.
+   */
+  @Nullable Boolean updateState(MutableSecondarySamplingState state) {
+    // pass the key through unchanged, including its TTL, once expired
+    if (expiry.isExpired(state)) return false;
+
+    // likewise while overloaded, leaving the TTL for nodes that can record
+    if (circuitBreaker != null && circuitBreaker.isShedding(state.samplingKey())) return false;
 
     // decrement ttl from upstream, if there is one
     int ttl = state.ttl();
-    if (ttl != 0) {
-      state.ttl(ttl - 1);
-      ttlSampled = true;
+    if (ttl == 0) return null;
+    state.ttl(ttl - 1);
+    return Boolean.TRUE;
+  }
+
+  void addSamplingState(MutableSecondarySamplingState state, boolean sampled,
+      SecondarySamplingDecisions target) {
+    int maxSpans = sampled ? maxSpans(state) : -1;
+    if (maxSpans == 0) sampled = false; // exhausted upstream, so only pass through the key
+    SecondarySamplingState immutableState = SecondarySamplingState.create(state);
+    if (maxSpans > 0) immutableState.remainingSpans = new AtomicInteger(maxSpans);
+    // run any callback now if there's nothing to record, or provisioning already decided the key
+    if (!sampled || target.get(immutableState) != null) immutableState.localRootEnd();
+    target.addSamplingState(immutableState, sampled);
+  }
+
+  /**
+   * Returns the lower of the configured and propagated {@code maxSpans} for the key, or -1 if
+   * there is no limit.
+   */
+  int maxSpans(MutableSecondarySamplingState state) {
+    Integer configured = maxSpans.get(state.samplingKey());
+    int result = configured != null ? configured : -1;
+    String propagated = state.parameter("maxSpans");
+    if (propagated != null) {
+      try {
+        int upstream = Math.max(0, Integer.parseInt(propagated));
+        if (result == -1 || upstream < result) result = upstream;
+      } catch (NumberFormatException e) {
+        // ignore a malformed limit
+      }
     }
+    return result;
+  }
 
-    return ttlSampled || secondarySampler.isSampled(request, state);
+  static SecondaryBatchSampler batchSampler(SecondarySampler sampler) {
+    if (sampler instanceof SecondaryBatchSampler) return (SecondaryBatchSampler) sampler;
+    return new PerKeySampler(sampler);
   }
 
-  /** Parses the input into {@link SecondarySamplingDecisions} */
-  Handler<SecondarySamplingDecisions> handlerForRequest(Object request) {
-    return (target, input, beginKey, endKey, beginValue, endValue) -> {
-      String key = input.subSequence(beginKey, endKey).toString();
-      MutableSecondarySamplingState state = MutableSecondarySamplingState.create(key);
-      if (beginValue != endValue) {
-        MutableSecondarySamplingState.PARAMETER_SPLITTER.parse(
-            MutableSecondarySamplingState.HANDLER, state, input, beginValue, endValue);
+  /** Adapts a sampler that decides one sampling key per call. */
+  static final class PerKeySampler implements SecondaryBatchSampler {
+    final SecondarySampler delegate;
+
+    PerKeySampler(SecondarySampler delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public boolean isSampled(Object request, MutableSecondarySamplingState state) {
+      return delegate.isSampled(request, state);
+    }
+
+    @Override public long sampledKeys(Object request, List<MutableSecondarySamplingState> states) {
+      long result = 0L;
+      for (int i = 0, length = states.size(); i < length; i++) {
+        if (delegate.isSampled(request, states.get(i))) result |= 1L << i;
       }
-      boolean sampled = updateStateAndSample(request, state);
-      target.addSamplingState(SecondarySamplingState.create(state), sampled);
-      return true;
-    };
+      return result;
+    }
+
+    @Override public String toString() {
+      return delegate.toString();
+    }
   }
 }
@@ -16,12 +16,18 @@ package brave.secondary_sampling;
 import brave.propagation.Propagation.Setter;
 import brave.propagation.TraceContext;
 import brave.propagation.TraceContext.Injector;
+import brave.secondary_sampling.SecondarySamplingState.ParameterConsumer;
+import java.util.Map;
 import java.util.StringJoiner;
 
 /**
  * This writes the {@link SecondarySampling#fieldName sampling header}, with an updated {@code
  * spanId} parameters for each sampled key. The Zipkin endpoint can use that span ID to correct the
  * parent hierarchy.
+ *
+ * <p>Keys with a {@code maxSpans} limit send half of the spans left to record, which are no
+ * longer available locally. Once none are left, the key is treated as not sampled, so the upstream
+ * span ID is passed through.
  */
 final class SecondarySamplingInjector<R> implements Injector<R> {
   final Injector<R> delegate;
@@ -43,24 +49,34 @@ final class SecondarySamplingInjector<R> implements Injector<R> {
 
   static String serializeWithSpanId(SecondarySamplingDecisions decisions, String spanId) {
     StringJoiner joiner = new StringJoiner(",");
-    decisions.asReadOnlyMap()
-        .forEach((state, sampled) -> joiner.merge(serializeWithSpanId(state, sampled, spanId)));
+    for (Map.Entry<SecondarySamplingState, Boolean> entry : decisions.asReadOnlyMap().entrySet()) {
+      SecondarySamplingState state = entry.getKey();
+      boolean sampled = entry.getValue();
+      int remainingSpans = state.takeHalfRemainingSpans();
+      if (remainingSpans == 0) sampled = false;
+      joiner.merge(serializeWithSpanId(state, sampled, spanId, remainingSpans));
+    }
     return joiner.toString();
   }
 
   static StringJoiner serializeWithSpanId(SecondarySamplingState state, boolean sampled,
-      String spanId) {
+      String spanId, int remainingSpans) {
     StringJoiner joiner = new StringJoiner(";");
     joiner.add(state.samplingKey());
 
     String upstreamSpanId = state.parameter("spanId");
-    state.forEachParameter((key, value) -> {
-      if (!"spanId".equals(key)) joiner.add(key + "=" + value);
+    state.forEachParameter(new ParameterConsumer<String, String>() {
+      @Override public void accept(String key, String value) {
+        if ("spanId".equals(key)) return;
+        if (remainingSpans != -1 && "maxSpans".equals(key)) return;
+        joiner.add(key + "=" + value);
+      }
     });
+    if (remainingSpans != -1) joiner.add("maxSpans=" + remainingSpans);
 
     if (sampled) {
       joiner.add("spanId=" + spanId);
-    } else if (spanId != null) { // pass through the upstream span ID
+    } else if (upstreamSpanId != null) { // pass through the upstream span ID
       joiner.add("spanId=" + upstreamSpanId);
     }
 
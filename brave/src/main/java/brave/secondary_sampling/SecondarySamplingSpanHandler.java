@@ -15,6 +15,8 @@ package brave.secondary_sampling;
 
 import brave.handler.MutableSpan;
 import brave.propagation.TraceContext;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringJoiner;
 
 /**
@@ -25,15 +27,30 @@ import java.util.StringJoiner;
  * If the {@code spanId} parameter of a sampling key doesn't match the current parent of a local
  * root, it is copied as the {@code parentId} parameter of the corresponding {@link #tagName
  * sampled_keys entry}. This allows the trace forwarder to fix the hierarchy for this participant.
+ *
+ * <p>Sampling keys {@link SecondaryRoutingSpanHandler routed in-process} are not written, as they
+ * are already reported. Neither are keys that reached their {@code maxSpans} limit before the span
+ * was created, as {@link SecondarySampling#decorate(TraceContext)} marks them unsampled.
+ *
+ * <p>When a local root ends, this also runs any {@link
+ * MutableSecondarySamplingState#onLocalRootEnd(Runnable) callback} registered by the sampler. This
+ * includes local roots that are abandoned, which are otherwise ignored.
  */
 final class SecondarySamplingSpanHandler extends brave.handler.SpanHandler {
   final String tagName;
+  final Set<String> routedSamplingKeys;
 
-  SecondarySamplingSpanHandler(String tagName) {
+  SecondarySamplingSpanHandler(String tagName, Set<String> routedSamplingKeys) {
     this.tagName = tagName;
+    this.routedSamplingKeys = routedSamplingKeys;
   }
 
   @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+    if (cause == Cause.ABANDONED) {
+      if (context.isLocalRoot()) localRootEnd(context); // so that callbacks still run
+      return true;
+    }
+
     StringJoiner joiner = new StringJoiner(",");
     if (Boolean.TRUE.equals(context.sampled())) joiner.add("b3");
 
@@ -46,18 +63,30 @@ final class SecondarySamplingSpanHandler extends brave.handler.SpanHandler {
         parentId = null;
       }
 
-      extra.asReadOnlyMap().forEach((state, sampled) -> {
-        if (!sampled) return;
+      for (Map.Entry<SecondarySamplingState, Boolean> entry : extra.asReadOnlyMap().entrySet()) {
+        SecondarySamplingState state = entry.getKey();
+        if (context.isLocalRoot()) state.localRootEnd();
+        if (!entry.getValue() || routedSamplingKeys.contains(state.samplingKey())) continue;
         String upstreamSpanId = state.parameter("spanId");
         if (parentId != null && !parentId.equals(upstreamSpanId)) {
           joiner.add(state.samplingKey() + ";parentId=" + upstreamSpanId);
         } else {
           joiner.add(state.samplingKey());
         }
-      });
+      }
     }
 
     if (joiner.length() != 0) span.tag(tagName, joiner.toString());
     return true;
   }
+
+  static void localRootEnd(TraceContext context) {
+    SecondarySamplingDecisions extra = context.findExtra(SecondarySamplingDecisions.class);
+    if (extra == null) return;
+    for (SecondarySamplingState state : extra.asReadOnlyMap().keySet()) state.localRootEnd();
+  }
+
+  @Override public boolean handlesAbandoned() {
+    return true;
+  }
 }
@@ -15,6 +15,8 @@ package brave.secondary_sampling;
 
 import brave.internal.Nullable;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This type holds extracted state from a {@link SecondarySampling.Builder#fieldName(String)
@@ -44,10 +46,25 @@ public final class SecondarySamplingState {
   private final String samplingKey;
   private final Map<String, String> parameters;
   // intentionally hidden so we can change the state model
+  /**
+   * Spans left to record for this key in the local trace, or null if unlimited. This is set before
+   * the state is added to decisions, so that copies made for new spans share the same count.
+   */
+  @Nullable AtomicInteger remainingSpans;
+  /** Shared by copies, so that the callback runs only once. */
+  @Nullable final AtomicReference<Runnable> localRootEnd;
+  /**
+   * True when the secondary sampler of this node sampled the key, as opposed to TTL or
+   * provisioning. Samplers that count what they record use this to ignore spans they didn't choose.
+   */
+  final boolean sampledBySampler;
 
   SecondarySamplingState(MutableSecondarySamplingState builder) {
     samplingKey = builder.samplingKey;
     parameters = builder.parameters;
+    localRootEnd =
+        builder.localRootEnd != null ? new AtomicReference<>(builder.localRootEnd) : null;
+    sampledBySampler = builder.sampledBySampler;
   }
 
   public String samplingKey() {
@@ -73,6 +90,46 @@ public final class SecondarySamplingState {
     }
   }
 
+  /** Returns false once {@code maxSpans} were recorded for this key in the local trace. */
+  boolean tryRecordSpan() {
+    AtomicInteger remainingSpans = this.remainingSpans;
+    if (remainingSpans == null) return true;
+    while (true) {
+      int current = remainingSpans.get();
+      if (current == 0) return false;
+      if (remainingSpans.compareAndSet(current, current - 1)) return true;
+    }
+  }
+
+  /** Runs any {@link MutableSecondarySamplingState#onLocalRootEnd(Runnable)} callback once. */
+  void localRootEnd() {
+    if (localRootEnd == null) return;
+    Runnable callback = localRootEnd.getAndSet(null);
+    if (callback != null) callback.run();
+  }
+
+  /**
+   * Takes half of the spans left to record for this key, rounding up, to send downstream. Dividing
+   * the remainder between requests bounds the trace to {@code maxSpans}, whatever the fan-out.
+   *
+   * @return the spans taken, or -1 if unlimited.
+   */
+  int takeHalfRemainingSpans() {
+    AtomicInteger remainingSpans = this.remainingSpans;
+    if (remainingSpans == null) return -1;
+    while (true) {
+      int current = remainingSpans.get();
+      int taken = current - current / 2;
+      if (remainingSpans.compareAndSet(current, current - taken)) return taken;
+    }
+  }
+
+  /** Returns the spans left to record for this key, or -1 if unlimited. */
+  int remainingSpans() {
+    AtomicInteger remainingSpans = this.remainingSpans;
+    return remainingSpans != null ? remainingSpans.get() : -1;
+  }
+
   @Override public boolean equals(Object o) {
     if (o == this) return true;
     if (!(o instanceof SecondarySamplingState)) return false;
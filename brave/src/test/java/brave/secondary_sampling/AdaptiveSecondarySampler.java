@@ -0,0 +1,212 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import java.io.Closeable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * This samples each key at a probability adjusted to hold a target rate of recorded spans per
+ * second on this node. Unlike a static rate, this keeps holding the target as traffic changes, for
+ * example during an incident.
+ *
+ * <p>Recorded spans are counted by {@link #spanHandler()}, which must be added to the tracer. Only
+ * spans of keys this node sampled are counted: not those sampled upstream by TTL. Every
+ * {@link Builder#tickInterval(long, TimeUnit) tick}, a single background thread estimates the rate
+ * of spans each key would record if always sampled, over a {@link Builder#windowTicks(int) window}
+ * of recent ticks. The probability of the key becomes the target rate divided by that estimate.
+ * As each tick is weighted by the probability in effect during it, the estimate isn't skewed by
+ * past adjustments.
+ *
+ * <p>Counters are {@link LongAdder}s and the probability is a volatile read, so neither the request
+ * path nor span handling take locks.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * adaptive = AdaptiveSecondarySampler.newBuilder().putTarget("gatewayplay", 50).build().start();
+ * secondarySampling = SecondarySampling.newBuilder().secondarySampler(adaptive)...
+ * tracingBuilder.addSpanHandler(adaptive.spanHandler());
+ * }</pre>
+ */
+public final class AdaptiveSecondarySampler implements SecondarySampler, Closeable {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    final Map<String, Integer> targets = new LinkedHashMap<>();
+    long tickIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+    int windowTicks = 10;
+    double minProbability = 0.0001;
+
+    /** Sets the target spans per second recorded on this node for the sampling key. */
+    public Builder putTarget(String samplingKey, int spansPerSecond) {
+      if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+      if (spansPerSecond <= 0) throw new IllegalArgumentException("spansPerSecond <= 0");
+      targets.put(samplingKey, spansPerSecond);
+      return this;
+    }
+
+    /** How often probabilities are adjusted. Defaults to 1 second. */
+    public Builder tickInterval(long tickInterval, TimeUnit unit) {
+      if (tickInterval <= 0) throw new IllegalArgumentException("tickInterval <= 0");
+      this.tickIntervalNanos = unit.toNanos(tickInterval);
+      return this;
+    }
+
+    /** How many recent ticks the rate is estimated from. Defaults to 10. */
+    public Builder windowTicks(int windowTicks) {
+      if (windowTicks <= 0) throw new IllegalArgumentException("windowTicks <= 0");
+      this.windowTicks = windowTicks;
+      return this;
+    }
+
+    /** The lowest probability, so that a key never stops sampling. Defaults to 0.0001. */
+    public Builder minProbability(double minProbability) {
+      if (!(minProbability > 0.0 && minProbability <= 1.0)) {
+        throw new IllegalArgumentException("minProbability should be > 0.0 and <= 1.0");
+      }
+      this.minProbability = minProbability;
+      return this;
+    }
+
+    public AdaptiveSecondarySampler build() {
+      return new AdaptiveSecondarySampler(this);
+    }
+  }
+
+  final long tickIntervalNanos;
+  final double minProbability;
+  final Map<String, Controller> controllers = new LinkedHashMap<>();
+  final SpanHandler spanHandler = new CountingSpanHandler();
+  DoubleSupplier random = () -> ThreadLocalRandom.current().nextDouble();
+  ScheduledExecutorService ticker;
+
+  AdaptiveSecondarySampler(Builder builder) {
+    tickIntervalNanos = builder.tickIntervalNanos;
+    minProbability = builder.minProbability;
+    builder.targets.forEach((key, target) ->
+        controllers.put(key, new Controller(target, builder.windowTicks)));
+  }
+
+  /** Starts the background thread that adjusts probabilities. */
+  public synchronized AdaptiveSecondarySampler start() {
+    if (ticker != null) throw new IllegalStateException("already started");
+    ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "AdaptiveSecondarySampler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    ticker.scheduleAtFixedRate(this::tick, tickIntervalNanos, tickIntervalNanos,
+        TimeUnit.NANOSECONDS);
+    return this;
+  }
+
+  /** Counts spans recorded for each configured key. Add this to the tracer. */
+  public SpanHandler spanHandler() {
+    return spanHandler;
+  }
+
+  /** Returns the current probability of each configured key. */
+  public Map<String, Double> probabilities() {
+    Map<String, Double> result = new LinkedHashMap<>();
+    controllers.forEach((key, controller) -> result.put(key, controller.probability));
+    return result;
+  }
+
+  @Override public boolean isSampled(Object request, MutableSecondarySamplingState state) {
+    Controller controller = controllers.get(state.samplingKey());
+    if (controller == null) return false;
+    double probability = controller.probability;
+    return probability >= 1.0 || random.getAsDouble() < probability;
+  }
+
+  /** Only called by the background thread, or tests. */
+  void tick() {
+    double tickSeconds = tickIntervalNanos / (double) TimeUnit.SECONDS.toNanos(1);
+    for (Controller controller : controllers.values()) {
+      controller.tick(tickSeconds, minProbability);
+    }
+  }
+
+  @Override public synchronized void close() {
+    if (ticker != null) ticker.shutdownNow();
+  }
+
+  final class CountingSpanHandler extends SpanHandler {
+    @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+      if (cause == Cause.ABANDONED) return true;
+      SecondarySamplingDecisions extra = context.findExtra(SecondarySamplingDecisions.class);
+      if (extra == null || !extra.sampledLocal()) return true;
+      for (Map.Entry<SecondarySamplingState, Boolean> entry : extra.asReadOnlyMap().entrySet()) {
+        // only count what this node chose, not keys sampled by TTL or provisioning
+        if (!entry.getValue() || !entry.getKey().sampledBySampler) continue;
+        Controller controller = controllers.get(entry.getKey().samplingKey());
+        if (controller != null) controller.recordedSpans.increment();
+      }
+      return true;
+    }
+
+    @Override public String toString() {
+      return "AdaptiveSecondarySampler.CountingSpanHandler";
+    }
+  }
+
+  static final class Controller {
+    final int target;
+    final LongAdder recordedSpans = new LongAdder();
+    volatile double probability = 1.0;
+
+    // Below are only accessed by the tick thread
+    final long[] recordedWindow;
+    final double[] probabilityWindow;
+    int windowIndex;
+
+    Controller(int target, int windowTicks) {
+      this.target = target;
+      this.recordedWindow = new long[windowTicks];
+      this.probabilityWindow = new double[windowTicks];
+    }
+
+    void tick(double tickSeconds, double minProbability) {
+      recordedWindow[windowIndex] = recordedSpans.sumThenReset();
+      probabilityWindow[windowIndex] = probability;
+      windowIndex = (windowIndex + 1) % recordedWindow.length;
+
+      // Estimate the rate at probability 1.0: recorded spans divided by sampled time
+      long recorded = 0L;
+      double sampledSeconds = 0.0;
+      for (int i = 0; i < recordedWindow.length; i++) {
+        recorded += recordedWindow[i];
+        sampledSeconds += probabilityWindow[i] * tickSeconds;
+      }
+      if (recorded == 0L) { // no traffic, so no reason to hold back
+        probability = 1.0;
+        return;
+      }
+      double unsampledRate = recorded / sampledSeconds;
+      probability = Math.max(minProbability, Math.min(1.0, target / unsampledRate));
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler.Cause;
+import brave.http.HttpServerRequest;
+import brave.propagation.B3SinglePropagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Extractor;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class AdaptiveSecondarySamplerTest {
+  AdaptiveSecondarySampler sampler = AdaptiveSecondarySampler.newBuilder()
+      .putTarget("gatewayplay", 50)
+      .windowTicks(5)
+      .build();
+
+  {
+    sampler.random = new Random(1L)::nextDouble;
+  }
+
+  @After public void close() {
+    sampler.close();
+  }
+
+  @Test public void holdsTargetAsTrafficChanges() {
+    runTicks(10, 1000, 2); // 2000 spans per second when always sampled
+    assertThat(sampler.probabilities().get("gatewayplay")).isCloseTo(0.025, within(0.005));
+    assertThat(runTicks(1, 1000, 2)).isBetween(30L, 70L);
+
+    runTicks(10, 10000, 2); // incident: traffic went up tenfold
+    assertThat(sampler.probabilities().get("gatewayplay")).isCloseTo(0.0025, within(0.0005));
+    assertThat(runTicks(1, 10000, 2)).isBetween(30L, 70L);
+
+    runTicks(10, 20, 1); // quiet: below target, so sample everything
+    assertThat(sampler.probabilities().get("gatewayplay")).isEqualTo(1.0);
+  }
+
+  @Test public void noTraffic_alwaysSamples() {
+    runTicks(3, 1000, 2);
+    assertThat(sampler.probabilities().get("gatewayplay")).isLessThan(1.0);
+
+    runTicks(5, 0, 1);
+    assertThat(sampler.probabilities().get("gatewayplay")).isEqualTo(1.0);
+  }
+
+  @Test public void minProbability() {
+    sampler = AdaptiveSecondarySampler.newBuilder()
+        .putTarget("gatewayplay", 1)
+        .minProbability(0.01)
+        .build();
+    sampler.random = new Random(1L)::nextDouble;
+
+    runTicks(3, 100000, 1);
+    assertThat(sampler.probabilities().get("gatewayplay")).isEqualTo(0.01);
+  }
+
+  @Test public void unconfiguredKey() {
+    assertThat(sampler.isSampled(null, MutableSecondarySamplingState.create("links"))).isFalse();
+  }
+
+  @Test public void spanHandler_countsSampledKeys() {
+    SecondarySamplingDecisions decisions = extract("gatewayplay,authcache,links;ttl=1");
+    TraceContext context =
+        TraceContext.newBuilder().traceId(1L).spanId(2L).addExtra(decisions).build();
+
+    sampler.spanHandler().end(context, new MutableSpan(), Cause.FINISHED);
+    sampler.spanHandler().end(context, new MutableSpan(), Cause.ABANDONED);
+
+    assertThat(sampler.controllers.get("gatewayplay").recordedSpans.sum()).isEqualTo(1L);
+  }
+
+  /** Spans sampled upstream would otherwise lower the probability of what this node chooses. */
+  @Test public void spanHandler_ignoresKeysSampledByTtl() {
+    SecondarySamplingDecisions decisions = extract("gatewayplay;ttl=1");
+    assertThat(decisions.sampledLocal()).isTrue();
+    TraceContext context =
+        TraceContext.newBuilder().traceId(1L).spanId(2L).addExtra(decisions).build();
+
+    sampler.spanHandler().end(context, new MutableSpan(), Cause.FINISHED);
+
+    assertThat(sampler.controllers.get("gatewayplay").recordedSpans.sum()).isZero();
+  }
+
+  SecondarySamplingDecisions extract(String sampling) {
+    Extractor<HttpServerRequest> extractor = SecondarySampling.newBuilder()
+        .propagationFactory(B3SinglePropagation.FACTORY)
+        .secondarySampler(sampler)
+        .build().extractor(HttpServerRequest::header);
+    FakeHttpRequest.Server request =
+        new FakeHttpRequest.Server(new FakeHttpRequest.Client("/play"));
+    request.header("b3", "0");
+    request.header("sampling", sampling);
+    return (SecondarySamplingDecisions) extractor.extract(request).extra().get(0);
+  }
+
+  @Test public void start_ticksOnBackgroundThread() throws InterruptedException {
+    sampler = AdaptiveSecondarySampler.newBuilder()
+        .putTarget("gatewayplay", 50)
+        .tickInterval(10, TimeUnit.MILLISECONDS)
+        .build()
+        .start();
+
+    sampler.controllers.get("gatewayplay").recordedSpans.add(1000L);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (sampler.probabilities().get("gatewayplay") == 1.0 && System.nanoTime() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertThat(sampler.probabilities().get("gatewayplay")).isLessThan(1.0);
+  }
+
+  /** Sends requests through the sampler for each tick, returning the spans of the last tick. */
+  long runTicks(int ticks, int requestsPerTick, int spansPerRequest) {
+    AdaptiveSecondarySampler.Controller controller = sampler.controllers.get("gatewayplay");
+    long recorded = 0L;
+    for (int tick = 0; tick < ticks; tick++) {
+      recorded = 0L;
+      for (int i = 0; i < requestsPerTick; i++) {
+        MutableSecondarySamplingState state = MutableSecondarySamplingState.create("gatewayplay");
+        if (!sampler.isSampled(null, state)) continue;
+        controller.recordedSpans.add(spansPerRequest);
+        recorded += spansPerRequest;
+      }
+      sampler.tick();
+    }
+    return recorded;
+  }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * This enforces a cluster-wide budget of recordings per second for each sampling key, as opposed
+ * to a per-node limit that multiplies by the size of the fleet.
+ *
+ * <p>Each node periodically leases a share of the global budget of each key from a {@link
+ * Coordinator}, and spends it locally: the request path only decrements an {@link AtomicInteger}.
+ * A lease is sized by the demand of the last interval, which is how many times the key's sampler
+ * triggered, whether or not there was budget. Unspent tokens aren't carried over, so budget a node
+ * didn't need returns to the coordinator for others at the next renewal. Only the fraction of a
+ * token left by a small grant is carried, so that it isn't rounded away. {@link #close()} releases
+ * the leases of this node.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * sampler = BudgetLeasingSecondarySampler.newBuilder(coordinator, nodeId)
+ *   .putRule("authcache", SecondarySamplers.active())
+ *   .build().start();
+ * }</pre>
+ */
+public final class BudgetLeasingSecondarySampler
+    extends LimitingSecondarySampler<BudgetLeasingSecondarySampler.Lease> implements Closeable {
+  /**
+   * Allocates the global budget of each sampling key between nodes. Implementations would
+   * typically be a remote service.
+   */
+  public interface Coordinator {
+    /**
+     * Leases up to the requested recordings per second of the sampling key to the node, replacing
+     * any prior lease it held.
+     *
+     * @return the recordings per second the node can spend until its next lease
+     */
+    int lease(String samplingKey, String nodeId, int requestedPerSecond);
+
+    /** Returns the lease of the node, so that other nodes can use its budget. */
+    void release(String samplingKey, String nodeId);
+  }
+
+  public static Builder newBuilder(Coordinator coordinator, String nodeId) {
+    return new Builder(coordinator, nodeId);
+  }
+
+  public static final class Builder {
+    final Coordinator coordinator;
+    final String nodeId;
+    final Map<String, SecondarySampler> samplers = new LinkedHashMap<>();
+    long leaseIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+
+    Builder(Coordinator coordinator, String nodeId) {
+      if (coordinator == null) throw new NullPointerException("coordinator == null");
+      if (nodeId == null) throw new NullPointerException("nodeId == null");
+      this.coordinator = coordinator;
+      this.nodeId = nodeId;
+    }
+
+    /** Recordings of this key are limited by the budget leased from the coordinator. */
+    public Builder putRule(String samplingKey, SecondarySampler sampler) {
+      if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+      if (sampler == null) throw new NullPointerException("sampler == null");
+      samplers.put(samplingKey, sampler);
+      return this;
+    }
+
+    /** How often leases are renewed. Defaults to 1 second. */
+    public Builder leaseInterval(long leaseInterval, TimeUnit unit) {
+      if (leaseInterval <= 0) throw new IllegalArgumentException("leaseInterval <= 0");
+      this.leaseIntervalNanos = unit.toNanos(leaseInterval);
+      return this;
+    }
+
+    public BudgetLeasingSecondarySampler build() {
+      return new BudgetLeasingSecondarySampler(this);
+    }
+  }
+
+  final Coordinator coordinator;
+  final String nodeId;
+  final long leaseIntervalNanos;
+  final Map<String, Lease> leases = new LinkedHashMap<>();
+  ScheduledExecutorService renewer;
+
+  BudgetLeasingSecondarySampler(Builder builder) {
+    coordinator = builder.coordinator;
+    nodeId = builder.nodeId;
+    leaseIntervalNanos = builder.leaseIntervalNanos;
+    builder.samplers.forEach((key, sampler) -> leases.put(key, new Lease(sampler)));
+  }
+
+  /** Leases the initial budget, then starts the background thread that renews it. */
+  public synchronized BudgetLeasingSecondarySampler start() {
+    if (renewer != null) throw new IllegalStateException("already started");
+    renew();
+    renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "BudgetLeasingSecondarySampler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    renewer.scheduleAtFixedRate(this::renew, leaseIntervalNanos, leaseIntervalNanos,
+        TimeUnit.NANOSECONDS);
+    return this;
+  }
+
+  @Override Lease rule(String samplingKey) {
+    return leases.get(samplingKey);
+  }
+
+  @Override SecondarySampler sampler(Lease lease) {
+    return lease.sampler;
+  }
+
+  @Override boolean tryRecord(Lease lease, MutableSecondarySamplingState state) {
+    lease.demand.increment();
+    return lease.tryAcquire();
+  }
+
+  /** Only called by the background thread, or tests. */
+  void renew() {
+    double intervalSeconds = leaseIntervalNanos / (double) TimeUnit.SECONDS.toNanos(1);
+    for (Map.Entry<String, Lease> entry : leases.entrySet()) {
+      Lease lease = entry.getValue();
+      long demand = lease.demand.sumThenReset();
+      // Always ask for at least one, so that the coordinator knows this node is interested
+      int requestedPerSecond = (int) Math.min(Integer.MAX_VALUE,
+          Math.max(1L, (long) Math.ceil(demand / intervalSeconds)));
+      int grantedPerSecond;
+      try {
+        grantedPerSecond = coordinator.lease(entry.getKey(), nodeId, requestedPerSecond);
+      } catch (RuntimeException e) {
+        grantedPerSecond = 0; // fail closed, as budget might be exhausted elsewhere
+      }
+      lease.tokens.set(lease.tokensForInterval(grantedPerSecond * intervalSeconds));
+    }
+  }
+
+  @Override public synchronized void close() {
+    if (renewer != null) renewer.shutdownNow();
+    for (Map.Entry<String, Lease> entry : leases.entrySet()) {
+      entry.getValue().tokens.set(0);
+      try {
+        coordinator.release(entry.getKey(), nodeId);
+      } catch (RuntimeException e) {
+        // the lease will expire at the coordinator
+      }
+    }
+  }
+
+  static final class Lease {
+    final SecondarySampler sampler;
+    final AtomicInteger tokens = new AtomicInteger();
+    final LongAdder demand = new LongAdder();
+    double fractionalTokens; // only accessed by the renewing thread
+
+    Lease(SecondarySampler sampler) {
+      this.sampler = sampler;
+    }
+
+    /**
+     * Returns the whole tokens of the grant, carrying any fraction to the next interval. Otherwise,
+     * a grant under one per interval, such as 5/s renewed every 100ms, would truncate to zero.
+     */
+    int tokensForInterval(double granted) {
+      if (granted <= 0.0) {
+        fractionalTokens = 0.0; // nothing granted, so don't spend a remainder from before
+        return 0;
+      }
+      double tokens = granted + fractionalTokens;
+      if (tokens >= Integer.MAX_VALUE) {
+        fractionalTokens = 0.0;
+        return Integer.MAX_VALUE;
+      }
+      int whole = (int) tokens;
+      fractionalTokens = tokens - whole;
+      return whole;
+    }
+
+    boolean tryAcquire() {
+      while (true) {
+        int current = tokens.get();
+        if (current == 0) return false;
+        if (tokens.compareAndSet(current, current - 1)) return true;
+      }
+    }
+  }
+
+  /**
+   * A coordinator in the same process as its nodes, for tests and as a reference implementation.
+   *
+   * <p>The budget of a key is split max-min fairly across the demand of nodes: nodes that need
+   * less than an equal share get what they need, and the remainder is split equally among the
+   * others. A grant never takes budget that another node still holds, so when demand shifts, nodes
+   * converge to their fair share within one lease interval. Leases not renewed within the {@link
+   * #InProcessCoordinator(long, TimeUnit) expiration} are dropped, so that failed nodes don't hold
+   * budget.
+   */
+  public static final class InProcessCoordinator implements Coordinator {
+    final long leaseExpirationNanos;
+    final Map<String, KeyBudget> budgets = new LinkedHashMap<>();
+    LongSupplier nanoTime = System::nanoTime;
+
+    public InProcessCoordinator(long leaseExpiration, TimeUnit unit) {
+      if (leaseExpiration <= 0) throw new IllegalArgumentException("leaseExpiration <= 0");
+      this.leaseExpirationNanos = unit.toNanos(leaseExpiration);
+    }
+
+    /** Sets the global budget of the key in recordings per second. */
+    public synchronized InProcessCoordinator budget(String samplingKey, int perSecond) {
+      if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+      if (perSecond < 0) throw new IllegalArgumentException("perSecond < 0");
+      KeyBudget budget = budgets.get(samplingKey);
+      if (budget == null) budgets.put(samplingKey, budget = new KeyBudget());
+      budget.perSecond = perSecond;
+      return this;
+    }
+
+    @Override
+    public synchronized int lease(String samplingKey, String nodeId, int requestedPerSecond) {
+      KeyBudget budget = budgets.get(samplingKey);
+      if (budget == null) return 0;
+      long now = nanoTime.getAsLong();
+      budget.expireLeases(now);
+
+      NodeLease lease = budget.leases.remove(nodeId);
+      if (lease == null) lease = new NodeLease();
+      lease.demand = Math.max(0, requestedPerSecond);
+      lease.expiresAt = now + leaseExpirationNanos;
+
+      int held = 0;
+      for (NodeLease other : budget.leases.values()) held += other.granted;
+      lease.granted = Math.max(0, Math.min(budget.fairShare(lease), budget.perSecond - held));
+      budget.leases.put(nodeId, lease);
+      return lease.granted;
+    }
+
+    @Override public synchronized void release(String samplingKey, String nodeId) {
+      KeyBudget budget = budgets.get(samplingKey);
+      if (budget != null) budget.leases.remove(nodeId);
+    }
+
+    static final class KeyBudget {
+      int perSecond;
+      final Map<String, NodeLease> leases = new LinkedHashMap<>();
+
+      void expireLeases(long now) {
+        for (Iterator<NodeLease> i = leases.values().iterator(); i.hasNext(); ) {
+          if (i.next().expiresAt - now < 0) i.remove();
+        }
+      }
+
+      /** Returns the max-min fair share of the lease, given the demand of all nodes. */
+      int fairShare(NodeLease lease) {
+        List<NodeLease> all = new ArrayList<>(leases.values());
+        all.add(lease);
+        all.sort((a, b) -> Integer.compare(a.demand, b.demand));
+        int remaining = perSecond;
+        for (int i = 0, size = all.size(); i < size; i++) {
+          NodeLease next = all.get(i);
+          int share = Math.min(next.demand, remaining / (size - i));
+          if (next == lease) return share;
+          remaining -= share;
+        }
+        throw new AssertionError();
+      }
+    }
+
+    static final class NodeLease {
+      int demand, granted;
+      long expiresAt;
+    }
+  }
+}
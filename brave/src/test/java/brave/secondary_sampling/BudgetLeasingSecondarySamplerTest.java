@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.secondary_sampling.BudgetLeasingSecondarySampler.Coordinator;
+import brave.secondary_sampling.BudgetLeasingSecondarySampler.InProcessCoordinator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static brave.secondary_sampling.SecondarySamplers.active;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BudgetLeasingSecondarySamplerTest {
+  long nanoTime = TimeUnit.SECONDS.toNanos(100);
+  InProcessCoordinator coordinator =
+      new InProcessCoordinator(3, TimeUnit.SECONDS).budget("authcache", 100);
+
+  {
+    coordinator.nanoTime = () -> nanoTime;
+  }
+
+  @Test public void clusterWideBudgetHolds() {
+    List<BudgetLeasingSecondarySampler> nodes = new ArrayList<>();
+    for (int i = 0; i < 4; i++) nodes.add(node("node" + i));
+
+    for (int interval = 0; interval < 10; interval++) {
+      int total = 0;
+      for (BudgetLeasingSecondarySampler node : nodes) {
+        node.renew();
+        total += sample(node, "authcache", 1000);
+      }
+      assertThat(total).isLessThanOrEqualTo(100);
+      nanoTime += TimeUnit.SECONDS.toNanos(1);
+    }
+
+    // converged to an equal split
+    for (BudgetLeasingSecondarySampler node : nodes) {
+      node.renew();
+      assertThat(sample(node, "authcache", 1000)).isEqualTo(25);
+    }
+  }
+
+  @Test public void unneededBudgetGoesToOtherNodes() {
+    BudgetLeasingSecondarySampler quiet = node("quiet"), busy = node("busy");
+
+    for (int interval = 0; interval < 5; interval++) {
+      quiet.renew();
+      busy.renew();
+      sample(quiet, "authcache", 10);
+      sample(busy, "authcache", 1000);
+    }
+
+    quiet.renew();
+    busy.renew();
+    assertThat(sample(quiet, "authcache", 10)).isEqualTo(10);
+    assertThat(sample(busy, "authcache", 1000)).isEqualTo(90);
+  }
+
+  @Test public void expiredLeasesAreDropped() {
+    BudgetLeasingSecondarySampler failed = node("failed"), healthy = node("healthy");
+    assertThat(coordinator.lease("authcache", "failed", 1000)).isEqualTo(100);
+    assertThat(coordinator.lease("authcache", "healthy", 1000)).isZero();
+
+    nanoTime += TimeUnit.SECONDS.toNanos(4); // failed doesn't renew
+    assertThat(coordinator.lease("authcache", "healthy", 1000)).isEqualTo(100);
+    failed.close();
+    healthy.close();
+  }
+
+  @Test public void close_releasesLease() {
+    BudgetLeasingSecondarySampler closed = node("closed");
+    assertThat(coordinator.lease("authcache", "closed", 1000)).isEqualTo(100);
+
+    closed.close();
+    assertThat(coordinator.lease("authcache", "other", 1000)).isEqualTo(100);
+  }
+
+  /** 5/s renewed every 100ms is half a token per interval, which mustn't truncate to zero. */
+  @Test public void grantUnderOnePerInterval_carriesFraction() {
+    coordinator.budget("authcache", 5);
+    BudgetLeasingSecondarySampler node = BudgetLeasingSecondarySampler.newBuilder(coordinator, "n")
+        .putRule("authcache", active())
+        .leaseInterval(100, TimeUnit.MILLISECONDS)
+        .build();
+    node.renew(); // the first lease is before there's any demand
+    sample(node, "authcache", 10);
+    nanoTime += TimeUnit.MILLISECONDS.toNanos(100);
+
+    int total = 0;
+    for (int interval = 0; interval < 10; interval++) {
+      node.renew();
+      total += sample(node, "authcache", 10);
+      nanoTime += TimeUnit.MILLISECONDS.toNanos(100);
+    }
+    assertThat(total).isEqualTo(5);
+  }
+
+  @Test public void coordinatorFailure_failsClosed() {
+    BudgetLeasingSecondarySampler node = BudgetLeasingSecondarySampler.newBuilder(
+        new Coordinator() {
+          @Override public int lease(String samplingKey, String nodeId, int requested) {
+            throw new IllegalStateException("unavailable");
+          }
+
+          @Override public void release(String samplingKey, String nodeId) {
+            throw new IllegalStateException("unavailable");
+          }
+        }, "node").putRule("authcache", active()).build();
+
+    node.renew();
+    assertThat(sample(node, "authcache", 10)).isZero();
+    node.close();
+  }
+
+  @Test public void unconfiguredKey() {
+    BudgetLeasingSecondarySampler node = node("node");
+    node.renew();
+    assertThat(sample(node, "links", 10)).isZero();
+  }
+
+  @Test public void undoesTtlWhenOverBudget() {
+    BudgetLeasingSecondarySampler node = BudgetLeasingSecondarySampler.newBuilder(coordinator, "n")
+        .putRule("authcache", active(1))
+        .build();
+
+    MutableSecondarySamplingState state = MutableSecondarySamplingState.create("authcache");
+    assertThat(node.isSampled(null, state)).isFalse(); // no lease yet
+    assertThat(state.ttl()).isZero();
+  }
+
+  BudgetLeasingSecondarySampler node(String nodeId) {
+    return BudgetLeasingSecondarySampler.newBuilder(coordinator, nodeId)
+        .putRule("authcache", active())
+        .build();
+  }
+
+  static int sample(BudgetLeasingSecondarySampler node, String samplingKey, int count) {
+    int sampled = 0;
+    for (int i = 0; i < count; i++) {
+      if (node.isSampled(null, MutableSecondarySamplingState.create(samplingKey))) sampled++;
+    }
+    return sampled;
+  }
+}
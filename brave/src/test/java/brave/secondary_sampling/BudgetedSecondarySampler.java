@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * This arbitrates a per-node recording budget between sampling keys by priority. When several keys
+ * trigger at once, higher priority keys (ex. incident triage) keep their budget while lower
+ * priority keys (ex. exploratory topology) back off.
+ *
+ * <p>Each rule has a sampler, and its key a {@link SamplingKeyPriorities priority}, usually the
+ * same as given to the {@link SecondarySamplingCircuitBreaker circuit breaker}. A request is only recorded for a key if its sampler
+ * triggers and the shared budget allows it. The budget is split by ranking the distinct priorities:
+ * with {@code n} priorities, a key of rank {@code r} (zero is the highest) can only record while
+ * less than {@code (n - r) / n} of this second's budget is used. The highest priority can use the
+ * whole budget, and the lowest gives way once the first share is used.
+ *
+ * <p>The budget is a single {@link AtomicLong}, packing the current second with the recordings in
+ * it, updated with compare-and-set: there are no locks on the request path.
+ */
+public final class BudgetedSecondarySampler
+    extends LimitingSecondarySampler<BudgetedSecondarySampler.Rule> {
+  /** Higher {@code priorities} keep their budget when keys compete. */
+  public static Builder newBuilder(int recordingsPerSecond, SamplingKeyPriorities priorities) {
+    return new Builder(recordingsPerSecond, priorities);
+  }
+
+  public static final class Builder {
+    final int recordingsPerSecond;
+    final SamplingKeyPriorities priorities;
+    final Map<String, SecondarySampler> samplers = new LinkedHashMap<>();
+
+    Builder(int recordingsPerSecond, SamplingKeyPriorities priorities) {
+      if (recordingsPerSecond <= 0) throw new IllegalArgumentException("recordingsPerSecond <= 0");
+      if (priorities == null) throw new NullPointerException("priorities == null");
+      this.recordingsPerSecond = recordingsPerSecond;
+      this.priorities = priorities;
+    }
+
+    public Builder putRule(String samplingKey, SecondarySampler sampler) {
+      if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+      if (sampler == null) throw new NullPointerException("sampler == null");
+      samplers.put(samplingKey, sampler);
+      return this;
+    }
+
+    public BudgetedSecondarySampler build() {
+      return new BudgetedSecondarySampler(this);
+    }
+  }
+
+  final int recordingsPerSecond;
+  final Map<String, Rule> rules = new LinkedHashMap<>();
+  /** The current second in the high bits, and recordings in it in the low bits. */
+  final AtomicLong budget = new AtomicLong();
+  LongSupplier nanoTime = System::nanoTime;
+
+  BudgetedSecondarySampler(Builder builder) {
+    recordingsPerSecond = builder.recordingsPerSecond;
+    TreeSet<Integer> distinct = builder.priorities.distinct(builder.samplers.keySet());
+    int n = distinct.size();
+    builder.samplers.forEach((key, sampler) -> {
+      int rank = distinct.tailSet(builder.priorities.priority(key), false).size();
+      long ceiling = Math.max(1L, (long) recordingsPerSecond * (n - rank) / n);
+      rules.put(key, new Rule(sampler, ceiling));
+    });
+  }
+
+  @Override Rule rule(String samplingKey) {
+    return rules.get(samplingKey);
+  }
+
+  @Override SecondarySampler sampler(Rule rule) {
+    return rule.sampler;
+  }
+
+  @Override boolean tryRecord(Rule rule, MutableSecondarySamplingState state) {
+    return tryAcquire(rule.ceiling);
+  }
+
+  boolean tryAcquire(long ceiling) {
+    long second = TimeUnit.NANOSECONDS.toSeconds(nanoTime.getAsLong()) & 0xffffffffL;
+    while (true) {
+      long current = budget.get();
+      long used = (current >>> 32) == second ? current & 0xffffffffL : 0L;
+      if (used >= ceiling) return false;
+      if (budget.compareAndSet(current, (second << 32) | (used + 1))) return true;
+    }
+  }
+
+  static final class Rule {
+    final SecondarySampler sampler;
+    /** How much of the budget can be used when this key records. */
+    final long ceiling;
+
+    Rule(SecondarySampler sampler, long ceiling) {
+      this.sampler = sampler;
+      this.ceiling = ceiling;
+    }
+  }
+}
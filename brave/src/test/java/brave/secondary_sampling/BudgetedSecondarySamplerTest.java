@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static brave.secondary_sampling.SecondarySamplers.active;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BudgetedSecondarySamplerTest {
+  long nanoTime = TimeUnit.SECONDS.toNanos(100);
+  SamplingKeyPriorities priorities = SamplingKeyPriorities.newBuilder()
+      .priority("incident", 10)
+      .priority("gatewayplay", 5)
+      .build();
+  BudgetedSecondarySampler sampler = BudgetedSecondarySampler.newBuilder(100, priorities)
+      .putRule("incident", active())
+      .putRule("gatewayplay", active(1))
+      .putRule("topology", active()) // default priority
+      .build();
+
+  {
+    sampler.nanoTime = () -> nanoTime;
+  }
+
+  @Test public void lowerPrioritiesBackOffFirst() {
+    assertThat(sample("topology", 100)).isEqualTo(33); // the lowest of three priorities
+    assertThat(sample("gatewayplay", 100)).isEqualTo(33); // the first two thirds
+    assertThat(sample("incident", 100)).isEqualTo(34); // the remainder
+  }
+
+  @Test public void highestPriorityCanUseWholeBudget() {
+    assertThat(sample("incident", 200)).isEqualTo(100);
+    assertThat(sample("topology", 1)).isZero();
+  }
+
+  @Test public void budgetResetsEachSecond() {
+    assertThat(sample("incident", 200)).isEqualTo(100);
+
+    nanoTime += TimeUnit.SECONDS.toNanos(1);
+    assertThat(sample("topology", 100)).isEqualTo(33);
+  }
+
+  @Test public void unconfiguredKey() {
+    assertThat(sample("links", 1)).isZero();
+  }
+
+  @Test public void undoesTtlWhenOverBudget() {
+    sample("incident", 100);
+
+    MutableSecondarySamplingState state = MutableSecondarySamplingState.create("gatewayplay");
+    assertThat(sampler.isSampled(null, state)).isFalse();
+    assertThat(state.ttl()).isZero();
+  }
+
+  @Test public void lockFree_exactUnderContention() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicInteger sampled = new AtomicInteger();
+    for (int t = 0; t < 4; t++) {
+      executor.submit(() -> {
+        start.await();
+        sampled.addAndGet(sample("incident", 1000));
+        return null;
+      });
+    }
+    start.countDown();
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(sampled.get()).isEqualTo(100);
+  }
+
+  int sample(String samplingKey, int requests) {
+    int result = 0;
+    for (int i = 0; i < requests; i++) {
+      MutableSecondarySamplingState state = MutableSecondarySamplingState.create(samplingKey);
+      if (sampler.isSampled(null, state)) result++;
+    }
+    return result;
+  }
+}
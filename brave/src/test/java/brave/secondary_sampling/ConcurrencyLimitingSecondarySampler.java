@@ -0,0 +1,236 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * This caps how many requests can record each sampling key at the same time. Unlike a rate limit,
+ * this bounds memory and reporter pressure when sampled requests are slow and pile up.
+ *
+ * <p>A request takes a permit when its key triggers, and returns it when its {@link
+ * MutableSecondarySamplingState#onLocalRootEnd(Runnable) local root ends}. Permits are striped to
+ * avoid contention: each stripe holds a portion of the limit, and a request takes from the stripe
+ * of its thread first, then from others. The total in flight never exceeds the limit.
+ *
+ * <p>A permit can leak if its local root never reaches the span handler, for example when the
+ * span is dropped by another handler or never finished. So, permits held longer than the {@link
+ * Builder#permitTimeout(long, TimeUnit) timeout} are reclaimed when a request finds none left.
+ */
+public final class ConcurrencyLimitingSecondarySampler
+    extends LimitingSecondarySampler<ConcurrencyLimitingSecondarySampler.Rule> {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    final Map<String, Integer> limits = new LinkedHashMap<>();
+    final Map<String, SecondarySampler> samplers = new LinkedHashMap<>();
+    int stripes = Runtime.getRuntime().availableProcessors();
+    long permitTimeoutNanos = TimeUnit.MINUTES.toNanos(1);
+
+    /** At most this many requests record the key at the same time. */
+    public Builder putRule(String samplingKey, int maxInFlight, SecondarySampler sampler) {
+      if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+      if (maxInFlight <= 0) throw new IllegalArgumentException("maxInFlight <= 0");
+      if (sampler == null) throw new NullPointerException("sampler == null");
+      limits.put(samplingKey, maxInFlight);
+      samplers.put(samplingKey, sampler);
+      return this;
+    }
+
+    /** How many stripes permits are split across. Defaults to the count of processors. */
+    public Builder stripes(int stripes) {
+      if (stripes <= 0) throw new IllegalArgumentException("stripes <= 0");
+      this.stripes = stripes;
+      return this;
+    }
+
+    /**
+     * How long a request can hold a permit before it is assumed leaked and reclaimed. This should
+     * be longer than the slowest request. Defaults to one minute.
+     */
+    public Builder permitTimeout(long permitTimeout, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit == null");
+      if (permitTimeout <= 0) throw new IllegalArgumentException("permitTimeout <= 0");
+      this.permitTimeoutNanos = unit.toNanos(permitTimeout);
+      return this;
+    }
+
+    public ConcurrencyLimitingSecondarySampler build() {
+      return new ConcurrencyLimitingSecondarySampler(this);
+    }
+  }
+
+  final Map<String, Rule> rules = new LinkedHashMap<>();
+  LongSupplier nanoTime = System::nanoTime;
+
+  ConcurrencyLimitingSecondarySampler(Builder builder) {
+    builder.limits.forEach((key, limit) -> rules.put(key, new Rule(builder.samplers.get(key),
+        new Leases(new StripedPermits(limit, builder.stripes), builder.permitTimeoutNanos))));
+  }
+
+  @Override Rule rule(String samplingKey) {
+    return rules.get(samplingKey);
+  }
+
+  @Override SecondarySampler sampler(Rule rule) {
+    return rule.sampler;
+  }
+
+  @Override boolean tryRecord(Rule rule, MutableSecondarySamplingState state) {
+    Lease lease = rule.leases.tryAcquire(nanoTime.getAsLong());
+    if (lease == null) return false;
+    state.onLocalRootEnd(lease);
+    return true;
+  }
+
+  /** Returns the count of requests recording the key. */
+  int inFlight(String samplingKey) {
+    return rules.get(samplingKey).leases.permits.inFlight();
+  }
+
+  static final class Rule {
+    final SecondarySampler sampler;
+    final Leases leases;
+
+    Rule(SecondarySampler sampler, Leases leases) {
+      this.sampler = sampler;
+      this.leases = leases;
+    }
+  }
+
+  /**
+   * Tracks the permits held, so that those held past the timeout can be reclaimed. There is a slot
+   * per permit, and a slot is only taken after a permit, so a request holding one finds a free
+   * slot.
+   */
+  static final class Leases {
+    final StripedPermits permits;
+    final long timeoutNanos;
+    final AtomicReferenceArray<Lease> slots;
+    /** Reclaiming scans all slots, so it runs at most once per quarter of the timeout. */
+    final AtomicLong nextReclaim = new AtomicLong();
+
+    Leases(StripedPermits permits, long timeoutNanos) {
+      this.permits = permits;
+      this.timeoutNanos = timeoutNanos;
+      this.slots = new AtomicReferenceArray<>(permits.limit);
+    }
+
+    /** Returns a lease to run when the request ends, or null if there are no permits left. */
+    Lease tryAcquire(long now) {
+      int stripe = permits.tryAcquire();
+      if (stripe == -1 && reclaimExpired(now) > 0) stripe = permits.tryAcquire();
+      if (stripe == -1) return null;
+
+      Lease lease = new Lease(this, stripe, now);
+      for (int i = stripe % slots.length(); ; i = (i + 1) % slots.length()) {
+        if (slots.get(i) == null && slots.compareAndSet(i, null, lease)) {
+          lease.index = i;
+          return lease;
+        }
+      }
+    }
+
+    /** Returns how many leases held past the timeout were reclaimed. */
+    int reclaimExpired(long now) {
+      long next = nextReclaim.get();
+      if (now - next < 0 || !nextReclaim.compareAndSet(next, now + timeoutNanos / 4)) return 0;
+      int reclaimed = 0;
+      for (int i = 0, length = slots.length(); i < length; i++) {
+        Lease lease = slots.get(i);
+        if (lease != null && now - lease.acquiredAt >= timeoutNanos && lease.release(i)) {
+          reclaimed++;
+        }
+      }
+      return reclaimed;
+    }
+  }
+
+  /** Releases its permit once, whether the request ended or the lease was reclaimed first. */
+  static final class Lease implements Runnable {
+    final Leases leases;
+    final int stripe;
+    final long acquiredAt;
+    final AtomicBoolean released = new AtomicBoolean();
+    int index; // written before the lease is returned, so before run is possible
+
+    Lease(Leases leases, int stripe, long acquiredAt) {
+      this.leases = leases;
+      this.stripe = stripe;
+      this.acquiredAt = acquiredAt;
+    }
+
+    @Override public void run() {
+      release(index);
+    }
+
+    boolean release(int index) {
+      if (!released.compareAndSet(false, true)) return false;
+      leases.slots.compareAndSet(index, this, null); // free the slot before the permit
+      leases.permits.release(stripe);
+      return true;
+    }
+  }
+
+  static final class StripedPermits {
+    /** Spaces stripes a cache line apart, so that threads don't contend on neighbors. */
+    static final int PADDING = 16;
+
+    final int limit, stripes;
+    final AtomicIntegerArray available;
+
+    StripedPermits(int limit, int stripes) {
+      this.limit = limit;
+      this.stripes = Math.min(limit, stripes); // so that every stripe has at least one permit
+      available = new AtomicIntegerArray(this.stripes * PADDING);
+      for (int i = 0; i < this.stripes; i++) {
+        available.set(i * PADDING, limit / this.stripes + (i < limit % this.stripes ? 1 : 0));
+      }
+    }
+
+    /** Returns the stripe a permit was taken from, or -1 if none are available. */
+    int tryAcquire() {
+      int start = (int) (Thread.currentThread().getId() % stripes);
+      for (int i = 0; i < stripes; i++) {
+        int stripe = (start + i) % stripes;
+        int index = stripe * PADDING;
+        while (true) {
+          int current = available.get(index);
+          if (current == 0) break;
+          if (available.compareAndSet(index, current, current - 1)) return stripe;
+        }
+      }
+      return -1;
+    }
+
+    void release(int stripe) {
+      available.incrementAndGet(stripe * PADDING);
+    }
+
+    int inFlight() {
+      int result = limit;
+      for (int i = 0; i < stripes; i++) result -= available.get(i * PADDING);
+      return result;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.Span;
+import brave.Tracing;
+import brave.http.HttpServerRequest;
+import brave.propagation.B3SinglePropagation;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContextOrSamplingFlags;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static brave.secondary_sampling.SecondarySamplers.active;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrencyLimitingSecondarySamplerTest {
+  ConcurrencyLimitingSecondarySampler sampler = ConcurrencyLimitingSecondarySampler.newBuilder()
+      .putRule("gatewayplay", 2, active())
+      .build();
+  SecondarySampling secondarySampling = SecondarySampling.newBuilder()
+      .propagationFactory(B3SinglePropagation.FACTORY)
+      .secondarySampler(sampler)
+      .build();
+  Extractor<HttpServerRequest> extractor = secondarySampling.extractor(HttpServerRequest::header);
+  Tracing tracing;
+  long nanoTime;
+
+  {
+    sampler.nanoTime = () -> nanoTime;
+    Tracing.Builder builder = Tracing.newBuilder();
+    secondarySampling.customize(builder);
+    tracing = builder.build();
+  }
+
+  @After public void close() {
+    tracing.close();
+  }
+
+  @Test public void capsRequestsInFlight() {
+    List<Span> inFlight = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      TraceContextOrSamplingFlags extracted = extract("gatewayplay");
+      Span server = tracing.tracer().nextSpan(extracted).start();
+      tracing.tracer().newChild(server.context()).start().finish(); // doesn't release
+      inFlight.add(server);
+    }
+
+    assertThat(inFlight).extracting(s -> s.context().sampledLocal())
+        .containsExactly(true, true, false);
+    assertThat(sampler.inFlight("gatewayplay")).isEqualTo(2);
+
+    inFlight.get(0).finish();
+    assertThat(sampler.inFlight("gatewayplay")).isEqualTo(1);
+    assertThat(tracing.tracer().nextSpan(extract("gatewayplay")).context().sampledLocal())
+        .isTrue();
+  }
+
+  @Test public void releasesOnceForSeveralLocalRoots() {
+    TraceContextOrSamplingFlags extracted = extract("gatewayplay");
+    tracing.tracer().nextSpan(extracted).start().finish();
+    tracing.tracer().nextSpan(extracted).start().abandon();
+
+    assertThat(sampler.inFlight("gatewayplay")).isZero();
+    extract("gatewayplay");
+    extract("gatewayplay");
+    assertThat(sampler.inFlight("gatewayplay")).isEqualTo(2);
+  }
+
+  @Test public void releasesDuringExtraction_whenNotRecording() {
+    extract("gatewayplay;maxSpans=0");
+
+    assertThat(sampler.inFlight("gatewayplay")).isZero();
+  }
+
+  /** Local roots that never end, or are dropped by another handler, don't release permits. */
+  @Test public void reclaimsPermitsHeldPastTimeout() {
+    extract("gatewayplay");
+    extract("gatewayplay");
+    assertThat(extract("gatewayplay").sampledLocal()).isFalse();
+
+    nanoTime += TimeUnit.MINUTES.toNanos(1);
+    assertThat(extract("gatewayplay").sampledLocal()).isTrue(); // reclaimed both
+    assertThat(sampler.inFlight("gatewayplay")).isEqualTo(1);
+  }
+
+  @Test public void lease_releasesOnce() {
+    ConcurrencyLimitingSecondarySampler.Leases leases = new ConcurrencyLimitingSecondarySampler
+        .Leases(new ConcurrencyLimitingSecondarySampler.StripedPermits(1, 1), 100L);
+    ConcurrencyLimitingSecondarySampler.Lease lease = leases.tryAcquire(0L);
+    assertThat(leases.tryAcquire(99L)).isNull();
+
+    assertThat(leases.tryAcquire(100L)).isNull(); // reclaimed at most once per quarter timeout
+    ConcurrencyLimitingSecondarySampler.Lease next = leases.tryAcquire(124L);
+    assertThat(next).isNotNull();
+    lease.run(); // the request that leaked ends late, which mustn't release the new lease
+    assertThat(leases.permits.inFlight()).isEqualTo(1);
+
+    next.run();
+    assertThat(leases.permits.inFlight()).isZero();
+  }
+
+  @Test public void undoesTtlWhenLimited() {
+    sampler = ConcurrencyLimitingSecondarySampler.newBuilder()
+        .putRule("gatewayplay", 1, active(1))
+        .build();
+    assertThat(sampler.isSampled(null, MutableSecondarySamplingState.create("gatewayplay")))
+        .isTrue();
+    MutableSecondarySamplingState state = MutableSecondarySamplingState.create("gatewayplay");
+    assertThat(sampler.isSampled(null, state)).isFalse();
+    assertThat(state.ttl()).isZero();
+  }
+
+  @Test public void stripes_splitTheLimit() {
+    ConcurrencyLimitingSecondarySampler.StripedPermits permits =
+        new ConcurrencyLimitingSecondarySampler.StripedPermits(10, 4);
+
+    List<Integer> stripes = new ArrayList<>();
+    for (int i = 0; i < 11; i++) stripes.add(permits.tryAcquire());
+
+    assertThat(stripes).containsOnly(0, 1, 2, 3, -1).endsWith(-1);
+    assertThat(permits.inFlight()).isEqualTo(10);
+
+    permits.release(stripes.get(0));
+    assertThat(permits.tryAcquire()).isEqualTo(stripes.get(0));
+  }
+
+  @Test public void lockFree_exactUnderContention() throws Exception {
+    ConcurrencyLimitingSecondarySampler.StripedPermits permits =
+        new ConcurrencyLimitingSecondarySampler.StripedPermits(100, 4);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicInteger acquired = new AtomicInteger();
+    for (int t = 0; t < 4; t++) {
+      executor.submit(() -> {
+        start.await();
+        for (int i = 0; i < 1000; i++) {
+          int stripe = permits.tryAcquire();
+          if (stripe == -1) continue;
+          acquired.incrementAndGet();
+          if (i % 2 == 0) {
+            acquired.decrementAndGet();
+            permits.release(stripe);
+          }
+        }
+        return null;
+      });
+    }
+    start.countDown();
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(acquired.get()).isEqualTo(100);
+    assertThat(permits.inFlight()).isEqualTo(100);
+  }
+
+  TraceContextOrSamplingFlags extract(String sampling) {
+    FakeHttpRequest.Server request =
+        new FakeHttpRequest.Server(new FakeHttpRequest.Client("/play"));
+    request.header("b3", "0");
+    request.header("sampling", sampling);
+    return extractor.extract(request);
+  }
+}
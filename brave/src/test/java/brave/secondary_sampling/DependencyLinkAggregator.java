@@ -0,0 +1,427 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.Span.Kind;
+import brave.handler.MutableSpan;
+import brave.internal.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import zipkin2.DependencyLink;
+
+import static brave.internal.codec.HexCodec.lowerHexToUnsignedLong;
+
+/**
+ * This incrementally aggregates {@link DependencyLink dependency links} for each sampling key, as
+ * spans pass through the {@link TraceForwarder}. Participants can get a dependency graph of their
+ * investigation without storing all spans and re-scanning them later.
+ *
+ * <p>Spans are seen after the trace forwarder corrected hierarchy, so a {@code parentId} sampling
+ * key parameter links a service to its last sampled upstream, even if intermediate services were
+ * not sampled for that key.
+ *
+ * <h3>How links are made</h3>
+ * A link is counted once per server or consumer span, from the service of its parent span to its
+ * local service. Parents often finish after their children, so a child waits in a pending table
+ * until its parent arrives. A child whose parent never arrives is linked from its remote service
+ * name, if known, once the {@link #joinTimeout(long, TimeUnit) join timeout} passes. Client and producer spans only count a link to
+ * their remote service when no server child was linked to them first, which avoids counting the
+ * same call twice when both sides are instrumented.
+ *
+ * <p>Join state is bounded by the join timeout, which is short compared to {@link
+ * #DependencyLinkAggregator(long, TimeUnit, int) windows}: pending children, and spans a late
+ * child could link to, are kept for between one and two join timeouts. This is measured with a
+ * monotonic clock, so a span with a skewed timestamp can't expire the state of others. Links are
+ * counted into the window of the span's start timestamp and the oldest windows are dropped once
+ * there are too many.
+ */
+public final class DependencyLinkAggregator {
+  final long windowMillis;
+  final int maxWindows;
+  final Map<String, KeyLinks> keyToLinks = new ConcurrentHashMap<>();
+  long joinTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+  LongSupplier nanoTime = System::nanoTime;
+
+  /** Aggregates hourly windows, retained for a week. */
+  public DependencyLinkAggregator() {
+    this(1, TimeUnit.HOURS, 24 * 7);
+  }
+
+  public DependencyLinkAggregator(long window, TimeUnit unit, int maxWindows) {
+    if (window <= 0) throw new IllegalArgumentException("window <= 0");
+    if (maxWindows <= 0) throw new IllegalArgumentException("maxWindows <= 0");
+    this.windowMillis = unit.toMillis(window);
+    this.maxWindows = maxWindows;
+  }
+
+  /**
+   * How long to wait for the other side of a link, which bounds how long spans are retained.
+   * Defaults to 30 seconds, as reporters send spans in batches, and hosts report independently.
+   */
+  public DependencyLinkAggregator joinTimeout(long timeout, TimeUnit unit) {
+    if (timeout <= 0) throw new IllegalArgumentException("timeout <= 0");
+    this.joinTimeoutNanos = unit.toNanos(timeout);
+    return this;
+  }
+
+  /** Called by the {@link TraceForwarder} for each sampling key a span is forwarded to. */
+  void accept(String samplingKey, MutableSpan span) {
+    if (span.localServiceName() == null || span.id() == null || span.traceId() == null) return;
+    keyToLinks.computeIfAbsent(samplingKey, k -> new KeyLinks()).accept(span);
+  }
+
+  /**
+   * Returns links for the sampling key from windows that overlap the given interval, similar to
+   * the Zipkin api {@code /dependencies} endpoint.
+   *
+   * @param endTs epoch milliseconds of the end of the interval
+   * @param lookback milliseconds before {@code endTs} to include
+   */
+  public List<DependencyLink> getDependencies(String samplingKey, long endTs, long lookback) {
+    if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+    KeyLinks links = keyToLinks.get(samplingKey);
+    if (links == null) return new ArrayList<>();
+    return links.getDependencies(endTs, lookback);
+  }
+
+  long windowStart(long timestampMillis) {
+    return timestampMillis - Math.floorMod(timestampMillis, windowMillis);
+  }
+
+  /** A span that was, or might become, the parent or child side of a link. */
+  static final class Node {
+    final long traceId, spanId, parentId;
+    final Kind kind;
+    final int service, remoteService;
+    final boolean shared, error;
+    final long timestampMillis;
+    /** True once a link from this client or producer span to a child service was counted. */
+    boolean linked;
+    /** Next child waiting on the same parent. */
+    Node nextPending;
+
+    Node(MutableSpan span, int service, int remoteService, long timestampMillis) {
+      String traceId = span.traceId();
+      this.traceId = lowerHexToUnsignedLong(traceId, traceId.length() - 16);
+      this.spanId = lowerHexToUnsignedLong(span.id());
+      this.parentId = span.parentId() != null ? lowerHexToUnsignedLong(span.parentId()) : 0L;
+      this.kind = span.kind();
+      this.service = service;
+      this.remoteService = remoteService;
+      this.shared = span.shared();
+      this.error = span.error() != null || span.tag("error") != null;
+      this.timestampMillis = timestampMillis;
+    }
+
+    boolean isServer() {
+      return kind == Kind.SERVER || kind == Kind.CONSUMER;
+    }
+
+    boolean isClient() {
+      return kind == Kind.CLIENT || kind == Kind.PRODUCER;
+    }
+
+    /** Shared server spans have the same ID as their client. This key is the one children use. */
+    long key() {
+      return spanKey(traceId, spanId);
+    }
+
+    /** The key of the node this is a child of, or zero if a root span. */
+    long parentKey() {
+      if (shared && kind == Kind.SERVER) return spanKey(traceId, spanId);
+      return parentId != 0L ? spanKey(traceId, parentId) : 0L;
+    }
+
+    /** Whether this is waiting on the client span that shares its span ID. */
+    boolean waitsOnClient() {
+      return shared && kind == Kind.SERVER;
+    }
+  }
+
+  static long spanKey(long traceId, long spanId) {
+    long result = traceId * 0x9E3779B97F4A7C15L + spanId;
+    return result != 0L ? result : 1L; // zero is reserved for "no parent"
+  }
+
+  final class KeyLinks {
+    // Service names are interned so that links can be keyed by a long: (parent << 32) | child
+    final Map<String, Integer> serviceIds = new HashMap<>();
+    final List<String> serviceNames = new ArrayList<>();
+    /** Window start to link key to {callCount, errorCount} */
+    final TreeMap<Long, LongMap<long[]>> windows = new TreeMap<>();
+
+    // Spans and pending children, rotated each join timeout so that state doesn't grow unbounded.
+    LongMap<Node> spans = new LongMap<>(), sharedSpans = new LongMap<>();
+    LongMap<Node> pending = new LongMap<>();
+    LongMap<Node> previousSpans = new LongMap<>(), previousSharedSpans = new LongMap<>();
+    LongMap<Node> previousPending = new LongMap<>();
+    /** The {@link #nanoTime} when the current generation rotates. */
+    long generationEnd = nanoTime.getAsLong() + joinTimeoutNanos;
+
+    synchronized void accept(MutableSpan span) {
+      maybeRotate(nanoTime.getAsLong());
+      long timestampMillis = span.startTimestamp() / 1000L;
+      if (timestampMillis == 0L) timestampMillis = System.currentTimeMillis();
+
+      int remoteService = span.remoteServiceName() != null ? intern(span.remoteServiceName()) : -1;
+      Node node = new Node(span, intern(span.localServiceName()), remoteService, timestampMillis);
+
+      // Index this span so that its children can find it.
+      long key = node.key();
+      if (node.waitsOnClient()) {
+        sharedSpans.put(key, node);
+      } else {
+        spans.put(key, node);
+      }
+
+      // Resolve any children that arrived before this span did.
+      resolvePending(pending, node);
+      resolvePending(previousPending, node);
+
+      if (node.isServer()) {
+        if (node.kind == Kind.CONSUMER && node.remoteService != -1) {
+          count(node.remoteService, node.service, node.timestampMillis, node.error);
+          return;
+        }
+        long parentKey = node.parentKey();
+        Node parent = parentKey != 0L ? findParent(parentKey, node) : null;
+        if (parent != null) {
+          link(parent, node);
+        } else if (parentKey != 0L) {
+          node.nextPending = pending.get(parentKey);
+          pending.put(parentKey, node);
+        } else if (node.remoteService != -1) { // root span: only the remote service is known
+          count(node.remoteService, node.service, node.timestampMillis, node.error);
+        }
+      } else if (node.isClient() && node.remoteService != -1 && !node.linked) {
+        node.linked = true;
+        count(node.service, node.remoteService, node.timestampMillis, node.error);
+      }
+    }
+
+    /** Returns the node the child is linked from, if it is in the same trace. */
+    Node findParent(long parentKey, Node child) {
+      if (child.waitsOnClient()) {
+        Node result = inTrace(spans.get(parentKey), child);
+        return result != null ? result : inTrace(previousSpans.get(parentKey), child);
+      }
+      // Children of a shared server span use its ID, so prefer it over the client with the same ID.
+      Node result = inTrace(sharedSpans.get(parentKey), child);
+      if (result == null) result = inTrace(previousSharedSpans.get(parentKey), child);
+      if (result == null) result = inTrace(spans.get(parentKey), child);
+      if (result == null) result = inTrace(previousSpans.get(parentKey), child);
+      return result;
+    }
+
+    /** Span keys are hashes, so a node of another trace can have the same key. */
+    @Nullable Node inTrace(@Nullable Node node, Node child) {
+      return node != null && node.traceId == child.traceId ? node : null;
+    }
+
+    void resolvePending(LongMap<Node> pending, Node parent) {
+      long key = parent.key();
+      Node child = pending.get(key);
+      if (child == null) return;
+      Node unresolved = null;
+      for (Node next; child != null; child = next) {
+        next = child.nextPending;
+        // A shared server span waits on its client, but its children wait on the server itself.
+        if ((child.waitsOnClient() && parent.waitsOnClient()) || child.traceId != parent.traceId) {
+          child.nextPending = unresolved;
+          unresolved = child;
+          continue;
+        }
+        child.nextPending = null;
+        link(parent, child);
+      }
+      if (unresolved != null) {
+        pending.put(key, unresolved);
+      } else {
+        pending.remove(key);
+      }
+    }
+
+    void link(Node parent, Node child) {
+      if (parent.service == child.service) return; // not a remote call
+      boolean clientError = parent.isClient() && parent.error;
+      if (parent.linked && parent.remoteService == child.service) {
+        // The client already counted this call, but it may not have known it failed.
+        if (child.error && !clientError) {
+          count(parent.service, child.service, 0L, 1L, child.timestampMillis);
+        }
+        return;
+      }
+      if (parent.isClient()) parent.linked = true;
+      count(parent.service, child.service, child.timestampMillis, child.error || clientError);
+    }
+
+    void count(int parent, int child, long timestampMillis, boolean error) {
+      count(parent, child, 1L, error ? 1L : 0L, timestampMillis);
+    }
+
+    void count(int parent, int child, long callCount, long errorCount, long timestampMillis) {
+      long windowStart = windowStart(timestampMillis);
+      LongMap<long[]> links = windows.get(windowStart);
+      if (links == null) {
+        // Don't resurrect windows that were already dropped.
+        if (windows.size() >= maxWindows && windowStart < windows.firstKey()) return;
+        windows.put(windowStart, links = new LongMap<>());
+        while (windows.size() > maxWindows) windows.pollFirstEntry();
+      }
+      long linkKey = ((long) parent << 32) | (child & 0xffffffffL);
+      long[] counts = links.get(linkKey);
+      if (counts == null) links.put(linkKey, counts = new long[2]);
+      counts[0] += callCount;
+      counts[1] += errorCount;
+    }
+
+    void maybeRotate(long now) {
+      if (now - generationEnd < 0) return; // compare by difference, as nanoTime can be negative
+      expire(previousPending);
+      boolean skippedGeneration = now - generationEnd >= joinTimeoutNanos;
+      if (skippedGeneration) expire(pending);
+      previousSpans = skippedGeneration ? new LongMap<>() : spans;
+      previousSharedSpans = skippedGeneration ? new LongMap<>() : sharedSpans;
+      previousPending = skippedGeneration ? new LongMap<>() : pending;
+      spans = new LongMap<>();
+      sharedSpans = new LongMap<>();
+      pending = new LongMap<>();
+      generationEnd = now + joinTimeoutNanos;
+    }
+
+    /** Children whose parent never arrived are linked from their remote service, if known. */
+    void expire(LongMap<Node> pending) {
+      pending.forEach((key, child) -> {
+        for (; child != null; child = child.nextPending) {
+          if (child.remoteService != -1) {
+            count(child.remoteService, child.service, child.timestampMillis, child.error);
+          }
+        }
+      });
+    }
+
+    int intern(String serviceName) {
+      Integer result = serviceIds.get(serviceName);
+      if (result == null) {
+        serviceIds.put(serviceName, result = serviceNames.size());
+        serviceNames.add(serviceName);
+      }
+      return result;
+    }
+
+    synchronized List<DependencyLink> getDependencies(long endTs, long lookback) {
+      maybeRotate(nanoTime.getAsLong()); // count children whose parent didn't arrive in time
+      LongMap<long[]> merged = new LongMap<>();
+      for (LongMap<long[]> links : windows.subMap(windowStart(endTs - lookback), true, endTs, true)
+          .values()) {
+        links.forEach((linkKey, counts) -> {
+          long[] total = merged.get(linkKey);
+          if (total == null) merged.put(linkKey, total = new long[2]);
+          total[0] += counts[0];
+          total[1] += counts[1];
+        });
+      }
+      List<DependencyLink> result = new ArrayList<>(merged.size);
+      merged.forEach((linkKey, counts) -> result.add(DependencyLink.newBuilder()
+          .parent(serviceNames.get((int) (linkKey >>> 32)))
+          .child(serviceNames.get((int) linkKey))
+          .callCount(counts[0])
+          .errorCount(counts[1])
+          .build()));
+      return result;
+    }
+  }
+
+  /** Open addressing hash map keyed by a primitive long, which avoids boxing per span. */
+  static final class LongMap<V> {
+    interface Consumer<V> {
+      void accept(long key, V value);
+    }
+
+    long[] keys = new long[16];
+    Object[] values = new Object[16];
+    int size;
+
+    @SuppressWarnings("unchecked") V get(long key) {
+      int mask = keys.length - 1;
+      for (int i = index(key, mask); values[i] != null; i = (i + 1) & mask) {
+        if (keys[i] == key) return (V) values[i];
+      }
+      return null;
+    }
+
+    void put(long key, V value) {
+      if (value == null) throw new NullPointerException("value == null");
+      if ((size + 1) * 2 > keys.length) resize();
+      int mask = keys.length - 1, i = index(key, mask);
+      for (; values[i] != null; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          values[i] = value;
+          return;
+        }
+      }
+      keys[i] = key;
+      values[i] = value;
+      size++;
+    }
+
+    void remove(long key) {
+      int mask = keys.length - 1, i = index(key, mask);
+      for (; values[i] != null; i = (i + 1) & mask) {
+        if (keys[i] == key) break;
+      }
+      if (values[i] == null) return;
+      values[i] = null;
+      size--;
+      // Shift back any entries that probed past the removed slot.
+      for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+        int home = index(keys[j], mask);
+        if (((j - home) & mask) >= ((j - i) & mask)) {
+          keys[i] = keys[j];
+          values[i] = values[j];
+          values[j] = null;
+          i = j;
+        }
+      }
+    }
+
+    @SuppressWarnings("unchecked") void forEach(Consumer<V> consumer) {
+      for (int i = 0; i < keys.length; i++) {
+        if (values[i] != null) consumer.accept(keys[i], (V) values[i]);
+      }
+    }
+
+    @SuppressWarnings("unchecked") void resize() {
+      long[] oldKeys = keys;
+      Object[] oldValues = values;
+      keys = new long[oldKeys.length * 2];
+      values = new Object[oldValues.length * 2];
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldValues[i] != null) put(oldKeys[i], (V) oldValues[i]);
+      }
+    }
+
+    static int index(long key, int mask) {
+      long hash = key * 0x9E3779B97F4A7C15L;
+      return (int) (hash >>> 32) & mask;
+    }
+  }
+}
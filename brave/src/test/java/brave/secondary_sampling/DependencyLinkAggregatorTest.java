@@ -0,0 +1,200 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.Span.Kind;
+import brave.handler.MutableSpan;
+import brave.secondary_sampling.DependencyLinkAggregator.LongMap;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import zipkin2.DependencyLink;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DependencyLinkAggregatorTest {
+  static final long HOUR = TimeUnit.HOURS.toMillis(1), TODAY = TimeUnit.DAYS.toMillis(19000);
+
+  long nanoTime = -TimeUnit.SECONDS.toNanos(10); // nanoTime can be negative
+  DependencyLinkAggregator aggregator = new DependencyLinkAggregator(1, TimeUnit.HOURS, 3);
+
+  {
+    aggregator.nanoTime = () -> nanoTime;
+  }
+
+  @Test public void childBeforeParent() {
+    // children usually finish first
+    aggregator.accept("authcache", span("2", "1", Kind.SERVER, "cache", TODAY));
+    aggregator.accept("authcache", span("1", null, Kind.SERVER, "auth", TODAY));
+
+    assertThat(aggregator.getDependencies("authcache", TODAY, HOUR)).containsExactly(
+        DependencyLink.newBuilder().parent("auth").child("cache").callCount(1).build()
+    );
+  }
+
+  @Test public void parentBeforeChild() {
+    aggregator.accept("authcache", span("1", null, Kind.SERVER, "auth", TODAY));
+    aggregator.accept("authcache", span("2", "1", Kind.SERVER, "cache", TODAY));
+
+    assertThat(aggregator.getDependencies("authcache", TODAY, HOUR)).containsExactly(
+        DependencyLink.newBuilder().parent("auth").child("cache").callCount(1).build()
+    );
+  }
+
+  @Test public void sharedServerSpan_linksToClient() {
+    MutableSpan server = span("2", "1", Kind.SERVER, "cache", TODAY);
+    server.setShared();
+    aggregator.accept("authcache", server);
+    aggregator.accept("authcache", span("2", "1", Kind.CLIENT, "auth", TODAY));
+
+    assertThat(aggregator.getDependencies("authcache", TODAY, HOUR)).containsExactly(
+        DependencyLink.newBuilder().parent("auth").child("cache").callCount(1).build()
+    );
+  }
+
+  @Test public void clientAndServer_countedOnce() {
+    MutableSpan client = span("2", "1", Kind.CLIENT, "auth", TODAY);
+    client.remoteServiceName("cache");
+    client.tag("error", "timeout");
+
+    aggregator.accept("authcache", span("3", "2", Kind.SERVER, "cache", TODAY));
+    aggregator.accept("authcache", client);
+
+    assertThat(aggregator.getDependencies("authcache", TODAY, HOUR)).containsExactly(
+        DependencyLink.newBuilder().parent("auth").child("cache").callCount(1).errorCount(1)
+            .build()
+    );
+  }
+
+  @Test public void uninstrumentedServer_linksFromClient() {
+    MutableSpan client = span("2", "1", Kind.CLIENT, "cache", TODAY);
+    client.remoteServiceName("authdb");
+    aggregator.accept("authcache", client);
+
+    assertThat(aggregator.getDependencies("authcache", TODAY, HOUR)).containsExactly(
+        DependencyLink.newBuilder().parent("cache").child("authdb").callCount(1).build()
+    );
+  }
+
+  @Test public void missingParent_linksFromRemoteServiceNameOnExpiry() {
+    MutableSpan server = span("2", "1", Kind.SERVER, "cache", TODAY);
+    server.remoteServiceName("auth");
+    aggregator.accept("authcache", server);
+    assertThat(aggregator.getDependencies("authcache", TODAY, HOUR)).isEmpty();
+
+    // two join timeouts later, the pending child expired
+    nanoTime += TimeUnit.SECONDS.toNanos(60);
+
+    assertThat(aggregator.getDependencies("authcache", TODAY, HOUR)).containsExactly(
+        DependencyLink.newBuilder().parent("auth").child("cache").callCount(1).build()
+    );
+  }
+
+  @Test public void joinTimeout_parentIsForgotten() {
+    aggregator.accept("authcache", span("1", null, Kind.SERVER, "auth", TODAY));
+    nanoTime += TimeUnit.SECONDS.toNanos(60);
+    aggregator.accept("authcache", span("2", "1", Kind.SERVER, "cache", TODAY));
+
+    assertThat(aggregator.getDependencies("authcache", TODAY, HOUR)).isEmpty();
+    assertThat(aggregator.keyToLinks.get("authcache").previousSpans.size).isZero();
+  }
+
+  /** Rotation isn't driven by span timestamps, so a skewed one can't expire pending children. */
+  @Test public void skewedTimestamp_doesntExpirePending() {
+    aggregator.accept("authcache", span("2", "1", Kind.SERVER, "cache", TODAY));
+    aggregator.accept("authcache", span("b", "a", Kind.SERVER, "cache", TODAY + 24 * HOUR));
+    aggregator.accept("authcache", span("1", null, Kind.SERVER, "auth", TODAY));
+
+    assertThat(aggregator.getDependencies("authcache", TODAY, HOUR)).containsExactly(
+        DependencyLink.newBuilder().parent("auth").child("cache").callCount(1).build()
+    );
+  }
+
+  /** Span keys hash the trace and span IDs, so spans of different traces can share one. */
+  @Test public void keyCollision_doesntLinkAcrossTraces() {
+    long traceId = 0x48485a3953bb6124L, otherTraceId = traceId + 1;
+    long collidingId = 1L - 0x9E3779B97F4A7C15L; // same key as span 1 in the first trace
+    assertThat(DependencyLinkAggregator.spanKey(otherTraceId, collidingId))
+        .isEqualTo(DependencyLinkAggregator.spanKey(traceId, 1L));
+
+    aggregator.accept("authcache", span(String.format("%032x", otherTraceId),
+        String.format("%016x", collidingId), null, Kind.SERVER, "other", TODAY));
+    aggregator.accept("authcache", span(String.format("%032x", traceId), "2", "1", Kind.SERVER,
+        "cache", TODAY));
+
+    assertThat(aggregator.getDependencies("authcache", TODAY, HOUR)).isEmpty();
+  }
+
+  @Test public void serverError() {
+    aggregator.accept("authcache", span("1", null, Kind.SERVER, "auth", TODAY));
+    MutableSpan server = span("2", "1", Kind.SERVER, "cache", TODAY);
+    server.error(new IllegalStateException());
+    aggregator.accept("authcache", server);
+
+    assertThat(aggregator.getDependencies("authcache", TODAY, HOUR)).containsExactly(
+        DependencyLink.newBuilder().parent("auth").child("cache").callCount(1).errorCount(1)
+            .build()
+    );
+  }
+
+  @Test public void samplingKeysAreIndependent() {
+    aggregator.accept("authcache", span("1", null, Kind.SERVER, "auth", TODAY));
+    aggregator.accept("authcache", span("2", "1", Kind.SERVER, "cache", TODAY));
+
+    assertThat(aggregator.getDependencies("gatewayplay", TODAY, HOUR)).isEmpty();
+  }
+
+  @Test public void windows() {
+    for (int hour = 0; hour < 5; hour++) {
+      String traceId = Integer.toHexString(hour + 1);
+      long millis = TODAY + hour * HOUR;
+      aggregator.accept("authcache", span(traceId, "1", null, Kind.SERVER, "auth", millis));
+      aggregator.accept("authcache", span(traceId, "2", "1", Kind.SERVER, "cache", millis));
+    }
+
+    // only the last hour
+    assertThat(aggregator.getDependencies("authcache", TODAY + 4 * HOUR + HOUR / 2, HOUR / 2))
+        .extracting(DependencyLink::callCount).containsExactly(1L);
+
+    // only three windows are retained
+    assertThat(aggregator.getDependencies("authcache", TODAY + 4 * HOUR, 5 * HOUR))
+        .extracting(DependencyLink::callCount).containsExactly(3L);
+  }
+
+  @Test public void longMap() {
+    LongMap<String> map = new LongMap<>();
+    for (long i = 0; i < 100; i++) map.put(i * 16, String.valueOf(i));
+    for (long i = 0; i < 100; i += 2) map.remove(i * 16);
+
+    assertThat(map.size).isEqualTo(50);
+    for (long i = 0; i < 100; i++) {
+      assertThat(map.get(i * 16)).isEqualTo(i % 2 == 0 ? null : String.valueOf(i));
+    }
+  }
+
+  static MutableSpan span(String id, String parentId, Kind kind, String serviceName, long millis) {
+    return span("463ac35c9f6413ad48485a3953bb6124", id, parentId, kind, serviceName, millis);
+  }
+
+  static MutableSpan span(String traceId, String id, String parentId, Kind kind,
+      String serviceName, long millis) {
+    MutableSpan result = new MutableSpan();
+    result.traceId(traceId);
+    result.id(id);
+    result.parentId(parentId);
+    result.kind(kind);
+    result.localServiceName(serviceName);
+    result.startTimestamp(millis * 1000L);
+    return result;
+  }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * This limits recordings per second of each sampling key across all processes on a host, for
+ * example several JVMs behind the same sidecar.
+ *
+ * <p>Token buckets live in a memory-mapped file that co-located processes share. They are updated
+ * with compare-and-set directly on the mapped memory, so the request path has no locks, system
+ * calls or IPC round-trips. Java 8 has no {@code VarHandle}, so this uses {@code sun.misc.Unsafe},
+ * like other libraries that share memory between processes. It is only bound reflectively, in
+ * {@link Memory}, so nothing compiles against the internal API.
+ *
+ * <p>Each bucket is in the form of the generic cell rate algorithm, like {@link
+ * SamplingKeyQuotas}: it holds the time the bucket is full again, and allows a burst of one second.
+ * As {@link System#nanoTime()} isn't comparable between processes, time is the wall clock in
+ * microseconds. A bucket further ahead than the clock could explain is considered a clock step
+ * backwards, and is reset.
+ *
+ * <p>The file has a fixed number of slots, each on its own cache line. Processes find the slot of
+ * a key by hashing its name, and claim it if empty. A slot also holds a second, independent hash
+ * of the name, so that keys whose first hash collides probe to separate slots instead of sharing
+ * a bucket. All processes should configure the same rate
+ * for a key, as each enforces its own configuration against the shared bucket.
+ */
+public final class HostRateLimitingSecondarySampler
+    extends LimitingSecondarySampler<HostRateLimitingSecondarySampler.Rule> implements Closeable {
+  public static Builder newBuilder(File file) {
+    return new Builder(file);
+  }
+
+  public static final class Builder {
+    final File file;
+    final Map<String, Integer> rates = new LinkedHashMap<>();
+    final Map<String, SecondarySampler> samplers = new LinkedHashMap<>();
+    int slots = 256;
+
+    Builder(File file) {
+      if (file == null) throw new NullPointerException("file == null");
+      this.file = file;
+    }
+
+    /** Recordings of this key are limited per second across the host. */
+    public Builder putRule(String samplingKey, int recordingsPerSecond, SecondarySampler sampler) {
+      if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+      if (recordingsPerSecond <= 0) throw new IllegalArgumentException("recordingsPerSecond <= 0");
+      if (sampler == null) throw new NullPointerException("sampler == null");
+      rates.put(samplingKey, recordingsPerSecond);
+      samplers.put(samplingKey, sampler);
+      return this;
+    }
+
+    /** The capacity of the file, which must be the same for all processes. Defaults to 256. */
+    public Builder slots(int slots) {
+      if (slots <= 0) throw new IllegalArgumentException("slots <= 0");
+      this.slots = slots;
+      return this;
+    }
+
+    public HostRateLimitingSecondarySampler build() throws IOException {
+      return new HostRateLimitingSecondarySampler(this);
+    }
+  }
+
+  static final int MAGIC = 0x42336b32; // "B3k2", as slots of "B3k1" had no check hash
+  static final int SLOT_BYTES = 64; // a cache line, so processes don't contend on neighbors
+  // header: magic, slot count
+  static final int HEADER_BYTES = SLOT_BYTES;
+  // slot: the hash of the key, the time the bucket is full again, then a check hash of the key
+  static final int KEY_OFFSET = 0, FULL_AT_OFFSET = 8, CHECK_OFFSET = 16;
+  static final long BURST_MICROS = TimeUnit.SECONDS.toMicros(1);
+
+  final Map<String, Rule> rules = new LinkedHashMap<>();
+  final RandomAccessFile raf;
+  final MappedByteBuffer buffer; // strongly referenced, as the mapping is released on collection
+  final long address;
+  LongSupplier currentTimeMicros =
+      () -> TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+
+  HostRateLimitingSecondarySampler(Builder builder) throws IOException {
+    int slots = builder.slots;
+    long size = HEADER_BYTES + (long) slots * SLOT_BYTES;
+    raf = new RandomAccessFile(builder.file, "rw");
+    try {
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      address = Memory.bufferAddress(buffer);
+      initializeHeader(slots);
+      for (Map.Entry<String, Integer> entry : builder.rates.entrySet()) {
+        String key = entry.getKey();
+        long slotAddress = slotAddress(keyHash(key), checkHash(key), slots);
+        if (slotAddress == -1L) throw new IOException("no free slot for " + key);
+        rules.put(key, new Rule(builder.samplers.get(key), slotAddress, entry.getValue()));
+      }
+    } catch (IOException | RuntimeException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  void initializeHeader(int slots) throws IOException {
+    // a new file is zero filled: the first process to map it writes the header
+    if (Memory.compareAndSwapInt(address + 4, 0, slots)) {
+      Memory.putIntVolatile(address, MAGIC);
+    }
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    int magic;
+    while ((magic = Memory.getIntVolatile(address)) != MAGIC) {
+      // zero means another process is still initializing the header
+      if (magic != 0 || System.nanoTime() - deadline > 0) {
+        throw new IOException("file isn't a rate limiter");
+      }
+      Thread.yield();
+    }
+    int actualSlots = Memory.getIntVolatile(address + 4);
+    if (actualSlots != slots) {
+      throw new IOException("file has " + actualSlots + " slots, not " + slots);
+    }
+  }
+
+  /**
+   * Finds or claims the slot of the key by open addressing, returning -1 if all slots are used.
+   * The check hash is written after claiming a slot, so readers wait for it before comparing.
+   */
+  long slotAddress(long hash, long checkHash, int slots) throws IOException {
+    for (int i = 0; i < slots; i++) {
+      int index = (int) (((hash + i) & Long.MAX_VALUE) % slots);
+      long slot = address + HEADER_BYTES + (long) index * SLOT_BYTES;
+      long existing = Memory.getLongVolatile(slot + KEY_OFFSET);
+      if (existing == 0L && Memory.compareAndSwapLong(slot + KEY_OFFSET, 0L, hash)) {
+        Memory.putLongVolatile(slot + CHECK_OFFSET, checkHash);
+        return slot;
+      }
+      // either claimed before, or we lost a race: check whether it is for the same key
+      if (Memory.getLongVolatile(slot + KEY_OFFSET) == hash
+          && awaitCheckHash(slot) == checkHash) {
+        return slot;
+      }
+    }
+    return -1L;
+  }
+
+  static long awaitCheckHash(long slot) throws IOException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    long checkHash;
+    while ((checkHash = Memory.getLongVolatile(slot + CHECK_OFFSET)) == 0L) {
+      // zero means another process claimed the slot, but didn't write the check hash yet
+      if (System.nanoTime() - deadline > 0) throw new IOException("slot wasn't initialized");
+      Thread.yield();
+    }
+    return checkHash;
+  }
+
+  /** A 64-bit FNV-1a hash of the key, which is never zero, as zero marks an empty slot. */
+  static long keyHash(String samplingKey) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0, length = samplingKey.length(); i < length; i++) {
+      hash ^= samplingKey.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash != 0L ? hash : 1L;
+  }
+
+  /** An independent hash of the key, also never zero, to tell apart keys that share a hash. */
+  static long checkHash(String samplingKey) {
+    long hash = 0L;
+    for (int i = 0, length = samplingKey.length(); i < length; i++) {
+      hash = (hash + samplingKey.charAt(i)) * 0x9e3779b97f4a7c15L;
+    }
+    hash ^= hash >>> 32;
+    return hash != 0L ? hash : 1L;
+  }
+
+  @Override Rule rule(String samplingKey) {
+    return rules.get(samplingKey);
+  }
+
+  @Override SecondarySampler sampler(Rule rule) {
+    return rule.sampler;
+  }
+
+  @Override boolean tryRecord(Rule rule, MutableSecondarySamplingState state) {
+    long fullAtAddress = rule.slotAddress + FULL_AT_OFFSET;
+    long now = currentTimeMicros.getAsLong();
+    while (true) {
+      long current = Memory.getLongVolatile(fullAtAddress);
+      long start = current < now || current - now > 2 * BURST_MICROS ? now : current;
+      long next = start + rule.microsPerToken;
+      if (next - now > BURST_MICROS) return false;
+      if (Memory.compareAndSwapLong(fullAtAddress, current, next)) return true;
+    }
+  }
+
+  /** Unmaps lazily, on collection of this instance, as Java 8 has no way to unmap explicitly. */
+  @Override public void close() throws IOException {
+    raf.close();
+  }
+
+  static final class Rule {
+    final SecondarySampler sampler;
+    final long slotAddress, microsPerToken;
+
+    Rule(SecondarySampler sampler, long slotAddress, int recordingsPerSecond) {
+      this.sampler = sampler;
+      this.slotAddress = slotAddress;
+      this.microsPerToken = Math.max(1L, BURST_MICROS / recordingsPerSecond);
+    }
+  }
+
+  /**
+   * Volatile and compare-and-set access to native memory, through method handles bound to {@code
+   * sun.misc.Unsafe}. Once initialized, these are constants the JIT inlines like direct calls.
+   */
+  static final class Memory {
+    static final MethodHandle GET_INT_VOLATILE, PUT_INT_VOLATILE, COMPARE_AND_SWAP_INT;
+    static final MethodHandle GET_LONG_VOLATILE, PUT_LONG_VOLATILE, COMPARE_AND_SWAP_LONG;
+    static final MethodHandle GET_LONG;
+    static final long BUFFER_ADDRESS_OFFSET;
+
+    static {
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        Object unsafe = theUnsafe.get(null);
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        GET_INT_VOLATILE = lookup.findVirtual(unsafeClass, "getIntVolatile",
+            methodType(int.class, Object.class, long.class)).bindTo(unsafe);
+        PUT_INT_VOLATILE = lookup.findVirtual(unsafeClass, "putIntVolatile",
+            methodType(void.class, Object.class, long.class, int.class)).bindTo(unsafe);
+        COMPARE_AND_SWAP_INT = lookup.findVirtual(unsafeClass, "compareAndSwapInt",
+            methodType(boolean.class, Object.class, long.class, int.class, int.class))
+            .bindTo(unsafe);
+        GET_LONG_VOLATILE = lookup.findVirtual(unsafeClass, "getLongVolatile",
+            methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+        PUT_LONG_VOLATILE = lookup.findVirtual(unsafeClass, "putLongVolatile",
+            methodType(void.class, Object.class, long.class, long.class)).bindTo(unsafe);
+        COMPARE_AND_SWAP_LONG = lookup.findVirtual(unsafeClass, "compareAndSwapLong",
+            methodType(boolean.class, Object.class, long.class, long.class, long.class))
+            .bindTo(unsafe);
+        GET_LONG = lookup.findVirtual(unsafeClass, "getLong",
+            methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+        MethodHandle objectFieldOffset = lookup.findVirtual(unsafeClass, "objectFieldOffset",
+            methodType(long.class, Field.class)).bindTo(unsafe);
+        BUFFER_ADDRESS_OFFSET =
+            (long) objectFieldOffset.invokeExact(Buffer.class.getDeclaredField("address"));
+      } catch (Throwable e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+
+    static long bufferAddress(Buffer buffer) {
+      try {
+        return (long) GET_LONG.invokeExact((Object) buffer, BUFFER_ADDRESS_OFFSET);
+      } catch (Throwable e) {
+        throw propagate(e);
+      }
+    }
+
+    static int getIntVolatile(long address) {
+      try {
+        return (int) GET_INT_VOLATILE.invokeExact((Object) null, address);
+      } catch (Throwable e) {
+        throw propagate(e);
+      }
+    }
+
+    static void putIntVolatile(long address, int value) {
+      try {
+        PUT_INT_VOLATILE.invokeExact((Object) null, address, value);
+      } catch (Throwable e) {
+        throw propagate(e);
+      }
+    }
+
+    static boolean compareAndSwapInt(long address, int expected, int value) {
+      try {
+        return (boolean) COMPARE_AND_SWAP_INT.invokeExact((Object) null, address, expected, value);
+      } catch (Throwable e) {
+        throw propagate(e);
+      }
+    }
+
+    static long getLongVolatile(long address) {
+      try {
+        return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+      } catch (Throwable e) {
+        throw propagate(e);
+      }
+    }
+
+    static void putLongVolatile(long address, long value) {
+      try {
+        PUT_LONG_VOLATILE.invokeExact((Object) null, address, value);
+      } catch (Throwable e) {
+        throw propagate(e);
+      }
+    }
+
+    static boolean compareAndSwapLong(long address, long expected, long value) {
+      try {
+        return (boolean) COMPARE_AND_SWAP_LONG.invokeExact((Object) null, address, expected, value);
+      } catch (Throwable e) {
+        throw propagate(e);
+      }
+    }
+
+    /** Unsafe doesn't throw checked exceptions, so anything thrown is unchecked. */
+    static RuntimeException propagate(Throwable e) {
+      if (e instanceof Error) throw (Error) e;
+      if (e instanceof RuntimeException) return (RuntimeException) e;
+      return new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static brave.secondary_sampling.SecondarySamplers.active;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class HostRateLimitingSecondarySamplerTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  long currentTimeMicros = TimeUnit.SECONDS.toMicros(1700000000L);
+  File file;
+  HostRateLimitingSecondarySampler process1, process2;
+
+  @Before public void mapFile() throws IOException {
+    file = new File(folder.getRoot(), "secondary-sampling");
+    process1 = newProcess(file);
+    process2 = newProcess(file);
+  }
+
+  @After public void close() throws IOException {
+    process1.close();
+    process2.close();
+  }
+
+  @Test public void limitIsSharedByProcesses() {
+    assertThat(sample(process1, "authcache", 30)).isEqualTo(10);
+    assertThat(sample(process2, "authcache", 30)).isZero();
+
+    currentTimeMicros += TimeUnit.MILLISECONDS.toMicros(500); // half of the tokens come back
+    assertThat(sample(process2, "authcache", 30)).isEqualTo(5);
+    assertThat(sample(process1, "authcache", 30)).isZero();
+  }
+
+  @Test public void keysHaveSeparateBuckets() {
+    assertThat(sample(process1, "authcache", 30)).isEqualTo(10);
+    assertThat(sample(process2, "gatewayplay", 30)).isEqualTo(20);
+  }
+
+  @Test public void survivesRemapping() throws IOException {
+    assertThat(sample(process1, "authcache", 30)).isEqualTo(10);
+    process1.close();
+
+    process1 = newProcess(file);
+    assertThat(sample(process1, "authcache", 30)).isZero();
+  }
+
+  @Test public void clockStepBackwards_resetsBucket() {
+    assertThat(sample(process1, "authcache", 30)).isEqualTo(10);
+
+    currentTimeMicros -= TimeUnit.HOURS.toMicros(1);
+    assertThat(sample(process2, "authcache", 30)).isEqualTo(10);
+  }
+
+  @Test public void unconfiguredKey() {
+    assertThat(sample(process1, "links", 1)).isZero();
+  }
+
+  @Test public void undoesTtlWhenOverLimit() throws IOException {
+    try (HostRateLimitingSecondarySampler ttl = HostRateLimitingSecondarySampler.newBuilder(file)
+        .putRule("authcache", 10, active(1))
+        .build()) {
+      ttl.currentTimeMicros = () -> currentTimeMicros;
+      sample(process1, "authcache", 10);
+
+      MutableSecondarySamplingState state = MutableSecondarySamplingState.create("authcache");
+      assertThat(ttl.isSampled(null, state)).isFalse();
+      assertThat(state.ttl()).isZero();
+    }
+  }
+
+  @Test public void slotCountMismatch() {
+    assertThatThrownBy(() -> HostRateLimitingSecondarySampler.newBuilder(file).slots(8).build())
+        .isInstanceOf(IOException.class)
+        .hasMessage("file has 256 slots, not 8");
+  }
+
+  @Test public void notARateLimiter() throws IOException {
+    File other = folder.newFile();
+    Files.write(other.toPath(), new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+
+    assertThatThrownBy(() -> HostRateLimitingSecondarySampler.newBuilder(other).build())
+        .isInstanceOf(IOException.class)
+        .hasMessage("file isn't a rate limiter");
+  }
+
+  @Test public void noFreeSlot() {
+    assertThatThrownBy(() -> HostRateLimitingSecondarySampler.newBuilder(folder.newFile())
+        .slots(1)
+        .putRule("authcache", 10, active())
+        .putRule("gatewayplay", 10, active())
+        .build())
+        .isInstanceOf(IOException.class)
+        .hasMessage("no free slot for gatewayplay");
+  }
+
+  /** Keys whose first hash collides must not share a bucket. */
+  @Test public void hashCollision_separateSlots() throws IOException {
+    long hash = HostRateLimitingSecondarySampler.keyHash("authcache");
+    long authcache = process1.slotAddress(hash, 1L, 256);
+    long collision = process1.slotAddress(hash, 2L, 256);
+
+    assertThat(collision).isNotEqualTo(authcache);
+    // the other process resolves the same slots
+    assertThat(process2.slotAddress(hash, 1L, 256) - process2.address)
+        .isEqualTo(authcache - process1.address);
+    assertThat(process2.slotAddress(hash, 2L, 256) - process2.address)
+        .isEqualTo(collision - process1.address);
+  }
+
+  @Test public void lockFree_exactUnderContention() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicInteger sampled = new AtomicInteger();
+    for (int t = 0; t < 4; t++) {
+      HostRateLimitingSecondarySampler process = t % 2 == 0 ? process1 : process2;
+      executor.submit(() -> {
+        start.await();
+        sampled.addAndGet(sample(process, "gatewayplay", 1000));
+        return null;
+      });
+    }
+    start.countDown();
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(sampled.get()).isEqualTo(20);
+  }
+
+  HostRateLimitingSecondarySampler newProcess(File file) throws IOException {
+    HostRateLimitingSecondarySampler result = HostRateLimitingSecondarySampler.newBuilder(file)
+        .putRule("authcache", 10, active())
+        .putRule("gatewayplay", 20, active())
+        .build();
+    result.currentTimeMicros = () -> currentTimeMicros;
+    return result;
+  }
+
+  static int sample(HostRateLimitingSecondarySampler process, String samplingKey, int count) {
+    int sampled = 0;
+    for (int i = 0; i < count; i++) {
+      if (process.isSampled(null, MutableSecondarySamplingState.create(samplingKey))) sampled++;
+    }
+    return sampled;
+  }
+}
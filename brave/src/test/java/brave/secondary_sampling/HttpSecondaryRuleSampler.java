@@ -0,0 +1,243 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.http.HttpRequest;
+import brave.sampler.Sampler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This samples HTTP requests by path and method rules across all sampling keys, compiled into one
+ * trie. {@link SamplerController#putSecondaryHttpRule} accepts any {@link brave.sampler.Matcher},
+ * so it can only evaluate each key's matcher in turn. Rules here are literal paths instead, so a
+ * single pass over the request path finds the rules of every key. Matching cost depends on the
+ * length of the path, not the count of rules or keys.
+ *
+ * <p>Like {@link brave.http.HttpRuleSampler}, the first matching rule of a key applies, in the
+ * order rules were added. Like {@link SecondarySamplers#active(brave.sampler.Matcher, Sampler,
+ * int)}, a matching rule always records the key, and its {@link Sampler} only decides whether to
+ * set the rule's TTL. The sampler is passed the {@link MutableSecondarySamplingState#traceId()
+ * trace ID}, or a random value at the root of a trace.
+ *
+ * <p>As a {@link SecondaryBatchSampler}, the extractor passes all sampling keys of a request at
+ * once, so the path is walked once per request. When asked about each key in turn instead, the
+ * path is walked for each. Nothing is kept between calls, as request adapters can be pooled and
+ * reused for other requests.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * sampler = HttpSecondaryRuleSampler.newBuilder()
+ *   .putPathPrefixRule("gatewayplay", "GET", "/play", Sampler.ALWAYS_SAMPLE)
+ *   .putPathRule("authcache", null, "/auth", CountingSampler.create(0.1f), 1)
+ *   .build();
+ * }</pre>
+ */
+public final class HttpSecondaryRuleSampler implements SecondaryBatchSampler {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    final Map<String, Integer> keyIndexes = new LinkedHashMap<>();
+    final List<Rule> rules = new ArrayList<>();
+    final BuildNode root = new BuildNode();
+
+    public Builder putPathPrefixRule(String samplingKey, String method, String pathPrefix,
+        Sampler sampler) {
+      return putPathPrefixRule(samplingKey, method, pathPrefix, sampler, 0);
+    }
+
+    /**
+     * Samples the key when the request path starts with the prefix.
+     *
+     * @param method null to match any method
+     * @param ttl set when the sampler returns true
+     */
+    public Builder putPathPrefixRule(String samplingKey, String method, String pathPrefix,
+        Sampler sampler, int ttl) {
+      return putRule(samplingKey, method, pathPrefix, true, sampler, ttl);
+    }
+
+    public Builder putPathRule(String samplingKey, String method, String path, Sampler sampler) {
+      return putPathRule(samplingKey, method, path, sampler, 0);
+    }
+
+    /**
+     * Samples the key when the request path equals the given one.
+     *
+     * @param method null to match any method
+     * @param ttl set when the sampler returns true
+     */
+    public Builder putPathRule(String samplingKey, String method, String path, Sampler sampler,
+        int ttl) {
+      return putRule(samplingKey, method, path, false, sampler, ttl);
+    }
+
+    Builder putRule(String samplingKey, String method, String path, boolean prefix,
+        Sampler sampler, int ttl) {
+      if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+      if (path == null) throw new NullPointerException("path == null");
+      if (sampler == null) throw new NullPointerException("sampler == null");
+      Integer keyIndex = keyIndexes.get(samplingKey);
+      if (keyIndex == null) keyIndexes.put(samplingKey, keyIndex = keyIndexes.size());
+
+      int ruleIndex = rules.size();
+      rules.add(new Rule(keyIndex, method, sampler, ttl));
+      BuildNode node = root;
+      for (int i = 0, length = path.length(); i < length; i++) {
+        node = node.children.computeIfAbsent(path.charAt(i), c -> new BuildNode());
+      }
+      (prefix ? node.prefixRules : node.exactRules).add(ruleIndex);
+      return this;
+    }
+
+    public HttpSecondaryRuleSampler build() {
+      return new HttpSecondaryRuleSampler(this);
+    }
+  }
+
+  final Map<String, Integer> keyIndexes;
+  final Rule[] rules;
+  final Node root;
+
+  HttpSecondaryRuleSampler(Builder builder) {
+    keyIndexes = new LinkedHashMap<>(builder.keyIndexes);
+    rules = builder.rules.toArray(new Rule[0]);
+    root = builder.root.compile();
+  }
+
+  @Override public boolean isSampled(Object request, MutableSecondarySamplingState state) {
+    if (!(request instanceof HttpRequest)) return false;
+    Integer keyIndex = keyIndexes.get(state.samplingKey());
+    if (keyIndex == null) return false;
+
+    return isSampled(match((HttpRequest) request)[keyIndex], state);
+  }
+
+  @Override public long sampledKeys(Object request, List<MutableSecondarySamplingState> states) {
+    if (!(request instanceof HttpRequest)) return 0L;
+    int[] ruleIndexByKey = match((HttpRequest) request);
+    long result = 0L;
+    for (int i = 0, length = states.size(); i < length; i++) {
+      MutableSecondarySamplingState state = states.get(i);
+      Integer keyIndex = keyIndexes.get(state.samplingKey());
+      if (keyIndex != null && isSampled(ruleIndexByKey[keyIndex], state)) result |= 1L << i;
+    }
+    return result;
+  }
+
+  boolean isSampled(int ruleIndex, MutableSecondarySamplingState state) {
+    if (ruleIndex == -1) return false;
+    Rule rule = rules[ruleIndex];
+    long traceId = state.traceId();
+    if (traceId == 0L) traceId = ThreadLocalRandom.current().nextLong(); // at the root
+    if (rule.sampler.isSampled(traceId)) state.ttl(rule.ttl);
+    return true;
+  }
+
+  /** Returns the first matching rule of each key, or -1 if none match. */
+  int[] match(HttpRequest request) {
+    int[] ruleIndexByKey = new int[keyIndexes.size()];
+    match(request.method(), request.path(), ruleIndexByKey);
+    return ruleIndexByKey;
+  }
+
+  /** Writes the first matching rule of each key, or -1 if none match. */
+  void match(String method, String path, int[] ruleIndexByKey) {
+    Arrays.fill(ruleIndexByKey, -1);
+    if (path == null) return;
+    Node node = root;
+    for (int i = 0, length = path.length(); ; i++) {
+      addMatches(node.prefixRules, method, ruleIndexByKey);
+      if (i == length) {
+        addMatches(node.exactRules, method, ruleIndexByKey);
+        return;
+      }
+      node = node.child(path.charAt(i));
+      if (node == null) return;
+    }
+  }
+
+  void addMatches(int[] ruleIndexes, String method, int[] ruleIndexByKey) {
+    for (int ruleIndex : ruleIndexes) {
+      Rule rule = rules[ruleIndex];
+      if (rule.method != null && !rule.method.equals(method)) continue;
+      int current = ruleIndexByKey[rule.keyIndex];
+      if (current == -1 || ruleIndex < current) ruleIndexByKey[rule.keyIndex] = ruleIndex;
+    }
+  }
+
+  static final class Rule {
+    final int keyIndex;
+    final String method;
+    final Sampler sampler;
+    final int ttl;
+
+    Rule(int keyIndex, String method, Sampler sampler, int ttl) {
+      this.keyIndex = keyIndex;
+      this.method = method;
+      this.sampler = sampler;
+      this.ttl = ttl;
+    }
+  }
+
+  /** Mutable form of {@link Node}, used while adding rules. */
+  static final class BuildNode {
+    final TreeMap<Character, BuildNode> children = new TreeMap<>();
+    final List<Integer> prefixRules = new ArrayList<>(), exactRules = new ArrayList<>();
+
+    Node compile() {
+      char[] labels = new char[children.size()];
+      Node[] compiled = new Node[children.size()];
+      int i = 0;
+      for (Map.Entry<Character, BuildNode> entry : children.entrySet()) {
+        labels[i] = entry.getKey();
+        compiled[i++] = entry.getValue().compile();
+      }
+      return new Node(labels, compiled, toArray(prefixRules), toArray(exactRules));
+    }
+
+    static int[] toArray(List<Integer> list) {
+      int[] result = new int[list.size()];
+      for (int i = 0; i < result.length; i++) result[i] = list.get(i);
+      return result;
+    }
+  }
+
+  static final class Node {
+    /** Sorted, so children are found by binary search. */
+    final char[] labels;
+    final Node[] children;
+    /** Rules whose path ends at this node. */
+    final int[] prefixRules, exactRules;
+
+    Node(char[] labels, Node[] children, int[] prefixRules, int[] exactRules) {
+      this.labels = labels;
+      this.children = children;
+      this.prefixRules = prefixRules;
+      this.exactRules = exactRules;
+    }
+
+    Node child(char c) {
+      int i = Arrays.binarySearch(labels, c);
+      return i >= 0 ? children[i] : null;
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.http.HttpServerRequest;
+import brave.sampler.BoundarySampler;
+import brave.sampler.Sampler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HttpSecondaryRuleSamplerTest {
+  HttpSecondaryRuleSampler sampler = HttpSecondaryRuleSampler.newBuilder()
+      .putPathPrefixRule("gatewayplay", "GET", "/play", Sampler.ALWAYS_SAMPLE, 1)
+      .putPathPrefixRule("gatewayplay", null, "/", Sampler.NEVER_SAMPLE, 1)
+      .putPathRule("authcache", null, "/auth", Sampler.ALWAYS_SAMPLE)
+      .putPathPrefixRule("links", "POST", "/play", Sampler.ALWAYS_SAMPLE)
+      .build();
+
+  @Test public void match() {
+    assertThat(match("GET", "/play/1")).containsExactly(0, -1, -1);
+    assertThat(match("POST", "/play/1")).containsExactly(1, -1, 3);
+    assertThat(match("GET", "/auth")).containsExactly(1, 2, -1);
+    assertThat(match("GET", "/auth/1")).containsExactly(1, -1, -1); // not an exact match
+    assertThat(match("GET", "/pla")).containsExactly(1, -1, -1);
+    assertThat(match("GET", "")).containsExactly(-1, -1, -1);
+    assertThat(match("GET", null)).containsExactly(-1, -1, -1);
+  }
+
+  @Test public void isSampled() {
+    FakeHttpRequest.Server play = request("/play");
+    assertThat(sampler.isSampled(play, state("gatewayplay"))).isTrue();
+    assertThat(sampler.isSampled(play, state("authcache"))).isFalse();
+    assertThat(sampler.isSampled(play, state("unconfigured"))).isFalse();
+
+    assertThat(sampler.isSampled(request(""), state("gatewayplay"))).isFalse(); // no rule matches
+  }
+
+  /** Like {@link SecondarySamplers#active}, a match records, and the sampler only sets the TTL */
+  @Test public void isSampled_samplerSetsTtl() {
+    MutableSecondarySamplingState play = state("gatewayplay");
+    assertThat(sampler.isSampled(request("/play"), play)).isTrue();
+    assertThat(play.ttl()).isEqualTo(1); // ALWAYS_SAMPLE
+
+    MutableSecondarySamplingState other = state("gatewayplay");
+    assertThat(sampler.isSampled(request("/other"), other)).isTrue();
+    assertThat(other.ttl()).isZero(); // NEVER_SAMPLE
+  }
+
+  @Test public void isSampled_appliesRateAtRoot() {
+    sampler = HttpSecondaryRuleSampler.newBuilder()
+        .putPathPrefixRule("gatewayplay", null, "/", BoundarySampler.create(0.5f), 1)
+        .build();
+
+    int withTtl = 0;
+    for (int i = 0; i < 1000; i++) {
+      MutableSecondarySamplingState state = state("gatewayplay");
+      sampler.isSampled(request("/play"), state);
+      if (state.ttl() == 1) withTtl++;
+    }
+    assertThat(withTtl).isBetween(400, 600);
+  }
+
+  /** Adapters can be pooled, so the same instance can be a different request on the next call */
+  @Test public void isSampled_reusedRequest() {
+    String[] path = {"/play"};
+    HttpServerRequest pooled = new HttpServerRequest() {
+      @Override public String method() {
+        return "GET";
+      }
+
+      @Override public String path() {
+        return path[0];
+      }
+
+      @Override public String url() {
+        return null;
+      }
+
+      @Override public String header(String name) {
+        return null;
+      }
+
+      @Override public Object unwrap() {
+        return this;
+      }
+    };
+    assertThat(sampler.isSampled(pooled, state("gatewayplay"))).isTrue();
+    assertThat(sampler.isSampled(pooled, state("authcache"))).isFalse();
+
+    path[0] = "/auth";
+    MutableSecondarySamplingState gatewayplay = state("gatewayplay");
+    assertThat(sampler.isSampled(pooled, gatewayplay)).isTrue();
+    assertThat(gatewayplay.ttl()).isZero(); // the NEVER_SAMPLE rule, not the one for "/play"
+    assertThat(sampler.isSampled(pooled, state("authcache"))).isTrue();
+  }
+
+  @Test public void isSampled_notHttp() {
+    FakeRpcRequest.Client rpc = new FakeRpcRequest.Client("/play");
+
+    assertThat(sampler.isSampled(rpc, state("gatewayplay"))).isFalse();
+  }
+
+  @Test public void sampledKeys() {
+    List<MutableSecondarySamplingState> states = Arrays.asList(
+        state("authcache"), state("gatewayplay"), state("unconfigured"), state("links"));
+
+    assertThat(sampler.sampledKeys(request("/play"), states)).isEqualTo(0b0010L);
+    assertThat(sampler.sampledKeys(request("/auth"), states)).isEqualTo(0b0011L);
+    assertThat(sampler.sampledKeys(new FakeRpcRequest.Client("/play"), states)).isZero();
+  }
+
+  /** Compares hundreds of rules with evaluating them one at a time, in order. */
+  @Test public void manyRules_sameAsEvaluatingEachRule() {
+    Random random = new Random(1L);
+    String[] methods = {"GET", "POST", null};
+    HttpSecondaryRuleSampler.Builder builder = HttpSecondaryRuleSampler.newBuilder();
+    List<Object[]> rules = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      String key = "key" + random.nextInt(50);
+      String method = methods[random.nextInt(3)];
+      String path = randomPath(random);
+      boolean prefix = random.nextBoolean();
+      if (prefix) {
+        builder.putPathPrefixRule(key, method, path, Sampler.ALWAYS_SAMPLE);
+      } else {
+        builder.putPathRule(key, method, path, Sampler.ALWAYS_SAMPLE);
+      }
+      rules.add(new Object[] {key, method, path, prefix});
+    }
+    sampler = builder.build();
+
+    for (int i = 0; i < 1000; i++) {
+      String method = methods[random.nextInt(2)], path = randomPath(random);
+      int[] expected = new int[sampler.keyIndexes.size()];
+      Arrays.fill(expected, -1);
+      for (int r = 0; r < rules.size(); r++) {
+        Object[] rule = rules.get(r);
+        int keyIndex = sampler.keyIndexes.get((String) rule[0]);
+        if (expected[keyIndex] != -1) continue; // first match wins
+        if (rule[1] != null && !rule[1].equals(method)) continue;
+        boolean matches = (boolean) rule[3]
+            ? path.startsWith((String) rule[2])
+            : path.equals(rule[2]);
+        if (matches) expected[keyIndex] = r;
+      }
+
+      assertThat(match(method, path)).as("%s %s", method, path).containsExactly(expected);
+    }
+  }
+
+  static String randomPath(Random random) {
+    StringBuilder path = new StringBuilder();
+    for (int segments = random.nextInt(3) + 1; segments > 0; segments--) {
+      path.append('/').append((char) ('a' + random.nextInt(3)));
+    }
+    return path.toString();
+  }
+
+  int[] match(String method, String path) {
+    int[] result = new int[sampler.keyIndexes.size()];
+    sampler.match(method, path, result);
+    return result;
+  }
+
+  static FakeHttpRequest.Server request(String path) {
+    return new FakeHttpRequest.Server(new FakeHttpRequest.Client(path));
+  }
+
+  static MutableSecondarySamplingState state(String samplingKey) {
+    return MutableSecondarySamplingState.create(samplingKey);
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.internal.Nullable;
+
+/**
+ * Base for samplers that only record a sampling key triggered by its rule's sampler while a limit
+ * allows. When the limit refuses, any TTL the sampler set is undone, as this node isn't recording
+ * the key.
+ *
+ * @param <R> the rule of a sampling key, holding its sampler and limit
+ */
+abstract class LimitingSecondarySampler<R> implements SecondarySampler {
+  @Override public final boolean isSampled(Object request, MutableSecondarySamplingState state) {
+    R rule = rule(state.samplingKey());
+    if (rule == null) return false;
+    int ttl = state.ttl();
+    if (!sampler(rule).isSampled(request, state)) return false;
+    if (tryRecord(rule, state)) return true;
+    state.ttl(ttl); // undo any TTL set by the sampler, as we aren't recording
+    return false;
+  }
+
+  /** Returns the rule of the sampling key, or null if it has none. */
+  @Nullable abstract R rule(String samplingKey);
+
+  abstract SecondarySampler sampler(R rule);
+
+  /** Returns true if the limit allows recording the key, which the sampler already triggered. */
+  abstract boolean tryRecord(R rule, MutableSecondarySamplingState state);
+}
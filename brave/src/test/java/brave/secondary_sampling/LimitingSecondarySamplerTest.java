@@ -0,0 +1,65 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LimitingSecondarySamplerTest {
+  boolean allow;
+  int tries;
+  LimitingSecondarySampler<SecondarySampler> sampler =
+      new LimitingSecondarySampler<SecondarySampler>() {
+        @Override SecondarySampler rule(String samplingKey) {
+          if (samplingKey.equals("gatewayplay")) return SecondarySamplers.active(2);
+          if (samplingKey.equals("authcache")) return (request, state) -> false;
+          return null;
+        }
+
+        @Override SecondarySampler sampler(SecondarySampler rule) {
+          return rule;
+        }
+
+        @Override boolean tryRecord(SecondarySampler rule, MutableSecondarySamplingState state) {
+          tries++;
+          return allow;
+        }
+      };
+
+  @Test public void allowed_keepsTtl() {
+    allow = true;
+    MutableSecondarySamplingState state = MutableSecondarySamplingState.create("gatewayplay");
+
+    assertThat(sampler.isSampled(null, state)).isTrue();
+    assertThat(state.ttl()).isEqualTo(2);
+  }
+
+  @Test public void refused_undoesTtl() {
+    MutableSecondarySamplingState state = MutableSecondarySamplingState.create("gatewayplay");
+    state.ttl(1);
+
+    assertThat(sampler.isSampled(null, state)).isFalse();
+    assertThat(state.ttl()).isEqualTo(1);
+  }
+
+  @Test public void onlyLimitsTriggeredKeys() {
+    allow = true;
+
+    assertThat(sampler.isSampled(null, MutableSecondarySamplingState.create("authcache")))
+        .isFalse();
+    assertThat(sampler.isSampled(null, MutableSecondarySamplingState.create("links"))).isFalse();
+    assertThat(tries).isZero();
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.http.HttpServerRequest;
+import brave.propagation.B3SinglePropagation;
+import brave.propagation.TraceContext.Extractor;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MemoizedHttpServerRequestTest {
+  List<String> reads = new ArrayList<>();
+  FakeHttpRequest.Server delegate = new FakeHttpRequest.Server(new FakeHttpRequest.Client("/play"));
+  HttpServerRequest counting = new HttpServerRequest() {
+    @Override public Object unwrap() {
+      return delegate;
+    }
+
+    @Override public String method() {
+      reads.add("method");
+      return delegate.method();
+    }
+
+    @Override public String path() {
+      reads.add("path");
+      return delegate.path();
+    }
+
+    @Override public String url() {
+      reads.add("url");
+      return delegate.url();
+    }
+
+    @Override public String header(String name) {
+      reads.add(name);
+      return delegate.header(name);
+    }
+  };
+  MemoizedHttpServerRequest request = new MemoizedHttpServerRequest(counting);
+
+  @Test public void readsEachAttributeOnce() {
+    delegate.header("user-agent", "curl");
+
+    for (int i = 0; i < 3; i++) {
+      assertThat(request.method()).isEqualTo("GET");
+      assertThat(request.path()).isEqualTo("/play");
+      assertThat(request.url()).isNull(); // null is memoized, too
+      assertThat(request.header("user-agent")).isEqualTo("curl");
+      assertThat(request.header("country")).isNull();
+    }
+
+    assertThat(reads).containsExactly("method", "path", "url", "user-agent", "country");
+  }
+
+  @Test public void manyHeaders() {
+    for (int i = 0; i < 20; i++) {
+      delegate.header("h" + i, "v" + i);
+    }
+
+    for (int i = 0; i < 20; i++) {
+      assertThat(request.header("h" + i)).isEqualTo("v" + i);
+    }
+    for (int i = 0; i < 20; i++) {
+      assertThat(request.header("h" + i)).isEqualTo("v" + i);
+    }
+    assertThat(reads).hasSize(20);
+  }
+
+  @Test public void maybeWrap() {
+    assertThat(MemoizedHttpServerRequest.maybeWrap(counting))
+        .isInstanceOf(MemoizedHttpServerRequest.class);
+    assertThat(MemoizedHttpServerRequest.maybeWrap(request)).isSameAs(request);
+
+    FakeRpcRequest.Client rpc = new FakeRpcRequest.Client("/play");
+    assertThat(MemoizedHttpServerRequest.maybeWrap(rpc)).isSameAs(rpc);
+  }
+
+  @Test public void unwrap() {
+    assertThat(request.unwrap()).isSameAs(delegate);
+  }
+
+  /** Shows each sampling key is evaluated against the same snapshot of the request. */
+  @Test public void extract_sharesSnapshotAcrossSamplingKeys() {
+    List<Object> sampled = new ArrayList<>();
+    Extractor<HttpServerRequest> extractor = SecondarySampling.newBuilder()
+        .propagationFactory(B3SinglePropagation.FACTORY)
+        .memoizeHttpRequests(true)
+        .secondarySampler((request, state) -> {
+          sampled.add(request);
+          HttpServerRequest http = (HttpServerRequest) request;
+          return "/play".equals(http.path()) && "curl".equals(http.header("user-agent"));
+        })
+        .build().extractor(HttpServerRequest::header);
+    delegate.header("b3", "0");
+    delegate.header("sampling", "gatewayplay,authcache,links");
+    delegate.header("user-agent", "curl");
+
+    extractor.extract(counting);
+
+    assertThat(sampled).hasSize(3).allSatisfy(r -> assertThat(r).isSameAs(sampled.get(0)));
+    assertThat(reads).containsOnlyOnce("path", "user-agent");
+  }
+
+  /** The snapshot is opt-in, as samplers can depend on the type of the request. */
+  @Test public void extract_passesRequestByDefault() {
+    List<Object> sampled = new ArrayList<>();
+    Extractor<HttpServerRequest> extractor = SecondarySampling.newBuilder()
+        .propagationFactory(B3SinglePropagation.FACTORY)
+        .secondarySampler((request, state) -> sampled.add(request))
+        .build().extractor(HttpServerRequest::header);
+    delegate.header("b3", "0");
+    delegate.header("sampling", "gatewayplay,authcache");
+
+    extractor.extract(counting);
+
+    assertThat(sampled).containsExactly(counting, counting);
+  }
+}
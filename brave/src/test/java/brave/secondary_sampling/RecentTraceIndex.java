@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static brave.internal.codec.HexCodec.lowerHexToUnsignedLong;
+import static brave.internal.codec.HexCodec.toLowerHex;
+
+/**
+ * This indexes the most recent spans of each sampling key by trace ID, so that support engineers
+ * can find "the last traces for key {@code gatewayplay}" during an investigation, without waiting
+ * on storage to index them.
+ *
+ * <p>Each sampling key has a fixed size ring of span entries, held in primitive long arrays. Once
+ * full, the oldest entries are overwritten. Adding an entry doesn't allocate, so this can be
+ * updated on the routing path. Queries scan the ring, newest first.
+ *
+ * <p>The offset of each entry is opaque to this index. When used with {@link
+ * SpanSpool#spanHandler(String, RecentTraceIndex)}, it is the offset of the span in the spool,
+ * which can be read back with {@link SpanSpool#read(String, long)}.
+ */
+public final class RecentTraceIndex {
+  final int spansPerKey;
+  final Map<String, Ring> keyToRing = new ConcurrentHashMap<>();
+
+  /** @param spansPerKey maximum count of span entries retained for each sampling key */
+  public RecentTraceIndex(int spansPerKey) {
+    if (spansPerKey <= 0) throw new IllegalArgumentException("spansPerKey <= 0");
+    this.spansPerKey = spansPerKey;
+  }
+
+  /** Indexes the offset of a span, given its 16 or 32 character lower-hex trace ID. */
+  public void add(String samplingKey, String traceId, long offset) {
+    if (traceId == null) throw new NullPointerException("traceId == null");
+    long traceIdHigh = traceId.length() == 32 ? lowerHexToUnsignedLong(traceId, 0) : 0L;
+    add(samplingKey, traceIdHigh, lowerHexToUnsignedLong(traceId, traceId.length() - 16), offset);
+  }
+
+  public void add(String samplingKey, long traceIdHigh, long traceId, long offset) {
+    if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+    Ring ring = keyToRing.get(samplingKey);
+    if (ring == null) ring = keyToRing.computeIfAbsent(samplingKey, k -> new Ring(spansPerKey));
+    ring.add(traceIdHigh, traceId, offset);
+  }
+
+  /** Returns up to {@code limit} distinct trace IDs of the sampling key, most recent first. */
+  public List<String> recentTraceIds(String samplingKey, int limit) {
+    if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+    if (limit <= 0) throw new IllegalArgumentException("limit <= 0");
+    Ring ring = keyToRing.get(samplingKey);
+    if (ring == null) return new ArrayList<>();
+    return ring.recentTraceIds(limit);
+  }
+
+  /** Returns offsets of indexed spans in the trace, oldest first. */
+  public long[] spanOffsets(String samplingKey, String traceId) {
+    if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+    if (traceId == null) throw new NullPointerException("traceId == null");
+    Ring ring = keyToRing.get(samplingKey);
+    if (ring == null) return new long[0];
+    long traceIdHigh = traceId.length() == 32 ? lowerHexToUnsignedLong(traceId, 0) : 0L;
+    return ring.spanOffsets(traceIdHigh, lowerHexToUnsignedLong(traceId, traceId.length() - 16));
+  }
+
+  static final class Ring {
+    final long[] traceIdHighs, traceIds, offsets;
+    /** Count of entries ever added. The next entry is written at {@code count % capacity}. */
+    long count;
+
+    Ring(int capacity) {
+      traceIdHighs = new long[capacity];
+      traceIds = new long[capacity];
+      offsets = new long[capacity];
+    }
+
+    synchronized void add(long traceIdHigh, long traceId, long offset) {
+      int i = (int) (count++ % offsets.length);
+      traceIdHighs[i] = traceIdHigh;
+      traceIds[i] = traceId;
+      offsets[i] = offset;
+    }
+
+    synchronized List<String> recentTraceIds(int limit) {
+      Set<String> result = new LinkedHashSet<>();
+      int size = (int) Math.min(count, offsets.length);
+      for (int n = 1; n <= size && result.size() < limit; n++) {
+        int i = (int) ((count - n) % offsets.length);
+        long traceIdHigh = traceIdHighs[i];
+        String traceId = toLowerHex(traceIds[i]);
+        result.add(traceIdHigh != 0L ? toLowerHex(traceIdHigh) + traceId : traceId);
+      }
+      return new ArrayList<>(result);
+    }
+
+    synchronized long[] spanOffsets(long traceIdHigh, long traceId) {
+      long[] result = new long[8];
+      int resultSize = 0;
+      int size = (int) Math.min(count, offsets.length);
+      for (int n = size; n >= 1; n--) {
+        int i = (int) ((count - n) % offsets.length);
+        if (traceIds[i] != traceId || traceIdHighs[i] != traceIdHigh) continue;
+        if (resultSize == result.length) result = Arrays.copyOf(result, resultSize * 2);
+        result[resultSize++] = offsets[i];
+      }
+      return Arrays.copyOf(result, resultSize);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.handler.SpanHandler.Cause;
+import brave.propagation.TraceContext;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RecentTraceIndexTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  RecentTraceIndex index = new RecentTraceIndex(4);
+
+  @Test public void recentTraceIds_newestFirstAndDistinct() {
+    index.add("gatewayplay", 0L, 1L, 10L);
+    index.add("gatewayplay", 0L, 2L, 20L);
+    index.add("gatewayplay", 0L, 1L, 30L);
+
+    assertThat(index.recentTraceIds("gatewayplay", 10))
+        .containsExactly("0000000000000001", "0000000000000002");
+    assertThat(index.recentTraceIds("gatewayplay", 1))
+        .containsExactly("0000000000000001");
+  }
+
+  @Test public void recentTraceIds_128Bit() {
+    index.add("gatewayplay", "463ac35c9f6413ad48485a3953bb6124", 10L);
+
+    assertThat(index.recentTraceIds("gatewayplay", 10))
+        .containsExactly("463ac35c9f6413ad48485a3953bb6124");
+    assertThat(index.spanOffsets("gatewayplay", "463ac35c9f6413ad48485a3953bb6124"))
+        .containsExactly(10L);
+    assertThat(index.spanOffsets("gatewayplay", "48485a3953bb6124")).isEmpty();
+  }
+
+  @Test public void spanOffsets_oldestFirst() {
+    index.add("gatewayplay", 0L, 1L, 10L);
+    index.add("gatewayplay", 0L, 2L, 20L);
+    index.add("gatewayplay", 0L, 1L, 30L);
+
+    assertThat(index.spanOffsets("gatewayplay", "0000000000000001")).containsExactly(10L, 30L);
+  }
+
+  @Test public void overwritesOldest() {
+    for (long i = 1; i <= 6; i++) index.add("gatewayplay", 0L, i, i * 10);
+
+    assertThat(index.recentTraceIds("gatewayplay", 10)).containsExactly(
+        "0000000000000006", "0000000000000005", "0000000000000004", "0000000000000003"
+    );
+    assertThat(index.spanOffsets("gatewayplay", "0000000000000002")).isEmpty();
+  }
+
+  @Test public void samplingKeysAreIndependent() {
+    index.add("gatewayplay", 0L, 1L, 10L);
+    index.add("authcache", 0L, 2L, 10L);
+
+    assertThat(index.recentTraceIds("gatewayplay", 10)).containsExactly("0000000000000001");
+    assertThat(index.recentTraceIds("license100pct", 10)).isEmpty();
+  }
+
+  @Test public void readsSpansBackFromSpool() throws IOException {
+    try (SpanSpool spool = new SpanSpool(folder.getRoot().toPath())) {
+      SpanHandler handler = spool.spanHandler("gatewayplay", index);
+      TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).build();
+      MutableSpan span = new MutableSpan();
+      span.traceId(context.traceIdString());
+      span.id(context.spanIdString());
+      span.localServiceName("playback");
+
+      handler.end(context, span, Cause.FINISHED);
+
+      String traceId = index.recentTraceIds("gatewayplay", 1).get(0);
+      long offset = index.spanOffsets("gatewayplay", traceId)[0];
+      assertThat(new String(spool.read("gatewayplay", offset), StandardCharsets.UTF_8))
+          .contains("\"localEndpoint\":{\"serviceName\":\"playback\"}");
+    }
+  }
+}
@@ -24,7 +24,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 
 import static brave.secondary_sampling.SecondarySamplers.active;
-import static brave.unmerged.MoreMatchers.ifInstanceOf;
+import static brave.secondary_sampling.TypeDispatchingSecondarySampler.dispatched;
 
 /**
  * This is a proof-of-concept controller for configuring the {@link SecondarySampling} instance with
@@ -61,10 +61,10 @@ public interface SamplerController {
     Matcher<HttpRequest> matcher, Sampler sampler
   ) {
     return putSecondaryRule(
-      serviceName, samplingKey,
+      serviceName, samplingKey, HttpRequest.class,
       // active means don't inherit a decision.
-      // Secondary samplers can pass any request, so we guard narrower types with isInstanceOf
-      active(ifInstanceOf(HttpRequest.class, matcher), sampler)
+      // Only HTTP requests are dispatched to this rule, so the matcher needs no instanceof guard
+      active(dispatched(matcher), sampler)
     );
   }
 
@@ -74,13 +74,22 @@ public interface SamplerController {
     Matcher<RpcRequest> matcher, Sampler sampler, int ttl
   ) {
     return putSecondaryRule(
-      serviceName, samplingKey,
+      serviceName, samplingKey, RpcRequest.class,
       // active means don't inherit a decision.
-      // Secondary samplers can pass any request, so we guard narrower types with isInstanceOf
-      active(ifInstanceOf(RpcRequest.class, matcher), sampler, ttl)
+      // Only RPC requests are dispatched to this rule, so the matcher needs no instanceof guard
+      active(dispatched(matcher), sampler, ttl)
     );
   }
 
+  /**
+   * Adds a rule for requests of the given type. Unlike {@link #putSecondaryRule(String, String,
+   * SecondarySampler)}, this keeps rules of other types for the same key, such as an HTTP and an
+   * RPC rule. The rules are dispatched by {@link TypeDispatchingSecondarySampler}, so the sampler
+   * is only called with requests of that type.
+   */
+  <P> SamplerController putSecondaryRule(String serviceName, String samplingKey,
+    Class<P> requestType, SecondarySampler sampler);
+
   SamplerController putSecondaryRule(String samplingKey, SecondarySampler sampler);
 
   SamplerController putSecondaryRule(String serviceName, String samplingKey,
@@ -170,6 +179,20 @@ public interface SamplerController {
       return this;
     }
 
+    @Override
+    public <P> SamplerController putSecondaryRule(String serviceName, String samplingKey,
+      Class<P> requestType, SecondarySampler sampler) {
+      Map<String, SecondarySampler> rules = secondaryRulesByService(serviceName);
+      TypeDispatchingSecondarySampler.Builder builder =
+        TypeDispatchingSecondarySampler.newBuilder();
+      SecondarySampler existing = rules.get(samplingKey);
+      if (existing instanceof TypeDispatchingSecondarySampler) {
+        builder.putAllRules((TypeDispatchingSecondarySampler) existing);
+      }
+      rules.put(samplingKey, builder.putRule(requestType, samplingKey, sampler).build());
+      return this;
+    }
+
     @Override public SamplerController removeSecondaryRules(String samplingKey) {
       secondaryRules.remove(samplingKey);
       for (Map<String, SecondarySampler> samplingKeyToSampler : secondaryRulesByService.values()) {
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.http.HttpClientRequest;
+import brave.http.HttpServerRequest;
+import brave.propagation.B3SinglePropagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Injector;
+import brave.propagation.TraceContextOrSamplingFlags;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SamplingKeyExpiryTest {
+  long currentTimeMillis = TimeUnit.SECONDS.toMillis(1700000000L);
+  Map<String, Long> expirations = new LinkedHashMap<>();
+
+  @Test public void configuredExpiration() {
+    expirations.put("gatewayplay", currentTimeMillis + TimeUnit.SECONDS.toMillis(5));
+    SamplingKeyExpiry expiry = newExpiry();
+
+    expiry.tick();
+    assertThat(expiry.isExpired(state("gatewayplay"))).isFalse();
+
+    currentTimeMillis += TimeUnit.SECONDS.toMillis(4);
+    expiry.tick();
+    assertThat(expiry.isExpired(state("gatewayplay"))).isFalse();
+
+    currentTimeMillis += TimeUnit.SECONDS.toMillis(1);
+    expiry.tick();
+    assertThat(expiry.isExpired(state("gatewayplay"))).isTrue();
+    assertThat(expiry.isExpired(state("authcache"))).isFalse();
+  }
+
+  @Test public void configuredExpiration_laterRotation() {
+    long rotation = TimeUnit.SECONDS.toMillis(SamplingKeyExpiry.WHEEL_SIZE);
+    expirations.put("gatewayplay", currentTimeMillis + rotation + 1000L);
+    SamplingKeyExpiry expiry = newExpiry();
+    expiry.tick();
+
+    for (int i = 0; i < SamplingKeyExpiry.WHEEL_SIZE; i++) {
+      currentTimeMillis += 1000L;
+      expiry.tick();
+    }
+    assertThat(expiry.isExpired(state("gatewayplay"))).isFalse();
+
+    currentTimeMillis += 1000L;
+    expiry.tick();
+    assertThat(expiry.isExpired(state("gatewayplay"))).isTrue();
+  }
+
+  @Test public void configuredExpiration_clockJump() {
+    expirations.put("gatewayplay", currentTimeMillis + TimeUnit.MINUTES.toMillis(5));
+    SamplingKeyExpiry expiry = newExpiry();
+    expiry.tick();
+
+    currentTimeMillis += TimeUnit.DAYS.toMillis(1);
+    expiry.tick();
+    assertThat(expiry.isExpired(state("gatewayplay"))).isTrue();
+  }
+
+  @Test public void configuredExpiration_alreadyPast() {
+    expirations.put("gatewayplay", currentTimeMillis - 1000L);
+    SamplingKeyExpiry expiry = newExpiry();
+    expiry.tick();
+
+    assertThat(expiry.isExpired(state("gatewayplay"))).isTrue();
+  }
+
+  @Test public void expParameter() {
+    SamplingKeyExpiry expiry = newExpiry();
+    long nowSeconds = TimeUnit.MILLISECONDS.toSeconds(currentTimeMillis);
+
+    assertThat(expiry.isExpired(state("gatewayplay").parameter("exp", "" + (nowSeconds + 1))))
+        .isFalse();
+    assertThat(expiry.ticker).isNull(); // requests can't start the thread
+    assertThat(expiry.isExpired(state("gatewayplay").parameter("exp", "" + nowSeconds)))
+        .isTrue();
+    assertThat(expiry.isExpired(state("gatewayplay").parameter("exp", "tomorrow"))).isFalse();
+  }
+
+  @Test public void expParameter_usesTickClockWhileTicking() {
+    expirations.put("authcache", currentTimeMillis + 10_000L);
+    SamplingKeyExpiry expiry = newExpiry();
+    expiry.start();
+    try {
+      long nowSeconds = TimeUnit.MILLISECONDS.toSeconds(currentTimeMillis);
+      currentTimeMillis += 5_000L; // not yet ticked
+
+      assertThat(expiry.isExpired(state("gatewayplay").parameter("exp", "" + (nowSeconds + 1))))
+          .isFalse();
+    } finally {
+      expiry.close();
+    }
+  }
+
+  @Test public void stopsOnceAllExpired() {
+    expirations.put("gatewayplay", currentTimeMillis + 1000L);
+    SamplingKeyExpiry expiry = newExpiry();
+    expiry.start();
+    assertThat(expiry.ticker).isNotNull();
+
+    currentTimeMillis += 1000L;
+    expiry.tickOrStop();
+    assertThat(expiry.ticker.isShutdown()).isTrue();
+    assertThat(expiry.isExpired(state("gatewayplay"))).isTrue();
+  }
+
+  @Test public void close_stopsThread() {
+    expirations.put("gatewayplay", currentTimeMillis + 1000L);
+    SamplingKeyExpiry expiry = newExpiry();
+    expiry.start();
+
+    expiry.close();
+    assertThat(expiry.ticker.isShutdown()).isTrue();
+  }
+
+  @Test public void close_stillExpiresConfiguredKeys() {
+    expirations.put("gatewayplay", currentTimeMillis + 1000L);
+    SamplingKeyExpiry expiry = newExpiry();
+    expiry.start();
+    expiry.close();
+    assertThat(expiry.isExpired(state("gatewayplay"))).isFalse();
+
+    currentTimeMillis += 1000L; // no tick, as the thread stopped
+    assertThat(expiry.isExpired(state("gatewayplay"))).isTrue();
+    assertThat(expiry.isExpired(state("authcache"))).isFalse();
+  }
+
+  @Test public void noExpirations_noThread() {
+    SamplingKeyExpiry expiry = newExpiry();
+
+    assertThat(expiry.isExpired(state("gatewayplay").parameter("ttl", "1"))).isFalse();
+    assertThat(expiry.ticker).isNull();
+  }
+
+  @Test public void extractor_passesThroughExpiredKeys() {
+    SecondarySampling secondarySampling = SecondarySampling.newBuilder()
+        .propagationFactory(B3SinglePropagation.FACTORY)
+        .secondarySampler((request, state) -> true)
+        .expiresAt("gatewayplay", System.currentTimeMillis() - 1000L)
+        .build();
+    FakeHttpRequest.Client clientRequest = new FakeHttpRequest.Client("/play");
+    FakeHttpRequest.Server serverRequest = new FakeHttpRequest.Server(clientRequest);
+    serverRequest.header("b3", "0");
+    serverRequest.header("sampling",
+        "gatewayplay;ttl=2;spanId=000000000000000a,authcache;exp=1;spanId=000000000000000b,links");
+
+    TraceContextOrSamplingFlags extracted =
+        secondarySampling.extractor(HttpServerRequest::header).extract(serverRequest);
+    SecondarySamplingDecisions decisions = (SecondarySamplingDecisions) extracted.extra().get(0);
+    assertThat(decisions.asReadOnlyMap().values()).containsExactly(false, false, true);
+
+    TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L)
+        .addExtra(decisions).build();
+    Injector<HttpClientRequest> injector = secondarySampling.injector(HttpClientRequest::header);
+    injector.inject(context, clientRequest);
+    assertThat(clientRequest.header("sampling"))
+        .isEqualTo("gatewayplay;ttl=2;spanId=000000000000000a,"
+            + "authcache;exp=1;spanId=000000000000000b,"
+            + "links;spanId=" + context.spanIdString());
+  }
+
+  @Test public void extractor_doesntRecordExpiredProvisionedKeys() {
+    SecondarySampling secondarySampling = SecondarySampling.newBuilder()
+        .propagationFactory(B3SinglePropagation.FACTORY)
+        .secondarySampler((request, state) -> true)
+        .provisioner((request, callback) -> {
+          callback.addSamplingState(SecondarySamplingState.create("gatewayplay"), true);
+          callback.addSamplingState(SecondarySamplingState.create(
+              MutableSecondarySamplingState.create("authcache").parameter("exp", "1")), true);
+          callback.addSamplingState(SecondarySamplingState.create("links"), true);
+        })
+        .expiresAt("gatewayplay", System.currentTimeMillis() - 1000L)
+        .build();
+    FakeHttpRequest.Server serverRequest =
+        new FakeHttpRequest.Server(new FakeHttpRequest.Client("/play"));
+    serverRequest.header("b3", "0");
+
+    try {
+      TraceContextOrSamplingFlags extracted =
+          secondarySampling.extractor(HttpServerRequest::header).extract(serverRequest);
+      SecondarySamplingDecisions decisions = (SecondarySamplingDecisions) extracted.extra().get(0);
+      assertThat(decisions.asReadOnlyMap().values()).containsExactly(false, false, true);
+    } finally {
+      secondarySampling.close();
+    }
+  }
+
+  SamplingKeyExpiry newExpiry() {
+    SamplingKeyExpiry expiry = new SamplingKeyExpiry(expirations);
+    expiry.currentTimeMillis = () -> currentTimeMillis;
+    return expiry;
+  }
+
+  static MutableSecondarySamplingState state(String samplingKey) {
+    return MutableSecondarySamplingState.create(samplingKey);
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * This caps ingest of each sampling key at the {@link TraceForwarder}, so a runaway key can't
+ * flood a participant's storage, and counts usage per sampling key for chargeback.
+ *
+ * <p>A sampling key can have a quota of spans per second, bytes per second, or both. Each quota is
+ * a token bucket that allows a burst of one second worth of data. Buckets are lock-free: each is a
+ * single {@link AtomicLong} updated with compare-and-set.
+ *
+ * <p>A span is only accepted if both buckets have room. When the byte bucket refuses a span, the
+ * token taken from the span bucket is given back, so that byte limited rejections don't use up
+ * the span budget.
+ *
+ * <p>Usage is counted for all sampling keys, whether or not they have a quota. Bytes are the size
+ * of the span encoded as JSON, regardless of the format sent to the destination.
+ */
+public final class SamplingKeyQuotas {
+  final Map<String, KeyQuota> keyToQuota = new ConcurrentHashMap<>();
+  LongSupplier nanoTime = System::nanoTime;
+
+  /**
+   * Sets a quota for the sampling key, replacing any prior one.
+   *
+   * @param spansPerSecond zero for no span rate limit
+   * @param bytesPerSecond zero for no byte rate limit
+   */
+  public SamplingKeyQuotas quota(String samplingKey, int spansPerSecond, long bytesPerSecond) {
+    if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+    if (spansPerSecond < 0) throw new IllegalArgumentException("spansPerSecond < 0");
+    if (bytesPerSecond < 0) throw new IllegalArgumentException("bytesPerSecond < 0");
+    KeyQuota quota = keyQuota(samplingKey);
+    quota.spans = spansPerSecond != 0 ? new TokenBucket(spansPerSecond) : null;
+    quota.bytes = bytesPerSecond != 0 ? new TokenBucket(bytesPerSecond) : null;
+    return this;
+  }
+
+  /** Returns true and counts usage if the span fits within the quota of the sampling key. */
+  public boolean tryAcquire(String samplingKey, int sizeInBytes) {
+    KeyQuota quota = keyQuota(samplingKey);
+    long now = nanoTime.getAsLong();
+    TokenBucket spans = quota.spans, bytes = quota.bytes;
+    boolean accepted = spans == null || spans.tryAcquire(1L, now);
+    if (accepted && bytes != null && !bytes.tryAcquire(sizeInBytes, now)) {
+      if (spans != null) spans.release(1L);
+      accepted = false;
+    }
+    if (accepted) {
+      quota.spanCount.increment();
+      quota.byteCount.add(sizeInBytes);
+    } else {
+      quota.droppedSpanCount.increment();
+      quota.droppedByteCount.add(sizeInBytes);
+    }
+    return accepted;
+  }
+
+  /** Returns the usage of each sampling key since this was created, in first seen order. */
+  public Map<String, Usage> usage() {
+    Map<String, Usage> result = new LinkedHashMap<>();
+    keyToQuota.forEach((key, quota) -> result.put(key, new Usage(
+        quota.spanCount.sum(),
+        quota.byteCount.sum(),
+        quota.droppedSpanCount.sum(),
+        quota.droppedByteCount.sum()
+    )));
+    return result;
+  }
+
+  KeyQuota keyQuota(String samplingKey) {
+    KeyQuota result = keyToQuota.get(samplingKey);
+    if (result == null) result = keyToQuota.computeIfAbsent(samplingKey, k -> new KeyQuota());
+    return result;
+  }
+
+  /** Counts of spans and bytes forwarded for a sampling key, and those dropped by its quota. */
+  public static final class Usage {
+    final long spans, bytes, droppedSpans, droppedBytes;
+
+    Usage(long spans, long bytes, long droppedSpans, long droppedBytes) {
+      this.spans = spans;
+      this.bytes = bytes;
+      this.droppedSpans = droppedSpans;
+      this.droppedBytes = droppedBytes;
+    }
+
+    public long spans() {
+      return spans;
+    }
+
+    public long bytes() {
+      return bytes;
+    }
+
+    public long droppedSpans() {
+      return droppedSpans;
+    }
+
+    public long droppedBytes() {
+      return droppedBytes;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (o == this) return true;
+      if (!(o instanceof Usage)) return false;
+      Usage that = (Usage) o;
+      return spans == that.spans && bytes == that.bytes
+          && droppedSpans == that.droppedSpans && droppedBytes == that.droppedBytes;
+    }
+
+    @Override public int hashCode() {
+      int h = 1000003;
+      h ^= (int) (spans ^ (spans >>> 32));
+      h *= 1000003;
+      h ^= (int) (bytes ^ (bytes >>> 32));
+      h *= 1000003;
+      h ^= (int) (droppedSpans ^ (droppedSpans >>> 32));
+      h *= 1000003;
+      h ^= (int) (droppedBytes ^ (droppedBytes >>> 32));
+      return h;
+    }
+
+    @Override public String toString() {
+      return "Usage{spans=" + spans + ", bytes=" + bytes
+          + ", droppedSpans=" + droppedSpans + ", droppedBytes=" + droppedBytes + "}";
+    }
+  }
+
+  static final class KeyQuota {
+    volatile TokenBucket spans, bytes;
+    final LongAdder spanCount = new LongAdder(), byteCount = new LongAdder();
+    final LongAdder droppedSpanCount = new LongAdder(), droppedByteCount = new LongAdder();
+  }
+
+  /**
+   * A token bucket in the form of the generic cell rate algorithm: instead of counting tokens, the
+   * state is the time the bucket will be full again. Taking tokens pushes that time forward, and
+   * is refused if it would be further ahead than the burst allows.
+   */
+  static final class TokenBucket {
+    final double nanosPerToken;
+    final long burstNanos = TimeUnit.SECONDS.toNanos(1);
+    /** The time at which all taken tokens are replenished. */
+    final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+    TokenBucket(long tokensPerSecond) {
+      nanosPerToken = (double) TimeUnit.SECONDS.toNanos(1) / tokensPerSecond;
+    }
+
+    boolean tryAcquire(long tokens, long now) {
+      long cost = (long) Math.ceil(tokens * nanosPerToken);
+      while (true) {
+        long current = fullAt.get();
+        // Compare by difference, as nanoTime can be negative
+        long start = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+        long next = start + cost;
+        if (next - now > burstNanos) return false;
+        if (fullAt.compareAndSet(current, next)) return true;
+      }
+    }
+
+    /** Gives back tokens taken by {@link #tryAcquire(long, long)}. */
+    void release(long tokens) {
+      long cost = (long) Math.ceil(tokens * nanosPerToken);
+      while (true) {
+        long current = fullAt.get();
+        if (current == Long.MIN_VALUE) return;
+        if (fullAt.compareAndSet(current, current - cost)) return;
+      }
+    }
+  }
+}
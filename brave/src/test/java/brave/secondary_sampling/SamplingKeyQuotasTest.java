@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler.Cause;
+import brave.propagation.TraceContext;
+import brave.secondary_sampling.SamplingKeyQuotas.Usage;
+import brave.test.TestSpanHandler;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class SamplingKeyQuotasTest {
+  long nanoTime = -TimeUnit.SECONDS.toNanos(10); // nanoTime can be negative
+  SamplingKeyQuotas quotas = new SamplingKeyQuotas();
+
+  {
+    quotas.nanoTime = () -> nanoTime;
+  }
+
+  @Test public void spansPerSecond() {
+    quotas.quota("gatewayplay", 10, 0L);
+
+    int accepted = 0;
+    for (int i = 0; i < 20; i++) {
+      if (quotas.tryAcquire("gatewayplay", 100)) accepted++;
+    }
+    assertThat(accepted).isEqualTo(10);
+
+    nanoTime += TimeUnit.MILLISECONDS.toNanos(500); // half of the tokens come back
+    accepted = 0;
+    for (int i = 0; i < 20; i++) {
+      if (quotas.tryAcquire("gatewayplay", 100)) accepted++;
+    }
+    assertThat(accepted).isEqualTo(5);
+  }
+
+  @Test public void bytesPerSecond() {
+    quotas.quota("gatewayplay", 0, 1000L);
+
+    assertThat(quotas.tryAcquire("gatewayplay", 600)).isTrue();
+    assertThat(quotas.tryAcquire("gatewayplay", 600)).isFalse();
+    assertThat(quotas.tryAcquire("gatewayplay", 400)).isTrue();
+
+    nanoTime += TimeUnit.SECONDS.toNanos(1);
+    assertThat(quotas.tryAcquire("gatewayplay", 1000)).isTrue();
+  }
+
+  @Test public void byteLimitedRejection_keepsSpanToken() {
+    quotas.quota("gatewayplay", 2, 1000L);
+
+    assertThat(quotas.tryAcquire("gatewayplay", 2000)).isFalse(); // too many bytes
+    assertThat(quotas.tryAcquire("gatewayplay", 2000)).isFalse();
+    assertThat(quotas.tryAcquire("gatewayplay", 100)).isTrue();
+    assertThat(quotas.tryAcquire("gatewayplay", 100)).isTrue();
+    assertThat(quotas.tryAcquire("gatewayplay", 100)).isFalse(); // now out of spans
+  }
+
+  @Test public void unlimitedWithoutQuota() {
+    for (int i = 0; i < 1000; i++) {
+      assertThat(quotas.tryAcquire("authcache", 1000)).isTrue();
+    }
+  }
+
+  @Test public void usage() {
+    quotas.quota("gatewayplay", 1, 0L);
+
+    quotas.tryAcquire("gatewayplay", 100);
+    quotas.tryAcquire("gatewayplay", 200);
+    quotas.tryAcquire("authcache", 300);
+
+    assertThat(quotas.usage()).containsOnly(
+        entry("gatewayplay", new Usage(1L, 100L, 1L, 200L)),
+        entry("authcache", new Usage(1L, 300L, 0L, 0L))
+    );
+  }
+
+  @Test public void lockFree_exactUnderContention() throws Exception {
+    quotas.quota("gatewayplay", 1000, 0L);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicInteger accepted = new AtomicInteger();
+    for (int t = 0; t < 4; t++) {
+      executor.submit(() -> {
+        start.await();
+        for (int i = 0; i < 1000; i++) {
+          if (quotas.tryAcquire("gatewayplay", 1)) accepted.incrementAndGet();
+        }
+        return null;
+      });
+    }
+    start.countDown();
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(accepted.get()).isEqualTo(1000);
+    Usage usage = quotas.usage().get("gatewayplay");
+    assertThat(usage.spans()).isEqualTo(1000L);
+    assertThat(usage.droppedSpans()).isEqualTo(3000L);
+  }
+
+  @Test public void traceForwarder_capsKey() {
+    TestSpanHandler gatewayplay = new TestSpanHandler(), zipkin = new TestSpanHandler();
+    TraceForwarder traceForwarder = new TraceForwarder()
+        .configureSamplingKey("b3", zipkin)
+        .configureSamplingKey("gatewayplay", gatewayplay)
+        .quotas(quotas.quota("gatewayplay", 2, 0L));
+
+    for (int i = 1; i <= 5; i++) {
+      TraceContext context = TraceContext.newBuilder().traceId(i).spanId(i).build();
+      MutableSpan span = new MutableSpan(context, null);
+      span.tag("sampled_keys", "b3,gatewayplay");
+      traceForwarder.end(context, span, Cause.FINISHED);
+    }
+
+    assertThat(zipkin.spans()).hasSize(5);
+    assertThat(gatewayplay.spans()).hasSize(2);
+    assertThat(quotas.usage().get("gatewayplay").droppedSpans()).isEqualTo(3L);
+    assertThat(quotas.usage().get("b3").bytes()).isPositive();
+  }
+}
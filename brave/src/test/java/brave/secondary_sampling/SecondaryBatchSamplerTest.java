@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.http.HttpServerRequest;
+import brave.propagation.B3SinglePropagation;
+import brave.propagation.TraceContext.Extractor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SecondaryBatchSamplerTest {
+  List<List<String>> batches = new ArrayList<>();
+  /** Samples keys whose name ends with "play" */
+  SecondaryBatchSampler batchSampler = new SecondaryBatchSampler() {
+    @Override public long sampledKeys(Object request, List<MutableSecondarySamplingState> states) {
+      List<String> batch = new ArrayList<>();
+      long result = 0L;
+      for (int i = 0; i < states.size(); i++) {
+        batch.add(states.get(i).samplingKey());
+        if (isSampled(request, states.get(i))) result |= 1L << i;
+      }
+      batches.add(batch);
+      return result;
+    }
+
+    @Override public boolean isSampled(Object request, MutableSecondarySamplingState state) {
+      return state.samplingKey().endsWith("play");
+    }
+  };
+
+  FakeHttpRequest.Server request = new FakeHttpRequest.Server(new FakeHttpRequest.Client("/play"));
+
+  @Test public void extract_decidesKeysInOneCall() {
+    request.header("b3", "0");
+    request.header("sampling", "gatewayplay,authcache;ttl=1,links,replay");
+
+    SecondarySamplingDecisions decisions = extract(batchSampler);
+
+    // authcache is sampled by its TTL, so isn't passed to the sampler
+    assertThat(batches).containsExactly(Arrays.asList("gatewayplay", "links", "replay"));
+    assertThat(decisions.get(SecondarySamplingState.create("gatewayplay"))).isTrue();
+    assertThat(decisions.get(SecondarySamplingState.create("authcache"))).isTrue();
+    assertThat(decisions.get(SecondarySamplingState.create("links"))).isFalse();
+    assertThat(decisions.get(SecondarySamplingState.create("replay"))).isTrue();
+  }
+
+  @Test public void extract_splitsLargeBatches() {
+    StringBuilder sampling = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      if (i > 0) sampling.append(',');
+      sampling.append("key").append(i).append(i % 2 == 0 ? "play" : "");
+    }
+    request.header("b3", "0");
+    request.header("sampling", sampling.toString());
+
+    SecondarySamplingDecisions decisions = extract(batchSampler);
+
+    assertThat(batches).extracting(List::size).containsExactly(64, 36);
+    for (int i = 0; i < 32; i++) { // decisions are capped at 32 keys
+      String key = "key" + i + (i % 2 == 0 ? "play" : "");
+      assertThat(decisions.get(SecondarySamplingState.create(key))).isEqualTo(i % 2 == 0);
+    }
+  }
+
+  @Test public void batchSampler_adaptsPerKeySampler() {
+    SecondarySampler perKey = (request, state) -> state.samplingKey().endsWith("play");
+    SecondaryBatchSampler adapted = SecondarySamplingExtractor.batchSampler(perKey);
+
+    List<MutableSecondarySamplingState> states = Arrays.asList(
+        MutableSecondarySamplingState.create("gatewayplay"),
+        MutableSecondarySamplingState.create("links"),
+        MutableSecondarySamplingState.create("replay"));
+    assertThat(adapted.sampledKeys(request, states)).isEqualTo(0b101L);
+    assertThat(SecondarySamplingExtractor.batchSampler(batchSampler)).isSameAs(batchSampler);
+  }
+
+  SecondarySamplingDecisions extract(SecondarySampler sampler) {
+    Extractor<HttpServerRequest> extractor = SecondarySampling.newBuilder()
+        .propagationFactory(B3SinglePropagation.FACTORY)
+        .secondarySampler(sampler)
+        .build().extractor(HttpServerRequest::header);
+    return (SecondarySamplingDecisions) extractor.extract(request).extra().get(0);
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.Tracing;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler.Cause;
+import brave.propagation.B3SinglePropagation;
+import brave.propagation.TraceContext;
+import brave.test.TestSpanHandler;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.reporter.brave.ZipkinSpanHandler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class SecondaryReportingSpanHandlerTest {
+  TestSpanHandler spans = new TestSpanHandler();
+  SecondaryReportingSpanHandler handler = new SecondaryReportingSpanHandler(spans);
+  TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).build();
+
+  @Test public void reportsB3Sampled() {
+    end(context.toBuilder().sampled(true).build());
+
+    assertThat(spans).hasSize(1);
+  }
+
+  @Test public void reportsSecondarySampled() {
+    SecondarySamplingDecisions decisions = SecondarySamplingDecisions.FACTORY.create();
+    decisions.addSamplingState(SecondarySamplingState.create("links"), false);
+    decisions.addSamplingState(SecondarySamplingState.create("gatewayplay"), true);
+
+    end(context.toBuilder().sampled(false).sampledLocal(true).addExtra(decisions).build());
+
+    assertThat(spans).hasSize(1);
+  }
+
+  @Test public void dropsWhenNoSecondaryKeySampled() {
+    SecondarySamplingDecisions decisions = SecondarySamplingDecisions.FACTORY.create();
+    decisions.addSamplingState(SecondarySamplingState.create("links"), false);
+
+    end(context.toBuilder().sampled(false).sampledLocal(true).addExtra(decisions).build());
+    end(context.toBuilder().sampledLocal(true).build()); // no decisions at all
+
+    assertThat(spans).isEmpty();
+  }
+
+  @Test public void flags_followMerge() {
+    SecondarySamplingDecisions ours = SecondarySamplingDecisions.FACTORY.create();
+    SecondarySamplingDecisions theirs = SecondarySamplingDecisions.FACTORY.create();
+    theirs.addSamplingState(SecondarySamplingState.create("gatewayplay"), true);
+    assertThat(ours.sampledLocal()).isFalse();
+
+    ours.mergeStateKeepingOursOnConflict(theirs);
+
+    assertThat(ours.sampledLocal()).isTrue();
+  }
+
+  @Test public void flags_notVisibleAsSamplingKey() {
+    SecondarySamplingDecisions decisions = SecondarySamplingDecisions.FACTORY.create();
+    decisions.addSamplingState(SecondarySamplingState.create("gatewayplay"), true);
+
+    assertThat(decisions.asReadOnlyMap())
+        .containsOnly(entry(SecondarySamplingState.create("gatewayplay"), true));
+    assertThat(SecondarySamplingInjector.serializeWithSpanId(decisions, "a"))
+        .doesNotContain(SecondarySamplingDecisions.SAMPLED_LOCAL.samplingKey());
+  }
+
+  /** Copies of the decisions made for new spans skip merge, so flags are carried in the state */
+  @Test public void flags_followCopiesForNewSpans() {
+    List<Span> reported = new ArrayList<>();
+    Tracing.Builder builder = Tracing.newBuilder()
+        .addSpanHandler(ZipkinSpanHandler.create(reported::add));
+    SecondarySampling.newBuilder()
+        .propagationFactory(B3SinglePropagation.FACTORY)
+        .secondarySampler((request, state) -> false)
+        .build().customize(builder);
+
+    SecondarySamplingDecisions decisions = SecondarySamplingDecisions.FACTORY.create();
+    decisions.addSamplingState(SecondarySamplingState.create("gatewayplay"), true);
+    try (Tracing tracing = builder.build()) {
+      brave.Span parent = tracing.tracer().toSpan(context.toBuilder().sampled(false)
+          .sampledLocal(true).addExtra(decisions).build()).start();
+      brave.Span child = tracing.tracer().newChild(parent.context()).start();
+      tracing.tracer().newChild(child.context()).start().finish();
+      child.finish();
+      parent.finish();
+    }
+
+    assertThat(reported).hasSize(3);
+  }
+
+  @Test public void customize_gatesZipkinSpanHandler() {
+    List<Span> reported = new ArrayList<>();
+    Tracing.Builder builder = Tracing.newBuilder()
+        .addSpanHandler(ZipkinSpanHandler.create(reported::add));
+
+    SecondarySampling.newBuilder()
+        .propagationFactory(B3SinglePropagation.FACTORY)
+        .secondarySampler((request, state) -> false)
+        .build().customize(builder);
+
+    assertThat(builder.spanHandlers())
+        .extracting(handler -> handler.getClass().getSimpleName())
+        .containsExactly("SecondarySamplingSpanHandler", "SecondaryReportingSpanHandler");
+
+    try (Tracing tracing = builder.build()) {
+      // recorded, but neither B3 nor secondary sampled
+      TraceContext unsampled =
+          context.toBuilder().spanId(3L).sampled(false).sampledLocal(true).build();
+      tracing.tracer().toSpan(unsampled).start().finish();
+      tracing.tracer().toSpan(context.toBuilder().sampled(true).build()).start().finish();
+    }
+
+    assertThat(reported).extracting(Span::id).containsExactly(context.spanIdString());
+  }
+
+  @Test public void customize_secondaryReporterSeparatesLanes() {
+    List<Span> primary = new ArrayList<>(), secondary = new ArrayList<>();
+    Tracing.Builder builder = Tracing.newBuilder()
+        .addSpanHandler(ZipkinSpanHandler.create(primary::add));
+
+    SecondarySampling.newBuilder()
+        .propagationFactory(B3SinglePropagation.FACTORY)
+        .secondarySampler((request, state) -> false)
+        .secondaryReporter(secondary::add)
+        .build().customize(builder);
+
+    SecondarySamplingDecisions decisions = SecondarySamplingDecisions.FACTORY.create();
+    decisions.addSamplingState(SecondarySamplingState.create("gatewayplay"), true);
+    try (Tracing tracing = builder.build()) {
+      tracing.tracer().toSpan(context.toBuilder().sampled(true).build()).start().finish();
+      tracing.tracer().toSpan(context.toBuilder().spanId(3L).sampled(false).sampledLocal(true)
+          .addExtra(decisions).build()).start().finish();
+      tracing.tracer().toSpan(context.toBuilder().spanId(4L).sampled(false).sampledLocal(true)
+          .build()).start().finish();
+    }
+
+    assertThat(primary).extracting(Span::id).containsExactly(context.spanIdString());
+    assertThat(secondary).extracting(Span::id).containsExactly("0000000000000003");
+  }
+
+  void end(TraceContext context) {
+    handler.end(context, new MutableSpan(context, null), Cause.FINISHED);
+  }
+}
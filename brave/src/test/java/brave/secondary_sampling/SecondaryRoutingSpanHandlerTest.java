@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.Tracing;
+import brave.propagation.B3SinglePropagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.reporter.brave.ZipkinSpanHandler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SecondaryRoutingSpanHandlerTest {
+  List<Span> zipkin = new ArrayList<>(), gatewayplay = new ArrayList<>();
+  List<Span> authcache = new ArrayList<>();
+
+  Tracing.Builder tracingBuilder = Tracing.newBuilder()
+      .addSpanHandler(ZipkinSpanHandler.create(zipkin::add));
+  SecondarySamplingDecisions decisions = SecondarySamplingDecisions.FACTORY.create();
+
+  {
+    SecondarySampling.newBuilder()
+        .propagationFactory(B3SinglePropagation.FACTORY)
+        .secondarySampler((request, state) -> false)
+        .samplingKeyReporter("gatewayplay", gatewayplay::add)
+        .samplingKeyReporter("authcache", authcache::add)
+        .build().customize(tracingBuilder);
+  }
+
+  @Test public void routesToSamplingKeyReporters() {
+    decisions.addSamplingState(state("gatewayplay", "0000000000000002"), true);
+    decisions.addSamplingState(state("links", "0000000000000002"), true); // not routed
+    decisions.addSamplingState(state("authcache", "0000000000000002"), false);
+
+    finishChildOfRemote(true);
+
+    assertThat(gatewayplay).hasSize(1);
+    assertThat(authcache).isEmpty();
+    assertThat(gatewayplay.get(0).tags()).doesNotContainKey("sampled_keys");
+
+    // routed sampling keys are left out of the tag, so a forwarder won't report them again
+    assertThat(zipkin.get(0).tags()).containsEntry("sampled_keys", "b3,links");
+  }
+
+  @Test public void relinksToUpstreamSpanId() {
+    decisions.addSamplingState(state("gatewayplay", "0000000000000002"), true);
+    decisions.addSamplingState(state("authcache", "000000000000000a"), true);
+
+    finishChildOfRemote(false);
+
+    assertThat(gatewayplay.get(0).parentId()).isEqualTo("0000000000000002");
+    assertThat(gatewayplay.get(0).tags()).doesNotContainKey("linkedParentId");
+
+    assertThat(authcache.get(0).parentId()).isEqualTo("000000000000000a");
+    assertThat(authcache.get(0).tags()).containsEntry("linkedParentId", "0000000000000002");
+    assertThat(authcache.get(0).id()).isEqualTo(gatewayplay.get(0).id());
+  }
+
+  @Test public void ignoresUnsampledSpans() {
+    decisions.addSamplingState(state("gatewayplay", "0000000000000002"), false);
+
+    finishChildOfRemote(true);
+
+    assertThat(zipkin).hasSize(1);
+    assertThat(gatewayplay).isEmpty();
+  }
+
+  /** Routed keys are already reported, so they shouldn't leak unsampled spans to Zipkin. */
+  @Test public void routedOnly_notReportedToZipkin() {
+    Map<String, String> headers = new LinkedHashMap<>();
+    headers.put("b3", "0000000000000001-0000000000000002-0");
+    headers.put("sampling", "gatewayplay;ttl=1,authcache;ttl=1");
+
+    try (Tracing tracing = tracingBuilder.build()) {
+      TraceContextOrSamplingFlags extracted =
+          tracing.propagation().extractor(Map<String, String>::get).extract(headers);
+      tracing.tracer().nextSpan(extracted).start().finish();
+    }
+
+    assertThat(gatewayplay).hasSize(1);
+    assertThat(authcache).hasSize(1);
+    assertThat(zipkin).isEmpty();
+  }
+
+  void finishChildOfRemote(boolean sampled) {
+    TraceContext remote = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(sampled)
+        .sampledLocal(decisions.sampledLocal()) // as done by the extractor
+        .addExtra(decisions).build();
+    try (Tracing tracing = tracingBuilder.build()) {
+      tracing.tracer().nextSpan(TraceContextOrSamplingFlags.create(remote)).start().finish();
+    }
+  }
+
+  static SecondarySamplingState state(String samplingKey, String spanId) {
+    return SecondarySamplingState.create(
+        MutableSecondarySamplingState.create(samplingKey).parameter("spanId", spanId));
+  }
+}
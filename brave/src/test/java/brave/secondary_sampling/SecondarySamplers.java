@@ -16,6 +16,7 @@ package brave.secondary_sampling;
 import brave.sampler.Matcher;
 import brave.sampler.Matchers;
 import brave.sampler.Sampler;
+import java.util.concurrent.ThreadLocalRandom;
 
 public final class SecondarySamplers {
   /** Triggers always when upstream sampled. Similar to b3 sampling */
@@ -68,7 +69,11 @@ public final class SecondarySamplers {
 
     @Override public boolean isSampled(Object request, MutableSecondarySamplingState state) {
       if (matcher.matches(request)) {
-        if (Boolean.TRUE.equals(sampler.isSampled(0L))) {
+        // At the root there is no trace ID yet. Use a random one, so that ratio samplers still
+        // apply their rate instead of deciding the same way for every root.
+        long traceId = state.traceId();
+        if (traceId == 0L) traceId = ThreadLocalRandom.current().nextLong();
+        if (Boolean.TRUE.equals(sampler.isSampled(traceId))) {
           state.ttl(ttl); // Set any TTL
         }
         return true;
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.sampler.BoundarySampler;
+import brave.sampler.Sampler;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SecondarySamplersTest {
+  @Test public void active_appliesRateAtRoot() {
+    SecondarySampler sampler = SecondarySamplers.active(BoundarySampler.create(0.5f), 1);
+
+    int withTtl = 0;
+    for (int i = 0; i < 1000; i++) {
+      MutableSecondarySamplingState state = MutableSecondarySamplingState.create("gatewayplay");
+      assertThat(sampler.isSampled(null, state)).isTrue(); // a match always records
+      if (state.ttl() == 1) withTtl++;
+    }
+    assertThat(withTtl).isBetween(400, 600);
+  }
+
+  @Test public void active_usesUpstreamTraceId() {
+    Sampler onlyZero = new Sampler() {
+      @Override public boolean isSampled(long traceId) {
+        return traceId == 0L; // would always sample if passed the absent trace ID
+      }
+    };
+    MutableSecondarySamplingState state = MutableSecondarySamplingState.create("gatewayplay");
+    state.traceId = 1L;
+
+    assertThat(SecondarySamplers.active(onlyZero, 1).isSampled(null, state)).isTrue();
+    assertThat(state.ttl()).isZero();
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.http.HttpServerRequest;
+import brave.propagation.B3SinglePropagation;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContextOrSamplingFlags;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import zipkin2.reporter.ReporterMetrics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SecondarySamplingCircuitBreakerTest {
+  long nanoTime;
+  SecondarySamplingCircuitBreaker breaker = SecondarySamplingCircuitBreaker.newBuilder()
+      .queuedSpans(1000, 500)
+      .droppedSpansPerSecond(100, 10)
+      .priorities(SamplingKeyPriorities.newBuilder()
+          .priority("incident", 10)
+          .priority("topology", -1)
+          .build())
+      .build();
+  ReporterMetrics metrics = breaker.reporterMetrics(ReporterMetrics.NOOP_METRICS);
+
+  {
+    breaker.nanoTime = () -> nanoTime;
+    breaker.lastEvaluation.set(new SecondarySamplingCircuitBreaker.Evaluation(nanoTime, 0L));
+  }
+
+  @Test public void notSheddingByDefault() {
+    assertThat(breaker.isShedding("topology")).isFalse();
+    assertThat(breaker.isShedding("gatewayplay")).isFalse();
+  }
+
+  @Test public void queueDepth_shedsLowestPriorityFirst() {
+    metrics.updateQueuedSpans(1000);
+
+    tick();
+    assertThat(breaker.isShedding("topology")).isTrue();
+    assertThat(breaker.isShedding("gatewayplay")).isFalse(); // default priority is zero
+
+    tick();
+    assertThat(breaker.isShedding("gatewayplay")).isTrue();
+    assertThat(breaker.isShedding("incident")).isFalse();
+
+    tick();
+    assertThat(breaker.isShedding("incident")).isTrue();
+  }
+
+  @Test public void hysteresis() {
+    metrics.updateQueuedSpans(1000);
+    tick();
+    tick();
+
+    metrics.updateQueuedSpans(600); // between thresholds: hold
+    tick();
+    assertThat(breaker.isShedding("gatewayplay")).isTrue();
+
+    metrics.updateQueuedSpans(100); // restore one priority per evaluation
+    tick();
+    assertThat(breaker.isShedding("gatewayplay")).isFalse();
+    assertThat(breaker.isShedding("topology")).isTrue();
+    tick();
+    assertThat(breaker.isShedding("topology")).isFalse();
+  }
+
+  @Test public void droppedSpanRate() {
+    metrics.incrementSpansDropped(50);
+    tick();
+    assertThat(breaker.isShedding("topology")).isFalse();
+
+    metrics.incrementSpansDropped(150);
+    tick();
+    assertThat(breaker.isShedding("topology")).isTrue();
+
+    tick(); // no drops in the last interval
+    assertThat(breaker.isShedding("topology")).isFalse();
+  }
+
+  @Test public void cpuLoad() {
+    double[] cpu = {0.5};
+    breaker = SecondarySamplingCircuitBreaker.newBuilder().cpuLoad(() -> cpu[0], 0.9, 0.7).build();
+    breaker.nanoTime = () -> nanoTime;
+    breaker.lastEvaluation.set(new SecondarySamplingCircuitBreaker.Evaluation(nanoTime, 0L));
+
+    tick();
+    assertThat(breaker.isShedding("gatewayplay")).isFalse();
+
+    cpu[0] = 0.95;
+    tick();
+    assertThat(breaker.isShedding("gatewayplay")).isTrue();
+  }
+
+  @Test public void evaluatesAtMostOncePerInterval() {
+    metrics.updateQueuedSpans(1000);
+    tick();
+
+    nanoTime += TimeUnit.MILLISECONDS.toNanos(500);
+    assertThat(breaker.isShedding("gatewayplay")).isFalse(); // didn't escalate yet
+  }
+
+  @Test public void extractor_passesThroughShedKeys() {
+    SecondarySampling secondarySampling = SecondarySampling.newBuilder()
+        .propagationFactory(B3SinglePropagation.FACTORY)
+        .secondarySampler((request, state) -> true)
+        .circuitBreaker(breaker)
+        .build();
+    Extractor<HttpServerRequest> extractor =
+        secondarySampling.extractor(HttpServerRequest::header);
+    FakeHttpRequest.Server request =
+        new FakeHttpRequest.Server(new FakeHttpRequest.Client("/play"));
+    request.header("b3", "0");
+    request.header("sampling", "topology;ttl=2,gatewayplay");
+
+    metrics.updateQueuedSpans(1000);
+    tick();
+
+    TraceContextOrSamplingFlags extracted = extractor.extract(request);
+    SecondarySamplingDecisions extra = (SecondarySamplingDecisions) extracted.extra().get(0);
+    assertThat(extracted.sampledLocal()).isTrue();
+    assertThat(extra.asReadOnlyMap())
+        .containsEntry(SecondarySamplingState.create("topology"), false) // not recorded
+        .containsEntry(SecondarySamplingState.create("gatewayplay"), true);
+    // passed through unchanged, so the TTL is left for nodes that can record
+    assertThat(extra.asReadOnlyMap().keySet())
+        .filteredOn(s -> s.samplingKey().equals("topology"))
+        .extracting(SecondarySamplingState::ttl)
+        .containsExactly(2);
+  }
+
+  void tick() {
+    nanoTime += TimeUnit.SECONDS.toNanos(1);
+    breaker.isShedding("any"); // triggers evaluation
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.Span;
+import brave.Tracing;
+import brave.http.HttpClientRequest;
+import brave.http.HttpServerRequest;
+import brave.propagation.B3SinglePropagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContext.Injector;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.test.TestSpanHandler;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SecondarySamplingMaxSpansTest {
+  SecondarySampling secondarySampling = SecondarySampling.newBuilder()
+      .propagationFactory(B3SinglePropagation.FACTORY)
+      .secondarySampler((request, state) -> true)
+      .maxSpans("authcache", 2)
+      .build();
+  Extractor<HttpServerRequest> extractor = secondarySampling.extractor(HttpServerRequest::header);
+  Injector<HttpClientRequest> injector = secondarySampling.injector(HttpClientRequest::header);
+
+  FakeHttpRequest.Client clientRequest = new FakeHttpRequest.Client("/play");
+  FakeHttpRequest.Server serverRequest = new FakeHttpRequest.Server(clientRequest);
+  TestSpanHandler spans = new TestSpanHandler();
+
+  @Test public void extract_lowerOfConfiguredAndPropagated() {
+    serverRequest.header("b3", "0");
+    serverRequest.header("sampling", "gatewayplay;maxSpans=3,authcache;maxSpans=5,links");
+
+    SecondarySamplingDecisions decisions = extract();
+    assertThat(state(decisions, "gatewayplay").remainingSpans()).isEqualTo(3);
+    assertThat(state(decisions, "authcache").remainingSpans()).isEqualTo(2);
+    assertThat(state(decisions, "links").remainingSpans()).isEqualTo(-1);
+  }
+
+  @Test public void extract_exhaustedUpstreamIsPassedThrough() {
+    serverRequest.header("b3", "0");
+    serverRequest.header("sampling", "gatewayplay;maxSpans=0;spanId=000000000000000a");
+
+    SecondarySamplingDecisions decisions = extract();
+    assertThat(decisions.get(SecondarySamplingState.create("gatewayplay"))).isFalse();
+    assertThat(decisions.sampledLocal()).isFalse();
+  }
+
+  @Test public void stopsRecordingKeyOnceExhausted() {
+    serverRequest.header("b3", "0");
+    serverRequest.header("sampling", "gatewayplay;maxSpans=2,links");
+
+    Tracing.Builder builder = Tracing.newBuilder().addSpanHandler(spans);
+    secondarySampling.customize(builder);
+    try (Tracing tracing = builder.build()) {
+      Span server = tracing.tracer().nextSpan(extractor.extract(serverRequest)).start();
+      for (int i = 0; i < 2; i++) {
+        tracing.tracer().newChild(server.context()).start().finish(); // shares the count
+      }
+      server.finish();
+    }
+
+    // spans are counted as they are created: the server and first child, in this case
+    assertThat(spans).extracting(s -> s.tag("sampled_keys"))
+        .containsExactly("gatewayplay,links", "links", "gatewayplay,links");
+  }
+
+  @Test public void doesntRecordSpansOverTheLimit() {
+    serverRequest.header("b3", "0");
+    serverRequest.header("sampling", "gatewayplay;maxSpans=2");
+
+    Tracing.Builder builder = Tracing.newBuilder().addSpanHandler(spans);
+    secondarySampling.customize(builder);
+    try (Tracing tracing = builder.build()) {
+      Span server = tracing.tracer().nextSpan(extractor.extract(serverRequest)).start();
+      for (int i = 0; i < 5; i++) {
+        Span child = tracing.tracer().newChild(server.context()).start();
+        assertThat(child.isNoop()).isEqualTo(i > 0);
+        child.finish();
+      }
+      server.finish();
+    }
+
+    assertThat(spans).extracting(s -> s.tag("sampled_keys"))
+        .containsExactly("gatewayplay", "gatewayplay");
+  }
+
+  /** Each request takes half of the spans left, so fan-out can't multiply the limit. */
+  @Test public void inject_dividesRemainingSpansBetweenRequests() {
+    serverRequest.header("b3", "0");
+    serverRequest.header("sampling", "gatewayplay;maxSpans=8");
+
+    Tracing.Builder builder = Tracing.newBuilder().addSpanHandler(spans);
+    secondarySampling.customize(builder);
+    try (Tracing tracing = builder.build()) {
+      Span server = tracing.tracer().nextSpan(extractor.extract(serverRequest)).start();
+      for (String expected : new String[] {"3", "1", "0", "0"}) {
+        Span client = tracing.tracer().newChild(server.context()).start();
+        FakeHttpRequest.Client request = new FakeHttpRequest.Client("/play");
+        injector.inject(client.context(), request);
+        assertThat(request.header("sampling")).startsWith("gatewayplay;maxSpans=" + expected);
+        client.finish();
+      }
+      server.finish();
+    }
+
+    // 4 recorded here and 3 + 1 sent downstream is the limit of 8
+    assertThat(spans).hasSize(4);
+  }
+
+  @Test public void inject_sendsRemainingSpans() {
+    SecondarySamplingState state = SecondarySamplingState.create(MutableSecondarySamplingState
+        .create("gatewayplay").parameter("maxSpans", "5").parameter("spanId", "000000000000000a"));
+    state.remainingSpans = new AtomicInteger(2);
+    SecondarySamplingDecisions decisions = SecondarySamplingDecisions.FACTORY.create();
+    decisions.addSamplingState(state, true);
+    TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).addExtra(decisions)
+        .build();
+
+    injector.inject(context, clientRequest);
+    assertThat(clientRequest.header("sampling"))
+        .isEqualTo("gatewayplay;maxSpans=1;spanId=" + context.spanIdString());
+
+    // once exhausted, the upstream span ID is passed through so hierarchy can be repaired
+    assertThat(state.tryRecordSpan()).isTrue();
+    assertThat(state.tryRecordSpan()).isFalse();
+    injector.inject(context, clientRequest);
+    assertThat(clientRequest.header("sampling"))
+        .isEqualTo("gatewayplay;maxSpans=0;spanId=000000000000000a");
+  }
+
+  @Test public void inject_exhaustedWithoutUpstreamSpanId() {
+    SecondarySamplingState state = SecondarySamplingState.create("gatewayplay");
+    state.remainingSpans = new AtomicInteger(0);
+    SecondarySamplingDecisions decisions = SecondarySamplingDecisions.FACTORY.create();
+    decisions.addSamplingState(state, true);
+    TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).addExtra(decisions)
+        .build();
+
+    injector.inject(context, clientRequest);
+    assertThat(clientRequest.header("sampling")).isEqualTo("gatewayplay;maxSpans=0");
+  }
+
+  SecondarySamplingDecisions extract() {
+    TraceContextOrSamplingFlags extracted = extractor.extract(serverRequest);
+    return (SecondarySamplingDecisions) extracted.extra().get(0);
+  }
+
+  static SecondarySamplingState state(SecondarySamplingDecisions decisions, String samplingKey) {
+    for (SecondarySamplingState state : decisions.asReadOnlyMap().keySet()) {
+      if (state.samplingKey().equals(samplingKey)) return state;
+    }
+    throw new AssertionError(samplingKey + " not found");
+  }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.Tags;
+import brave.handler.MutableSpan;
+import brave.handler.MutableSpanBytesEncoder;
+import brave.handler.SpanHandler;
+import brave.internal.Nullable;
+import brave.propagation.TraceContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Sender;
+
+/**
+ * This is an append-only log of encoded spans, partitioned by sampling key, that lets the {@link
+ * TraceForwarder} keep accepting data for a participant whose backend is down.
+ *
+ * <p>Each sampling key has its own directory of fixed-size segment files, written through a
+ * memory-mapped buffer. Spooled data is off-heap and only costs disk, so an outage of one
+ * participant doesn't grow forwarder heap or hold back other sampling keys. Segments are removed
+ * once the key exceeds its {@link #maxBytes(long) size} or {@link #maxAge(long, TimeUnit) age}
+ * retention, whether or not they were delivered.
+ *
+ * <p>Delivery is tracked independently per destination with a checkpoint file. {@link
+ * #drain(String, String, Sender, int)} resumes from that checkpoint, including after a restart, and
+ * only advances it once the {@link Sender} accepted a batch.
+ *
+ * <h3>Segment format</h3>
+ * Segment files are named by their base offset, which is the sum of the bytes written to all prior
+ * segments of the same key. Each record is a four byte length, an eight byte timestamp in epoch
+ * milliseconds and a {@link Encoding#JSON JSON} encoded span. The length is written last, so a
+ * zero length marks the end of written data, even after a crash.
+ */
+public final class SpanSpool implements Closeable {
+  static final Logger LOG = Logger.getLogger(SpanSpool.class.getName());
+  static final Pattern SAFE_NAME = Pattern.compile("[a-zA-Z0-9_][a-zA-Z0-9_.-]*");
+  static final String SEGMENT_SUFFIX = ".segment", CHECKPOINT_SUFFIX = ".checkpoint";
+  static final int RECORD_OVERHEAD = 4 + 8;
+
+  final Path directory;
+  final MutableSpanBytesEncoder encoder = MutableSpanBytesEncoder.zipkinJsonV2(Tags.ERROR);
+  final Map<String, KeyLog> keyLogs = new ConcurrentHashMap<>();
+  int segmentBytes = 16 * 1024 * 1024;
+  long maxBytes = 1024L * 1024 * 1024, maxAgeMillis = TimeUnit.DAYS.toMillis(1);
+  LongSupplier clock = System::currentTimeMillis;
+
+  public SpanSpool(Path directory) {
+    if (directory == null) throw new NullPointerException("directory == null");
+    this.directory = directory;
+  }
+
+  /** Size of each segment file. A span larger than this can't be spooled. */
+  public SpanSpool segmentBytes(int segmentBytes) {
+    if (segmentBytes <= RECORD_OVERHEAD) {
+      throw new IllegalArgumentException("segmentBytes <= " + RECORD_OVERHEAD);
+    }
+    this.segmentBytes = segmentBytes;
+    return this;
+  }
+
+  /** When the segments of one sampling key exceed this size, the oldest are deleted. */
+  public SpanSpool maxBytes(long maxBytes) {
+    if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes <= 0");
+    this.maxBytes = maxBytes;
+    return this;
+  }
+
+  /** Segments whose newest span was spooled longer ago than this are deleted. */
+  public SpanSpool maxAge(long maxAge, TimeUnit unit) {
+    if (maxAge <= 0) throw new IllegalArgumentException("maxAge <= 0");
+    this.maxAgeMillis = unit.toMillis(maxAge);
+    return this;
+  }
+
+  /**
+   * Returns a handler to {@link TraceForwarder#configureSamplingKey(String, SpanHandler) configure}
+   * for the given sampling key, which spools spans instead of sending them.
+   */
+  public SpanHandler spanHandler(String samplingKey) {
+    KeyLog keyLog = keyLog(samplingKey);
+    return new SpanHandler() {
+      @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+        keyLog.append(encoder.encode(span));
+        return true;
+      }
+
+      @Override public String toString() {
+        return "SpoolingSpanHandler{" + samplingKey + "}";
+      }
+    };
+  }
+
+  /**
+   * Like {@link #spanHandler(String)}, except the offset of each spooled span is added to the
+   * index, so that recent traces can be read back with {@link #read(String, long)}.
+   */
+  public SpanHandler spanHandler(String samplingKey, RecentTraceIndex index) {
+    if (index == null) throw new NullPointerException("index == null");
+    KeyLog keyLog = keyLog(samplingKey);
+    return new SpanHandler() {
+      @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+        long offset = keyLog.append(encoder.encode(span));
+        index.add(samplingKey, context.traceIdHigh(), context.traceId(), offset);
+        return true;
+      }
+
+      @Override public String toString() {
+        return "IndexingSpoolingSpanHandler{" + samplingKey + "}";
+      }
+    };
+  }
+
+  /** Appends an encoded span to the log of the sampling key, returning its offset. */
+  public long append(String samplingKey, byte[] encodedSpan) {
+    return keyLog(samplingKey).append(encodedSpan);
+  }
+
+  /**
+   * Returns the encoded span at an offset returned by {@link #append(String, byte[])}, or null if
+   * it was deleted by retention.
+   */
+  @Nullable public byte[] read(String samplingKey, long offset) {
+    return keyLog(samplingKey).read(offset);
+  }
+
+  /** Returns the offset of the next span the destination will receive for this sampling key. */
+  public long checkpoint(String samplingKey, String destination) {
+    return keyLog(samplingKey).checkpoint(validateName(destination, "destination"));
+  }
+
+  /**
+   * Sends spans spooled for this sampling key to the destination, in batches of up to {@code
+   * maxSpans}, until all were delivered or the sender fails. The checkpoint of the destination is
+   * advanced after each successful batch.
+   *
+   * @return count of spans delivered
+   */
+  public int drain(String samplingKey, String destination, Sender sender, int maxSpans) {
+    if (sender == null) throw new NullPointerException("sender == null");
+    if (sender.encoding() != Encoding.JSON) {
+      throw new IllegalArgumentException("sender encoding must be JSON, not " + sender.encoding());
+    }
+    if (maxSpans <= 0) throw new IllegalArgumentException("maxSpans <= 0");
+    KeyLog keyLog = keyLog(samplingKey);
+    validateName(destination, "destination");
+
+    int delivered = 0;
+    List<byte[]> batch = new ArrayList<>();
+    // Prevents concurrent drains to the same destination from sending the same spans twice
+    synchronized (keyLog.checkpointChannel(destination)) {
+      while (true) {
+        batch.clear();
+        long from = keyLog.checkpoint(destination);
+        long next = keyLog.read(from, maxSpans, batch);
+        if (batch.isEmpty()) return delivered;
+        try {
+          sender.sendSpans(batch).execute();
+        } catch (IOException | RuntimeException e) {
+          LOG.log(Level.FINE, "destination " + destination + " is unavailable", e);
+          return delivered;
+        }
+        keyLog.checkpoint(destination, next);
+        delivered += batch.size();
+      }
+    }
+  }
+
+  /** Deletes any segments outside retention. This also happens as new segments are created. */
+  public void applyRetention() {
+    for (KeyLog keyLog : keyLogs.values()) {
+      keyLog.applyRetention();
+    }
+  }
+
+  @Override public void close() {
+    for (KeyLog keyLog : keyLogs.values()) {
+      keyLog.close();
+    }
+    keyLogs.clear();
+  }
+
+  KeyLog keyLog(String samplingKey) {
+    validateName(samplingKey, "samplingKey");
+    return keyLogs.computeIfAbsent(samplingKey, k -> new KeyLog(directory.resolve(k)));
+  }
+
+  /** The log of one sampling key. Locking is per key, so keys don't contend with each other. */
+  final class KeyLog {
+    final Path directory;
+    /** Segments by base offset. The last entry is the one appended to. */
+    final TreeMap<Long, Segment> segments = new TreeMap<>();
+    final Map<String, FileChannel> checkpoints = new ConcurrentHashMap<>();
+
+    KeyLog(Path directory) {
+      this.directory = directory;
+      try {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+          for (Path file : files) {
+            String name = file.getFileName().toString();
+            long baseOffset = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            segments.put(baseOffset, Segment.recover(file, baseOffset));
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    synchronized long append(byte[] encodedSpan) {
+      int recordSize = RECORD_OVERHEAD + encodedSpan.length;
+      if (encodedSpan.length == 0 || recordSize > segmentBytes) {
+        throw new IllegalArgumentException("span size " + encodedSpan.length + " can't be spooled");
+      }
+      Segment segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+      if (segment == null || segment.buffer.capacity() - segment.writePosition < recordSize) {
+        segment = newSegment(segment == null ? 0L : segment.baseOffset + segment.writePosition);
+      }
+      return segment.append(encodedSpan, clock.getAsLong());
+    }
+
+    /** Reads up to {@code maxSpans} records, returning the offset after the last one read. */
+    synchronized long read(long offset, int maxSpans, List<byte[]> out) {
+      if (segments.isEmpty()) return offset;
+      // Skip data lost to retention
+      offset = Math.max(offset, segments.firstKey());
+      while (out.size() < maxSpans) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        Segment segment = entry.getValue();
+        int position = (int) (offset - segment.baseOffset);
+        if (position >= segment.writePosition) {
+          Long nextBase = segments.higherKey(entry.getKey());
+          if (nextBase == null) break; // caught up
+          offset = nextBase;
+          continue;
+        }
+        byte[] record = segment.read(position);
+        out.add(record);
+        offset += RECORD_OVERHEAD + record.length;
+      }
+      return offset;
+    }
+
+    synchronized byte[] read(long offset) {
+      Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+      if (entry == null) return null;
+      Segment segment = entry.getValue();
+      long position = offset - segment.baseOffset;
+      if (position >= segment.writePosition) return null;
+      return segment.read((int) position);
+    }
+
+    long checkpoint(String destination) {
+      try {
+        ByteBuffer value = ByteBuffer.allocate(8);
+        FileChannel channel = checkpointChannel(destination);
+        if (channel.read(value, 0L) < 8) return 0L;
+        return value.getLong(0);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    void checkpoint(String destination, long offset) {
+      try {
+        ByteBuffer value = ByteBuffer.allocate(8);
+        value.putLong(0, offset);
+        checkpointChannel(destination).write(value, 0L);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    FileChannel checkpointChannel(String destination) {
+      return checkpoints.computeIfAbsent(destination, d -> {
+        try {
+          return FileChannel.open(directory.resolve(d + CHECKPOINT_SUFFIX),
+              StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    }
+
+    Segment newSegment(long baseOffset) {
+      Path file = directory.resolve(String.format("%020d", baseOffset) + SEGMENT_SUFFIX);
+      Segment result;
+      try {
+        result = Segment.create(file, baseOffset, segmentBytes);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      segments.put(baseOffset, result);
+      applyRetention();
+      return result;
+    }
+
+    synchronized void applyRetention() {
+      long oldestAllowed = clock.getAsLong() - maxAgeMillis;
+      long totalBytes = 0L;
+      for (Segment segment : segments.values()) {
+        totalBytes += segment.buffer.capacity();
+      }
+      // Never delete the segment currently appended to
+      while (segments.size() > 1) {
+        Segment oldest = segments.firstEntry().getValue();
+        if (totalBytes <= maxBytes && oldest.newestTimestamp >= oldestAllowed) break;
+        segments.pollFirstEntry();
+        totalBytes -= oldest.buffer.capacity();
+        try {
+          Files.deleteIfExists(oldest.file);
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "could not delete " + oldest.file, e);
+        }
+      }
+    }
+
+    synchronized void close() {
+      for (FileChannel channel : checkpoints.values()) {
+        closeQuietly(channel);
+      }
+      for (Segment segment : segments.values()) {
+        segment.buffer.force();
+      }
+    }
+  }
+
+  static final class Segment {
+    static Segment create(Path file, long baseOffset, int size) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+          StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        return new Segment(file, baseOffset, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+      }
+    }
+
+    /** Maps an existing segment, finding where to resume appending. */
+    static Segment recover(Path file, long baseOffset) throws IOException {
+      try (FileChannel channel = FileChannel.open(file,
+          StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        Segment result = new Segment(file, baseOffset,
+            channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        MappedByteBuffer buffer = result.buffer;
+        int position = 0;
+        while (position + RECORD_OVERHEAD <= buffer.capacity()) {
+          int length = buffer.getInt(position);
+          if (length <= 0 || position + RECORD_OVERHEAD + length > buffer.capacity()) break;
+          result.newestTimestamp = buffer.getLong(position + 4);
+          position += RECORD_OVERHEAD + length;
+        }
+        result.writePosition = position;
+        return result;
+      }
+    }
+
+    final Path file;
+    final long baseOffset;
+    final MappedByteBuffer buffer;
+    int writePosition;
+    long newestTimestamp;
+
+    Segment(Path file, long baseOffset, MappedByteBuffer buffer) {
+      this.file = file;
+      this.baseOffset = baseOffset;
+      this.buffer = buffer;
+    }
+
+    long append(byte[] encodedSpan, long timestamp) {
+      int position = writePosition;
+      buffer.putLong(position + 4, timestamp);
+      ByteBuffer data = buffer.duplicate();
+      data.position(position + RECORD_OVERHEAD);
+      data.put(encodedSpan);
+      buffer.putInt(position, encodedSpan.length); // last, so readers never see a partial record
+      writePosition = position + RECORD_OVERHEAD + encodedSpan.length;
+      newestTimestamp = timestamp;
+      return baseOffset + position;
+    }
+
+    byte[] read(int position) {
+      byte[] result = new byte[buffer.getInt(position)];
+      ByteBuffer data = buffer.duplicate();
+      data.position(position + RECORD_OVERHEAD);
+      data.get(result);
+      return result;
+    }
+  }
+
+  static String validateName(String name, String title) {
+    if (name == null) throw new NullPointerException(title + " == null");
+    if (!SAFE_NAME.matcher(name).matches()) {
+      throw new IllegalArgumentException(title + " is not a safe file name: " + name);
+    }
+    return name;
+  }
+
+  static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler.Cause;
+import brave.propagation.TraceContext;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.reporter.Sender;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanSpoolTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  long now = 1000L;
+  FakeSender authcacheZipkin = new FakeSender();
+  SpanSpool spool;
+
+  @After public void close() {
+    if (spool != null) spool.close();
+  }
+
+  @Test public void drain_deliversInOrderAndAdvancesCheckpoint() throws IOException {
+    spool = newSpool();
+    for (int i = 1; i <= 5; i++) spool.append("authcache", span(i));
+
+    assertThat(spool.drain("authcache", "zipkin", authcacheZipkin, 2)).isEqualTo(5);
+    assertThat(authcacheZipkin.received).containsExactly("1", "2", "3", "4", "5");
+    assertThat(authcacheZipkin.batchSizes).containsExactly(2, 2, 1);
+
+    // nothing left to deliver
+    assertThat(spool.drain("authcache", "zipkin", authcacheZipkin, 2)).isZero();
+  }
+
+  @Test public void drain_keepsSpansWhileDestinationDown() throws IOException {
+    spool = newSpool();
+    spool.append("authcache", span(1));
+
+    authcacheZipkin.up = false;
+    assertThat(spool.drain("authcache", "zipkin", authcacheZipkin, 10)).isZero();
+    assertThat(spool.checkpoint("authcache", "zipkin")).isZero();
+
+    spool.append("authcache", span(2));
+
+    authcacheZipkin.up = true;
+    assertThat(spool.drain("authcache", "zipkin", authcacheZipkin, 10)).isEqualTo(2);
+    assertThat(authcacheZipkin.received).containsExactly("1", "2");
+  }
+
+  @Test public void checkpointPerDestination() throws IOException {
+    spool = newSpool();
+    FakeSender archive = new FakeSender();
+    spool.append("authcache", span(1));
+    spool.drain("authcache", "zipkin", authcacheZipkin, 10);
+    spool.append("authcache", span(2));
+
+    spool.drain("authcache", "archive", archive, 10);
+    spool.drain("authcache", "zipkin", authcacheZipkin, 10);
+
+    assertThat(archive.received).containsExactly("1", "2");
+    assertThat(authcacheZipkin.received).containsExactly("1", "2");
+  }
+
+  @Test public void samplingKeysAreIndependent() throws IOException {
+    spool = newSpool();
+    FakeSender gatewayplayZipkin = new FakeSender();
+    spool.append("authcache", span(1));
+    spool.append("gatewayplay", span(2));
+
+    authcacheZipkin.up = false; // one participant's outage doesn't affect the other
+    spool.drain("authcache", "zipkin", authcacheZipkin, 10);
+    spool.drain("gatewayplay", "zipkin", gatewayplayZipkin, 10);
+
+    assertThat(gatewayplayZipkin.received).containsExactly("2");
+  }
+
+  @Test public void replaysAfterRestart() throws IOException {
+    spool = newSpool();
+    for (int i = 1; i <= 3; i++) spool.append("authcache", span(i));
+    spool.drain("authcache", "zipkin", authcacheZipkin, 1);
+    authcacheZipkin.received.clear();
+    spool.append("authcache", span(4));
+    spool.close();
+
+    spool = newSpool();
+    spool.append("authcache", span(5));
+
+    assertThat(spool.drain("authcache", "zipkin", authcacheZipkin, 10)).isEqualTo(2);
+    assertThat(authcacheZipkin.received).containsExactly("4", "5");
+  }
+
+  @Test public void rollsSegments() throws IOException {
+    spool = newSpool().segmentBytes(256);
+    for (int i = 1; i <= 20; i++) spool.append("authcache", span(i));
+
+    assertThat(segmentFiles("authcache")).hasSizeGreaterThan(1);
+    assertThat(spool.drain("authcache", "zipkin", authcacheZipkin, 7)).isEqualTo(20);
+  }
+
+  @Test public void retention_size() throws IOException {
+    spool = newSpool().segmentBytes(256).maxBytes(512);
+    for (int i = 1; i <= 60; i++) spool.append("authcache", span(i));
+
+    assertThat(segmentFiles("authcache")).hasSize(2);
+
+    // Only the most recent data was retained
+    spool.drain("authcache", "zipkin", authcacheZipkin, 100);
+    assertThat(authcacheZipkin.received).endsWith("60").doesNotContain("1");
+  }
+
+  @Test public void retention_age() throws IOException {
+    spool = newSpool().segmentBytes(256).maxAge(1, TimeUnit.MINUTES);
+    for (int i = 1; i <= 20; i++) spool.append("authcache", span(i));
+
+    now += TimeUnit.MINUTES.toMillis(2);
+    for (int i = 21; i <= 40; i++) spool.append("authcache", span(i));
+    spool.applyRetention();
+
+    spool.drain("authcache", "zipkin", authcacheZipkin, 100);
+    assertThat(authcacheZipkin.received).endsWith("40").doesNotContain("1");
+  }
+
+  @Test public void spanHandler_spoolsJson() throws IOException {
+    spool = newSpool();
+    MutableSpan span = new MutableSpan();
+    span.traceId("1");
+    span.id("2");
+    span.localServiceName("auth");
+
+    spool.spanHandler("authcache")
+        .end(TraceContext.newBuilder().traceId(1L).spanId(2L).build(), span, Cause.FINISHED);
+    spool.drain("authcache", "zipkin", authcacheZipkin, 10);
+
+    assertThat(authcacheZipkin.spans).extracting(zipkin2.Span::localServiceName)
+        .containsExactly("auth");
+  }
+
+  SpanSpool newSpool() throws IOException {
+    SpanSpool result = new SpanSpool(folder.getRoot().toPath());
+    result.clock = () -> now;
+    return result;
+  }
+
+  List<Path> segmentFiles(String samplingKey) throws IOException {
+    try (Stream<Path> files = Files.list(folder.getRoot().toPath().resolve(samplingKey))) {
+      return files.filter(f -> f.toString().endsWith(".segment")).collect(Collectors.toList());
+    }
+  }
+
+  static byte[] span(int id) {
+    return String.valueOf(id).getBytes(StandardCharsets.UTF_8);
+  }
+
+  static final class FakeSender extends Sender {
+    boolean up = true;
+    final List<String> received = new ArrayList<>();
+    final List<Integer> batchSizes = new ArrayList<>();
+    final List<zipkin2.Span> spans = new ArrayList<>();
+
+    @Override public Encoding encoding() {
+      return Encoding.JSON;
+    }
+
+    @Override public int messageMaxBytes() {
+      return 1024 * 1024;
+    }
+
+    @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+      return encoding().listSizeInBytes(encodedSpans);
+    }
+
+    @Override public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+      if (!up) return new FailedCall();
+      batchSizes.add(encodedSpans.size());
+      for (byte[] encodedSpan : encodedSpans) {
+        String json = new String(encodedSpan, StandardCharsets.UTF_8);
+        received.add(json);
+        if (json.startsWith("{")) spans.add(SpanBytesDecoder.JSON_V2.decodeOne(encodedSpan));
+      }
+      return Call.create(null);
+    }
+  }
+
+  static final class FailedCall extends Call<Void> {
+    @Override public Void execute() throws IOException {
+      throw new IOException("connection refused");
+    }
+
+    @Override public void enqueue(Callback<Void> callback) {
+      callback.onError(new IOException("connection refused"));
+    }
+
+    @Override public void cancel() {
+    }
+
+    @Override public boolean isCanceled() {
+      return false;
+    }
+
+    @Override public Call<Void> clone() {
+      return new FailedCall();
+    }
+  }
+}
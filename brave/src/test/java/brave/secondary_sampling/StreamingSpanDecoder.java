@@ -0,0 +1,521 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+
+/**
+ * This decodes a list of spans one element at a time, handing each to a consumer as soon as it is
+ * read. Unlike {@link SpanBytesDecoder#decodeList(byte[])}, this never builds the whole {@code
+ * List<Span>}: peak heap is one encoded span plus a read buffer, regardless of the size of the
+ * list.
+ *
+ * <p>Input can either be pulled from a stream with {@link #decode(InputStream, SpanBytesDecoder,
+ * Consumer)}, or pushed in parts as it arrives, with {@link #begin(SpanBytesDecoder, Consumer)},
+ * {@link #feed(ByteBuffer)} and {@link #finish()}. When pushed, each complete element is consumed
+ * as soon as it is fed, and only the bytes of a partial element are retained until the next part.
+ *
+ * <p>The list framing of each format is parsed here, only far enough to find where one element
+ * ends. Each element is then decoded by the zipkin {@link SpanBytesDecoder} for its format, as a
+ * list of one. Supported formats are JSON (v1 and v2), proto3 and legacy Thrift. As legacy spans
+ * can convert into more than one span, a single element can result in multiple calls to the
+ * consumer.
+ *
+ * <p>Malformed input raises {@link IllegalArgumentException}, like zipkin decoders do. As spans are
+ * consumed as they are read, those before the malformed element will have already been consumed.
+ *
+ * <p>Instances reuse buffers, so are not thread-safe.
+ */
+public final class StreamingSpanDecoder {
+  static final int READ_BUFFER_BYTES = 8192, MAX_THRIFT_DEPTH = 32;
+  // Thrift types used in zipkin's legacy model
+  static final byte
+      THRIFT_STOP = 0, THRIFT_BOOL = 2, THRIFT_BYTE = 3, THRIFT_DOUBLE = 4, THRIFT_I16 = 6,
+      THRIFT_I32 = 8, THRIFT_I64 = 10, THRIFT_STRING = 11, THRIFT_STRUCT = 12, THRIFT_MAP = 13,
+      THRIFT_SET = 14, THRIFT_LIST = 15;
+  /** Field 1 (spans) of ListOfSpans, wire type 2 (length-delimited) */
+  static final int PROTO3_SPANS_KEY = (1 << 3) | 2;
+  /**
+   * Where decoding is in the list. Each state is decoded by one step, which either completes or is
+   * retried from its start once more input is pushed.
+   */
+  static final int
+      STATE_LIST = 0, // before the list, or each proto3 element as that format has no list framing
+      STATE_FIRST = 1, // JSON: after '[', so either an element or ']'
+      STATE_ELEMENT = 2, // JSON: after ','. Thrift: each element of the list
+      STATE_AFTER_ELEMENT = 3, // JSON: either ',' or ']'
+      STATE_END = 4, // after the list, where only whitespace is allowed
+      STATE_DONE = 5;
+  /** Raised when pushed input ends mid-step. Preallocated as this is control flow. */
+  static final RuntimeException NEED_MORE_INPUT = new RuntimeException("need more input", null,
+      false, false) {
+  };
+
+  final int maxSpanBytes;
+  final ArrayList<Span> decoded = new ArrayList<>();
+  byte[] readBuffer = new byte[READ_BUFFER_BYTES], span = new byte[1024];
+  int spanLength, readPosition, readLimit;
+  /** Read position at the start of the current step, which is where it retries from. */
+  int checkpoint;
+  int state, thriftRemaining;
+  SpanBytesDecoder format;
+  Consumer<Span> consumer;
+  /** Non-null when input is pulled from a stream. */
+  InputStream in;
+  /** True when pushed input is complete. */
+  boolean finished;
+
+  /** @param maxSpanBytes elements larger than this, when encoded, are rejected */
+  public StreamingSpanDecoder(int maxSpanBytes) {
+    if (maxSpanBytes <= 0) throw new IllegalArgumentException("maxSpanBytes <= 0");
+    this.maxSpanBytes = maxSpanBytes;
+  }
+
+  /**
+   * Decodes a list of spans from the buffer, passing each to the consumer.
+   *
+   * @return the count of spans consumed
+   */
+  public int decode(ByteBuffer buffer, SpanBytesDecoder format, Consumer<Span> consumer) {
+    try {
+      return decode(new ByteBufferInputStream(buffer), format, consumer);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // unexpected as the input is in memory
+    }
+  }
+
+  /**
+   * Decodes a list of spans from the stream until its end, passing each to the consumer.
+   *
+   * @return the count of spans consumed
+   */
+  public int decode(InputStream in, SpanBytesDecoder format, Consumer<Span> consumer)
+      throws IOException {
+    if (in == null) throw new NullPointerException("in == null");
+    reset(format, consumer);
+    this.in = in;
+    try {
+      int result = 0;
+      while (state != STATE_DONE) result += step();
+      return result;
+    } finally {
+      this.in = null;
+      this.format = null;
+      this.consumer = null;
+      decoded.clear();
+    }
+  }
+
+  /** Starts decoding a list of spans, which is then pushed with {@link #feed(ByteBuffer)}. */
+  public void begin(SpanBytesDecoder format, Consumer<Span> consumer) {
+    reset(format, consumer);
+    // don't hold a buffer grown for a large span in an earlier list
+    if (readBuffer.length > READ_BUFFER_BYTES) readBuffer = new byte[READ_BUFFER_BYTES];
+  }
+
+  /**
+   * Consumes the remaining bytes of the input, passing each span completed by them to the consumer.
+   * Bytes of an element that isn't complete are retained for the next call.
+   *
+   * @return the count of spans consumed
+   */
+  public int feed(ByteBuffer input) {
+    if (format == null || in != null || finished) throw new IllegalStateException("not begun");
+    int retained = readLimit - checkpoint, length = input.remaining();
+    if (retained + length > readBuffer.length) {
+      byte[] grown = new byte[(int) Math.max(retained + length, readBuffer.length * 2L)];
+      System.arraycopy(readBuffer, checkpoint, grown, 0, retained);
+      readBuffer = grown;
+    } else {
+      System.arraycopy(readBuffer, checkpoint, readBuffer, 0, retained);
+    }
+    input.get(readBuffer, retained, length);
+    readPosition = checkpoint = 0;
+    readLimit = retained + length;
+    return decodePushed();
+  }
+
+  /** Ends the pushed input, raising {@link IllegalArgumentException} if the list isn't complete. */
+  public void finish() {
+    if (format == null || in != null || finished) throw new IllegalStateException("not begun");
+    finished = true;
+    try {
+      decodePushed();
+    } finally {
+      format = null;
+      consumer = null;
+    }
+  }
+
+  void reset(SpanBytesDecoder format, Consumer<Span> consumer) {
+    if (format == null) throw new NullPointerException("format == null");
+    if (consumer == null) throw new NullPointerException("consumer == null");
+    switch (format) {
+      case JSON_V1:
+      case JSON_V2:
+      case PROTO3:
+      case THRIFT:
+        break;
+      default:
+        throw new UnsupportedOperationException("unsupported format: " + format);
+    }
+    this.format = format;
+    this.consumer = consumer;
+    readPosition = readLimit = checkpoint = 0;
+    state = STATE_LIST;
+    finished = false;
+  }
+
+  /** Runs steps until the pushed input is exhausted, rewinding any step that didn't complete. */
+  int decodePushed() {
+    int result = 0;
+    try {
+      while (state != STATE_DONE) {
+        result += step();
+        checkpoint = readPosition;
+      }
+    } catch (IllegalArgumentException e) {
+      format = null; // the input can't be trusted, so it must be begun again
+      consumer = null;
+      throw e;
+    } catch (RuntimeException e) {
+      if (e != NEED_MORE_INPUT) throw e;
+      readPosition = checkpoint;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // unexpected as the input is in memory
+    }
+    return result;
+  }
+
+  /** Decodes the next part of the list, returning the count of spans consumed. */
+  int step() throws IOException {
+    switch (format) {
+      case JSON_V1:
+      case JSON_V2:
+        return stepJson();
+      case PROTO3:
+        return stepProto3();
+      default:
+        return stepThrift();
+    }
+  }
+
+  int stepJson() throws IOException {
+    int c = skipWhitespace();
+    switch (state) {
+      case STATE_LIST:
+        if (c != '[') throw new IllegalArgumentException("expected a JSON array");
+        state = STATE_FIRST;
+        return 0;
+      case STATE_FIRST:
+        if (c == ']') {
+          state = STATE_END;
+          return 0;
+        }
+        return jsonElement(c);
+      case STATE_ELEMENT:
+        return jsonElement(c);
+      case STATE_AFTER_ELEMENT:
+        if (c == ']') {
+          state = STATE_END;
+        } else if (c == ',') {
+          state = STATE_ELEMENT;
+        } else {
+          throw new IllegalArgumentException("expected ',' or ']'");
+        }
+        return 0;
+      default: // STATE_END
+        if (c != -1) throw new IllegalArgumentException("unexpected data after list");
+        state = STATE_DONE;
+        return 0;
+    }
+  }
+
+  int jsonElement(int c) throws IOException {
+    if (c != '{') throw new IllegalArgumentException("expected a JSON object");
+    spanLength = 0;
+    append('['); // decode as a list of one
+    copyJsonObject();
+    append(']');
+    state = STATE_AFTER_ELEMENT;
+    return emit();
+  }
+
+  void copyJsonObject() throws IOException {
+    append('{');
+    int depth = 1;
+    boolean inString = false, escaped = false;
+    while (depth > 0) {
+      int c = readRequired();
+      append(c);
+      if (inString) {
+        if (escaped) {
+          escaped = false;
+        } else if (c == '\\') {
+          escaped = true;
+        } else if (c == '"') {
+          inString = false;
+        }
+      } else if (c == '"') {
+        inString = true;
+      } else if (c == '{' || c == '[') {
+        depth++;
+      } else if (c == '}' || c == ']') {
+        depth--;
+      }
+    }
+  }
+
+  /** Proto3 has no list framing: the list is a repeated field, so each element is one field. */
+  int stepProto3() throws IOException {
+    int key = read();
+    if (key == -1) {
+      state = STATE_DONE;
+      return 0;
+    }
+    spanLength = 0;
+    append(key); // each field is also a ListOfSpans of one
+    if (key != PROTO3_SPANS_KEY) throw new IllegalArgumentException("expected ListOfSpans");
+    int length = copyVarint();
+    copy(length);
+    return emit();
+  }
+
+  int copyVarint() throws IOException {
+    int result = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = readRequired();
+      append(b);
+      result |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        if (result < 0) break;
+        return result;
+      }
+    }
+    throw new IllegalArgumentException("malformed length");
+  }
+
+  int stepThrift() throws IOException {
+    switch (state) {
+      case STATE_LIST:
+        int type = read();
+        if (type == -1) { // empty
+          state = STATE_DONE;
+          return 0;
+        }
+        if (type != THRIFT_STRUCT) {
+          throw new IllegalArgumentException("expected a list of structs");
+        }
+        int size = readInt();
+        if (size < 0) throw new IllegalArgumentException("malformed list size");
+        thriftRemaining = size;
+        state = STATE_ELEMENT;
+        return 0;
+      case STATE_ELEMENT:
+        if (thriftRemaining == 0) {
+          state = STATE_END;
+          return 0;
+        }
+        spanLength = 0;
+        // decode as a list of one
+        append(THRIFT_STRUCT);
+        append(0);
+        append(0);
+        append(0);
+        append(1);
+        copyThrift(THRIFT_STRUCT, 0);
+        thriftRemaining--;
+        return emit();
+      default: // STATE_END
+        if (skipWhitespace() != -1) {
+          throw new IllegalArgumentException("unexpected data after list");
+        }
+        state = STATE_DONE;
+        return 0;
+    }
+  }
+
+  void copyThrift(int type, int depth) throws IOException {
+    if (depth > MAX_THRIFT_DEPTH) throw new IllegalArgumentException("nested too deep");
+    switch (type) {
+      case THRIFT_BOOL:
+      case THRIFT_BYTE:
+        copy(1);
+        break;
+      case THRIFT_I16:
+        copy(2);
+        break;
+      case THRIFT_I32:
+        copy(4);
+        break;
+      case THRIFT_DOUBLE:
+      case THRIFT_I64:
+        copy(8);
+        break;
+      case THRIFT_STRING:
+        copy(copyThriftSize());
+        break;
+      case THRIFT_STRUCT:
+        while (true) {
+          int fieldType = readRequired();
+          append(fieldType);
+          if (fieldType == THRIFT_STOP) break;
+          copy(2); // field ID
+          copyThrift(fieldType, depth + 1);
+        }
+        break;
+      case THRIFT_MAP:
+        int keyType = readRequired(), valueType = readRequired();
+        append(keyType);
+        append(valueType);
+        for (int i = 0, size = copyThriftSize(); i < size; i++) {
+          copyThrift(keyType, depth + 1);
+          copyThrift(valueType, depth + 1);
+        }
+        break;
+      case THRIFT_SET:
+      case THRIFT_LIST:
+        int elementType = readRequired();
+        append(elementType);
+        for (int i = 0, size = copyThriftSize(); i < size; i++) {
+          copyThrift(elementType, depth + 1);
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("unexpected thrift type: " + type);
+    }
+  }
+
+  int copyThriftSize() throws IOException {
+    int result = readInt();
+    append(result >>> 24);
+    append(result >>> 16);
+    append(result >>> 8);
+    append(result);
+    if (result < 0) throw new IllegalArgumentException("malformed size");
+    return result;
+  }
+
+  int readInt() throws IOException {
+    return (readRequired() << 24) | (readRequired() << 16) | (readRequired() << 8) | readRequired();
+  }
+
+  /** Decodes the element in the span buffer, which was framed as a list of one. */
+  int emit() {
+    decoded.clear();
+    format.decodeList(ByteBuffer.wrap(span, 0, spanLength), decoded);
+    int result = decoded.size();
+    for (int i = 0; i < result; i++) {
+      consumer.accept(decoded.get(i));
+    }
+    decoded.clear();
+    return result;
+  }
+
+  /**
+   * Skips whitespace at the start of a step. This moves the checkpoint, so that whitespace isn't
+   * retained when the step needs more input.
+   */
+  int skipWhitespace() throws IOException {
+    int c;
+    while ((c = read()) == ' ' || c == '\n' || c == '\r' || c == '\t') {
+      if (in == null) checkpoint = readPosition;
+    }
+    return c;
+  }
+
+  void copy(int length) throws IOException {
+    if (length > maxSpanBytes - spanLength) throw spanTooLarge();
+    ensureCapacity(spanLength + length);
+    while (length > 0) {
+      if (readPosition == readLimit && !fill()) throw truncated();
+      int count = Math.min(length, readLimit - readPosition);
+      System.arraycopy(readBuffer, readPosition, span, spanLength, count);
+      readPosition += count;
+      spanLength += count;
+      length -= count;
+    }
+  }
+
+  void append(int b) {
+    if (spanLength == maxSpanBytes) throw spanTooLarge();
+    ensureCapacity(spanLength + 1);
+    span[spanLength++] = (byte) b;
+  }
+
+  void ensureCapacity(int capacity) {
+    if (capacity <= span.length) return;
+    int newLength = (int) Math.min(maxSpanBytes, Math.max(capacity, span.length * 2L));
+    span = Arrays.copyOf(span, newLength);
+  }
+
+  int readRequired() throws IOException {
+    int result = read();
+    if (result == -1) throw truncated();
+    return result;
+  }
+
+  int read() throws IOException {
+    if (readPosition == readLimit && !fill()) return -1;
+    return readBuffer[readPosition++] & 0xff;
+  }
+
+  /** Returns false at the end of input, or throws {@link #NEED_MORE_INPUT} if more is pushed. */
+  boolean fill() throws IOException {
+    if (in == null) {
+      if (finished) return false;
+      throw NEED_MORE_INPUT;
+    }
+    int count = in.read(readBuffer, 0, readBuffer.length);
+    if (count <= 0) return false;
+    readPosition = 0;
+    readLimit = count;
+    return true;
+  }
+
+  IllegalArgumentException spanTooLarge() {
+    return new IllegalArgumentException("span larger than " + maxSpanBytes + " bytes");
+  }
+
+  static IllegalArgumentException truncated() {
+    return new IllegalArgumentException("truncated input");
+  }
+
+  static final class ByteBufferInputStream extends InputStream {
+    final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer.duplicate();
+    }
+
+    @Override public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override public int read(byte[] b, int off, int len) {
+      if (!buffer.hasRemaining()) return -1;
+      int count = Math.min(len, buffer.remaining());
+      buffer.get(b, off, count);
+      return count;
+    }
+  }
+}
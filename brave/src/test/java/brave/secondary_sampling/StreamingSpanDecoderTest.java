@@ -0,0 +1,243 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class StreamingSpanDecoderTest {
+  StreamingSpanDecoder decoder = new StreamingSpanDecoder(64 * 1024);
+  List<Span> decoded = new ArrayList<>();
+
+  Span gateway = Span.newBuilder()
+      .traceId("463ac35c9f6413ad48485a3953bb6124")
+      .id("a")
+      .kind(Span.Kind.SERVER)
+      .name("get /play")
+      .localEndpoint(Endpoint.newBuilder().serviceName("gateway").ip("10.0.0.1").build())
+      .timestamp(1472470996199000L)
+      .duration(207000L)
+      .putTag("sampled_keys", "b3,gatewayplay")
+      .putTag("http.path", "/play/{\"quoted\\\\\"}]")
+      .build();
+  Span playback = Span.newBuilder()
+      .traceId("463ac35c9f6413ad48485a3953bb6124")
+      .parentId("a")
+      .id("c")
+      .kind(Span.Kind.CLIENT)
+      .name("get /license")
+      .localEndpoint(Endpoint.newBuilder().serviceName("playback").build())
+      .remoteEndpoint(Endpoint.newBuilder().serviceName("license").build())
+      .timestamp(1472470996250000L)
+      .duration(100000L)
+      .addAnnotation(1472470996300000L, "wr")
+      .build();
+  List<Span> spans = Arrays.asList(gateway, playback);
+
+  @Test public void json() throws IOException {
+    byte[] encoded = SpanBytesEncoder.JSON_V2.encodeList(spans);
+
+    assertThat(decoder.decode(new ByteArrayInputStream(encoded), SpanBytesDecoder.JSON_V2,
+        decoded::add)).isEqualTo(2);
+    assertThat(decoded).isEqualTo(spans);
+  }
+
+  @Test public void json_whitespace() throws IOException {
+    String encoded = " [\n" + new String(SpanBytesEncoder.JSON_V2.encode(gateway), "UTF-8")
+        + " ,\r\n\t" + new String(SpanBytesEncoder.JSON_V2.encode(playback), "UTF-8") + "\n]\n";
+
+    decoder.decode(ByteBuffer.wrap(encoded.getBytes("UTF-8")), SpanBytesDecoder.JSON_V2,
+        decoded::add);
+    assertThat(decoded).isEqualTo(spans);
+  }
+
+  @Test public void json_empty() {
+    assertThat(decoder.decode(ByteBuffer.wrap(new byte[] {'[', ' ', ']'}),
+        SpanBytesDecoder.JSON_V2, decoded::add)).isZero();
+  }
+
+  @Test public void jsonV1() {
+    byte[] encoded = SpanBytesEncoder.JSON_V1.encodeList(spans);
+
+    decoder.decode(ByteBuffer.wrap(encoded), SpanBytesDecoder.JSON_V1, decoded::add);
+    assertThat(decoded).isEqualTo(SpanBytesDecoder.JSON_V1.decodeList(encoded));
+  }
+
+  @Test public void proto3() {
+    ByteBuffer encoded = ByteBuffer.allocateDirect(1024);
+    encoded.put(new byte[] {1, 2, 3}); // not at position zero
+    encoded.put(SpanBytesEncoder.PROTO3.encodeList(spans)).flip().position(3);
+
+    decoder.decode(encoded, SpanBytesDecoder.PROTO3, decoded::add);
+    assertThat(decoded).isEqualTo(spans);
+    assertThat(encoded.position()).isEqualTo(3); // doesn't consume the input
+  }
+
+  @Test public void thrift() {
+    byte[] encoded = SpanBytesEncoder.THRIFT.encodeList(spans);
+
+    decoder.decode(ByteBuffer.wrap(encoded), SpanBytesDecoder.THRIFT, decoded::add);
+    assertThat(decoded).isEqualTo(SpanBytesDecoder.THRIFT.decodeList(encoded));
+  }
+
+  /** Shows spans are consumed before the rest of the input is read. */
+  @Test public void consumesIncrementally() throws IOException {
+    byte[] encoded = SpanBytesEncoder.PROTO3.encodeList(spans);
+    int firstSpanLength = SpanBytesEncoder.PROTO3.encodeList(Arrays.asList(gateway)).length;
+    int[] readAtFirstSpan = {-1};
+    ByteArrayInputStream in = new ByteArrayInputStream(encoded) {
+      @Override public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, 16)); // trickle input
+      }
+    };
+
+    decoder.decode(in, SpanBytesDecoder.PROTO3, span -> {
+      if (readAtFirstSpan[0] == -1) readAtFirstSpan[0] = encoded.length - in.available();
+    });
+
+    assertThat(readAtFirstSpan[0]).isLessThan(firstSpanLength + 16);
+  }
+
+  @Test public void manySpans_bufferBoundedBySpanSize() {
+    List<Span> many = new ArrayList<>();
+    for (int i = 1; i <= 1000; i++) {
+      many.add(gateway.toBuilder().id(i).build());
+    }
+    byte[] encoded = SpanBytesEncoder.JSON_V2.encodeList(many);
+
+    assertThat(decoder.decode(ByteBuffer.wrap(encoded), SpanBytesDecoder.JSON_V2, decoded::add))
+        .isEqualTo(1000);
+    assertThat(decoder.span.length).isLessThan(encoded.length / 100);
+  }
+
+  @Test public void spanTooLarge() {
+    decoder = new StreamingSpanDecoder(64);
+
+    assertThatThrownBy(() -> decoder.decode(
+        ByteBuffer.wrap(SpanBytesEncoder.PROTO3.encodeList(spans)),
+        SpanBytesDecoder.PROTO3, decoded::add))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("span larger than 64 bytes");
+  }
+
+  @Test public void malformed_consumesSpansBeforeError() {
+    byte[] encoded = SpanBytesEncoder.JSON_V2.encodeList(spans);
+    byte[] truncated = Arrays.copyOf(encoded, encoded.length - 10);
+
+    assertThatThrownBy(() -> decoder.decode(ByteBuffer.wrap(truncated),
+        SpanBytesDecoder.JSON_V2, decoded::add))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("truncated input");
+    assertThat(decoded).containsExactly(gateway);
+  }
+
+  @Test public void malformed_notAList() {
+    assertThatThrownBy(() -> decoder.decode(ByteBuffer.wrap(new byte[] {'{', '}'}),
+        SpanBytesDecoder.JSON_V2, decoded::add))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> decoder.decode(ByteBuffer.wrap(new byte[] {8, 1}),
+        SpanBytesDecoder.PROTO3, decoded::add))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> decoder.decode(ByteBuffer.wrap(new byte[] {11, 0, 0, 0, 1}),
+        SpanBytesDecoder.THRIFT, decoded::add))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void reusableAfterError() {
+    assertThatThrownBy(() -> decoder.decode(ByteBuffer.wrap(new byte[] {'[', '{'}),
+        SpanBytesDecoder.JSON_V2, decoded::add))
+        .isInstanceOf(IllegalArgumentException.class);
+
+    decoder.decode(ByteBuffer.wrap(SpanBytesEncoder.JSON_V2.encodeList(spans)),
+        SpanBytesDecoder.JSON_V2, decoded::add);
+    assertThat(decoded).isEqualTo(spans);
+  }
+
+  /** Pushes each format in parts of every size, including splitting every element. */
+  @Test public void feed_anyPartSize() {
+    for (SpanBytesEncoder encoder : Arrays.asList(SpanBytesEncoder.JSON_V2, SpanBytesEncoder.PROTO3,
+        SpanBytesEncoder.THRIFT)) {
+      SpanBytesDecoder format = SpanBytesDecoder.valueOf(encoder.name());
+      byte[] encoded = encoder.encodeList(spans);
+      List<Span> expected = format.decodeList(encoded);
+      for (int partSize = 1; partSize <= encoded.length; partSize++) {
+        decoded.clear();
+        decoder.begin(format, decoded::add);
+        for (int i = 0; i < encoded.length; i += partSize) {
+          decoder.feed(ByteBuffer.wrap(encoded, i, Math.min(partSize, encoded.length - i)));
+        }
+        decoder.finish();
+        assertThat(decoded).isEqualTo(expected);
+      }
+    }
+  }
+
+  @Test public void feed_consumesCompleteSpans() {
+    byte[] encoded = SpanBytesEncoder.JSON_V2.encodeList(spans);
+    int firstSpanEnd = SpanBytesEncoder.JSON_V2.encodeList(Arrays.asList(gateway)).length - 1;
+    decoder.begin(SpanBytesDecoder.JSON_V2, decoded::add);
+
+    assertThat(decoder.feed(ByteBuffer.wrap(encoded, 0, firstSpanEnd - 1))).isZero();
+    assertThat(decoder.feed(ByteBuffer.wrap(encoded, firstSpanEnd - 1, 1))).isEqualTo(1);
+    assertThat(decoded).containsExactly(gateway);
+  }
+
+  @Test public void feed_retainsOnlyPartialSpan() {
+    List<Span> many = new ArrayList<>();
+    for (int i = 1; i <= 1000; i++) {
+      many.add(gateway.toBuilder().id(i).build());
+    }
+    byte[] encoded = SpanBytesEncoder.PROTO3.encodeList(many);
+    decoder.begin(SpanBytesDecoder.PROTO3, decoded::add);
+
+    for (int i = 0; i < encoded.length; i += 1000) {
+      decoder.feed(ByteBuffer.wrap(encoded, i, Math.min(1000, encoded.length - i)));
+    }
+    decoder.finish();
+    assertThat(decoded).hasSize(1000);
+    assertThat(decoder.readBuffer.length).isEqualTo(StreamingSpanDecoder.READ_BUFFER_BYTES);
+  }
+
+  @Test public void finish_truncated() {
+    byte[] encoded = SpanBytesEncoder.JSON_V2.encodeList(spans);
+    decoder.begin(SpanBytesDecoder.JSON_V2, decoded::add);
+    decoder.feed(ByteBuffer.wrap(encoded, 0, encoded.length - 10));
+
+    assertThatThrownBy(decoder::finish)
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("truncated input");
+    assertThat(decoded).containsExactly(gateway);
+  }
+
+  @Test public void feed_malformed() {
+    decoder.begin(SpanBytesDecoder.JSON_V2, decoded::add);
+
+    assertThatThrownBy(() -> decoder.feed(ByteBuffer.wrap(new byte[] {'{'})))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> decoder.feed(ByteBuffer.wrap(new byte[] {'['})))
+        .isInstanceOf(IllegalStateException.class); // must begin again
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.internal.Nullable;
+import brave.propagation.TraceContext;
+import brave.sampler.RateLimitingSampler;
+import brave.sampler.Sampler;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static brave.internal.codec.HexCodec.lowerHexToUnsignedLong;
+
+/**
+ * This downsamples whole traces for one {@link TraceForwarder#configureSamplingKey(String,
+ * SpanHandler) sampling key destination}, for participants who can only afford a fraction of what
+ * their key triggers.
+ *
+ * <p>Spans of a trace are buffered for the {@link Builder#decisionWindow(long, TimeUnit) decision
+ * window}, measured from the first span seen. The trace is then kept when any span has an error,
+ * any span is {@link Builder#keepSlowerThan(long, TimeUnit) slower than a threshold}, or it fits
+ * within the {@link Builder#tracesPerSecond(int) target rate}. Otherwise, all of its spans are
+ * dropped. Spans that arrive after their trace was decided follow the same decision.
+ *
+ * <p>Decisions are made as new spans arrive, and once {@link #start() started}, by a background
+ * thread that checks for elapsed windows ten times per window. This ensures buffered traces are
+ * decided when traffic is quiet. Memory is bounded by {@link Builder#maxSpans(int)}: when the
+ * buffer is full, the oldest traces are decided early.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * traceForwarder.configureSamplingKey("gatewayplay",
+ *   TailSamplingSpanHandler.newBuilder(gatewayplay)
+ *     .keepSlowerThan(1, TimeUnit.SECONDS)
+ *     .tracesPerSecond(10)
+ *     .build().start());
+ * }</pre>
+ */
+public final class TailSamplingSpanHandler extends SpanHandler implements Closeable {
+  public static Builder newBuilder(SpanHandler delegate) {
+    return new Builder(delegate);
+  }
+
+  public static final class Builder {
+    final SpanHandler delegate;
+    long decisionWindowNanos = TimeUnit.SECONDS.toNanos(30), slowerThanMicros = 0L;
+    int maxSpans = 10000, maxDecisions = 10000;
+    boolean keepErrors = true;
+    Sampler sampler = Sampler.NEVER_SAMPLE;
+
+    Builder(SpanHandler delegate) {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      this.delegate = delegate;
+    }
+
+    /** How long to buffer a trace before deciding. Defaults to 30 seconds. */
+    public Builder decisionWindow(long decisionWindow, TimeUnit unit) {
+      if (decisionWindow <= 0) throw new IllegalArgumentException("decisionWindow <= 0");
+      this.decisionWindowNanos = unit.toNanos(decisionWindow);
+      return this;
+    }
+
+    /** Maximum spans buffered across all traces. Defaults to 10000. */
+    public Builder maxSpans(int maxSpans) {
+      if (maxSpans <= 0) throw new IllegalArgumentException("maxSpans <= 0");
+      this.maxSpans = maxSpans;
+      return this;
+    }
+
+    /**
+     * Maximum decisions remembered for late spans. When exceeded, a late span starts a new
+     * decision. Defaults to 10000.
+     */
+    public Builder maxDecisions(int maxDecisions) {
+      if (maxDecisions < 0) throw new IllegalArgumentException("maxDecisions < 0");
+      this.maxDecisions = maxDecisions;
+      return this;
+    }
+
+    /** Whether to keep any trace that includes an error. Defaults to true. */
+    public Builder keepErrors(boolean keepErrors) {
+      this.keepErrors = keepErrors;
+      return this;
+    }
+
+    /** Keeps any trace including a span at least this long. Disabled by default. */
+    public Builder keepSlowerThan(long duration, TimeUnit unit) {
+      if (duration <= 0) throw new IllegalArgumentException("duration <= 0");
+      this.slowerThanMicros = unit.toMicros(duration);
+      return this;
+    }
+
+    /**
+     * Keeps up to this many other traces per second. Defaults to zero, which means only traces
+     * that match other rules are kept.
+     */
+    public Builder tracesPerSecond(int tracesPerSecond) {
+      if (tracesPerSecond < 0) throw new IllegalArgumentException("tracesPerSecond < 0");
+      this.sampler = tracesPerSecond == 0
+          ? Sampler.NEVER_SAMPLE
+          : RateLimitingSampler.create(tracesPerSecond);
+      return this;
+    }
+
+    public TailSamplingSpanHandler build() {
+      return new TailSamplingSpanHandler(this);
+    }
+  }
+
+  final SpanHandler delegate;
+  final long decisionWindowNanos, slowerThanMicros;
+  final int maxSpans, maxDecisions;
+  final boolean keepErrors;
+  final Sampler sampler;
+  LongSupplier nanoTime = System::nanoTime;
+
+  /** Traces awaiting a decision, in the order they were first seen. */
+  final LinkedHashMap<String, PendingTrace> pending = new LinkedHashMap<>();
+  /** Recently decided traces, so that late spans follow the same decision. */
+  final LinkedHashMap<String, Boolean> decided;
+  int bufferedSpans;
+  ScheduledExecutorService flusher;
+
+  TailSamplingSpanHandler(Builder builder) {
+    this.delegate = builder.delegate;
+    this.decisionWindowNanos = builder.decisionWindowNanos;
+    this.slowerThanMicros = builder.slowerThanMicros;
+    this.maxSpans = builder.maxSpans;
+    this.maxDecisions = builder.maxDecisions;
+    this.keepErrors = builder.keepErrors;
+    this.sampler = builder.sampler;
+    this.decided = new LinkedHashMap<String, Boolean>() {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > maxDecisions;
+      }
+    };
+  }
+
+  /** Starts a daemon thread which decides traces whose window elapsed. Stop it with close. */
+  public synchronized TailSamplingSpanHandler start() {
+    if (flusher != null) throw new IllegalStateException("already started");
+    flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "TailSamplingSpanHandler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long interval = Math.max(TimeUnit.MILLISECONDS.toNanos(1), decisionWindowNanos / 10);
+    flusher.scheduleAtFixedRate(this::flushExpired, interval, interval, TimeUnit.NANOSECONDS);
+    return this;
+  }
+
+  @Override public synchronized void close() {
+    if (flusher != null) flusher.shutdownNow();
+  }
+
+  @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+    if (cause == Cause.ABANDONED) return true;
+    List<PendingTrace> ready;
+    Boolean decision;
+    synchronized (this) {
+      long now = nanoTime.getAsLong();
+      String traceId = span.traceId();
+      decision = decided.get(traceId);
+      if (decision != null) {
+        ready = null;
+      } else {
+        PendingTrace trace = pending.get(traceId);
+        if (trace == null) pending.put(traceId, trace = new PendingTrace(traceId, now));
+        trace.add(context, span, cause);
+        bufferedSpans++;
+        ready = pollReady(now);
+      }
+    }
+    if (Boolean.TRUE.equals(decision)) delegate.end(context, span, cause);
+    report(ready);
+    return true;
+  }
+
+  /** Decides all buffered traces now, for example before shutdown. */
+  public void flush() {
+    List<PendingTrace> ready;
+    synchronized (this) {
+      ready = pollReady(Long.MAX_VALUE);
+    }
+    report(ready);
+  }
+
+  /** Decides traces whose window elapsed. */
+  void flushExpired() {
+    List<PendingTrace> ready;
+    synchronized (this) {
+      ready = pollReady(nanoTime.getAsLong());
+    }
+    report(ready);
+  }
+
+  /** Returns traces whose window elapsed, plus the oldest ones while over the span limit. */
+  List<PendingTrace> pollReady(long now) {
+    List<PendingTrace> result = null;
+    for (Iterator<PendingTrace> i = pending.values().iterator(); i.hasNext(); ) {
+      PendingTrace trace = i.next();
+      boolean expired = now == Long.MAX_VALUE || now - trace.firstSeenNanos >= decisionWindowNanos;
+      if (!expired && bufferedSpans <= maxSpans) break; // the rest are newer
+      i.remove();
+      bufferedSpans -= trace.spans.size();
+      trace.sampled = decide(trace);
+      decided.put(trace.traceId, trace.sampled);
+      if (result == null) result = new ArrayList<>();
+      result.add(trace);
+    }
+    return result;
+  }
+
+  boolean decide(PendingTrace trace) {
+    if (keepErrors && trace.error) return true;
+    if (slowerThanMicros != 0L && trace.maxDurationMicros >= slowerThanMicros) return true;
+    return sampler.isSampled(trace.traceIdLow);
+  }
+
+  /** Invokes the delegate outside the lock, as it could block on I/O. */
+  void report(@Nullable List<PendingTrace> ready) {
+    if (ready == null) return;
+    for (PendingTrace trace : ready) {
+      if (!trace.sampled) continue;
+      for (int i = 0; i < trace.spans.size(); i++) {
+        delegate.end(trace.contexts.get(i), trace.spans.get(i), trace.causes.get(i));
+      }
+    }
+  }
+
+  static final class PendingTrace {
+    final String traceId;
+    final long traceIdLow, firstSeenNanos;
+    final List<TraceContext> contexts = new ArrayList<>();
+    final List<MutableSpan> spans = new ArrayList<>();
+    final List<Cause> causes = new ArrayList<>();
+    boolean error, sampled;
+    long maxDurationMicros;
+
+    PendingTrace(String traceId, long firstSeenNanos) {
+      this.traceId = traceId;
+      this.firstSeenNanos = firstSeenNanos;
+      this.traceIdLow = lowerHexToUnsignedLong(traceId, traceId.length() - 16);
+    }
+
+    void add(TraceContext context, MutableSpan span, Cause cause) {
+      contexts.add(context);
+      spans.add(span);
+      causes.add(cause);
+      if (span.error() != null || span.tag("error") != null) error = true;
+      long start = span.startTimestamp(), finish = span.finishTimestamp();
+      if (start != 0L && finish != 0L) {
+        maxDurationMicros = Math.max(maxDurationMicros, finish - start);
+      }
+    }
+  }
+
+  @Override public String toString() {
+    return "TailSamplingSpanHandler(" + delegate + ")";
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler.Cause;
+import brave.propagation.TraceContext;
+import brave.test.TestSpanHandler;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TailSamplingSpanHandlerTest {
+  TestSpanHandler gatewayplay = new TestSpanHandler();
+  long nanoTime;
+
+  @Test public void buffersUntilDecisionWindow() {
+    TailSamplingSpanHandler handler = build(TailSamplingSpanHandler.newBuilder(gatewayplay)
+        .decisionWindow(10, TimeUnit.SECONDS)
+        .tracesPerSecond(100));
+
+    end(handler, span(1L, 2L, false, 0L));
+    end(handler, span(1L, 1L, false, 0L));
+    assertThat(gatewayplay).isEmpty();
+
+    nanoTime += TimeUnit.SECONDS.toNanos(10);
+    end(handler, span(3L, 3L, false, 0L)); // triggers the decision on trace 1
+
+    assertThat(gatewayplay).extracting(MutableSpan::id)
+        .containsExactly("0000000000000002", "0000000000000001");
+  }
+
+  @Test public void dropsWholeTraceUnlessRuleMatches() {
+    TailSamplingSpanHandler handler = build(TailSamplingSpanHandler.newBuilder(gatewayplay));
+
+    end(handler, span(1L, 1L, false, 0L));
+    end(handler, span(1L, 2L, false, 0L));
+    handler.flush();
+
+    assertThat(gatewayplay).isEmpty();
+  }
+
+  @Test public void keepsErrors() {
+    TailSamplingSpanHandler handler = build(TailSamplingSpanHandler.newBuilder(gatewayplay));
+
+    end(handler, span(1L, 1L, false, 0L));
+    end(handler, span(1L, 2L, true, 0L));
+    end(handler, span(2L, 3L, false, 0L));
+    handler.flush();
+
+    assertThat(gatewayplay).extracting(MutableSpan::traceId).containsOnly("0000000000000001")
+        .hasSize(2);
+  }
+
+  @Test public void keepErrors_disabled() {
+    TailSamplingSpanHandler handler = build(TailSamplingSpanHandler.newBuilder(gatewayplay)
+        .keepErrors(false));
+
+    end(handler, span(1L, 1L, true, 0L));
+    handler.flush();
+
+    assertThat(gatewayplay).isEmpty();
+  }
+
+  @Test public void keepsSlowTraces() {
+    TailSamplingSpanHandler handler = build(TailSamplingSpanHandler.newBuilder(gatewayplay)
+        .keepSlowerThan(1, TimeUnit.SECONDS));
+
+    end(handler, span(1L, 1L, false, TimeUnit.MILLISECONDS.toMicros(999)));
+    end(handler, span(2L, 2L, false, TimeUnit.SECONDS.toMicros(1)));
+    handler.flush();
+
+    assertThat(gatewayplay).extracting(MutableSpan::traceId).containsExactly("0000000000000002");
+  }
+
+  @Test public void tracesPerSecond() {
+    TailSamplingSpanHandler handler = build(TailSamplingSpanHandler.newBuilder(gatewayplay)
+        .tracesPerSecond(2));
+
+    for (long traceId = 1L; traceId <= 10L; traceId++) {
+      end(handler, span(traceId, 1L, false, 0L));
+    }
+    handler.flush();
+
+    assertThat(gatewayplay.spans()).hasSizeLessThanOrEqualTo(2).isNotEmpty();
+  }
+
+  @Test public void lateSpansFollowDecision() {
+    TailSamplingSpanHandler handler = build(TailSamplingSpanHandler.newBuilder(gatewayplay));
+
+    end(handler, span(1L, 1L, true, 0L));
+    end(handler, span(2L, 2L, false, 0L));
+    handler.flush();
+
+    end(handler, span(1L, 3L, false, 0L));
+    end(handler, span(2L, 4L, false, 0L));
+
+    assertThat(gatewayplay).extracting(MutableSpan::id)
+        .containsExactly("0000000000000001", "0000000000000003");
+  }
+
+  @Test public void maxSpans_decidesOldestEarly() {
+    TailSamplingSpanHandler handler = build(TailSamplingSpanHandler.newBuilder(gatewayplay)
+        .maxSpans(2));
+
+    end(handler, span(1L, 1L, true, 0L));
+    end(handler, span(1L, 2L, false, 0L));
+    assertThat(gatewayplay).isEmpty();
+
+    end(handler, span(2L, 3L, false, 0L)); // over the limit
+
+    assertThat(gatewayplay).extracting(MutableSpan::id)
+        .containsExactly("0000000000000001", "0000000000000002");
+    assertThat(handler.bufferedSpans).isEqualTo(1);
+  }
+
+  @Test public void worksWithTraceForwarder() {
+    TailSamplingSpanHandler handler = build(TailSamplingSpanHandler.newBuilder(gatewayplay));
+    TraceForwarder traceForwarder = new TraceForwarder()
+        .configureSamplingKey("gatewayplay", handler);
+
+    MutableSpan error = span(1L, 1L, true, 0L);
+    error.tag("sampled_keys", "gatewayplay");
+    MutableSpan ok = span(2L, 2L, false, 0L);
+    ok.tag("sampled_keys", "gatewayplay");
+
+    traceForwarder.end(context(error), error, Cause.FINISHED);
+    traceForwarder.end(context(ok), ok, Cause.FINISHED);
+    handler.flush();
+
+    assertThat(gatewayplay).extracting(MutableSpan::traceId).containsExactly("0000000000000001");
+  }
+
+  @Test public void start_decidesWhenQuiet() throws Exception {
+    TailSamplingSpanHandler handler = TailSamplingSpanHandler.newBuilder(gatewayplay)
+        .decisionWindow(100, TimeUnit.MILLISECONDS)
+        .keepErrors(true)
+        .build();
+    MutableSpan error = span(1L, 1L, true, 1L);
+
+    try (TailSamplingSpanHandler started = handler.start()) {
+      end(started, error); // no more spans arrive
+
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (gatewayplay.spans().isEmpty() && System.nanoTime() < deadline) {
+        Thread.sleep(10L);
+      }
+    }
+
+    assertThat(gatewayplay.spans()).hasSize(1);
+  }
+
+  @Test public void flushExpired_onlyElapsedWindows() {
+    TailSamplingSpanHandler handler = build(TailSamplingSpanHandler.newBuilder(gatewayplay)
+        .decisionWindow(10, TimeUnit.SECONDS)
+        .keepErrors(true));
+    MutableSpan error = span(1L, 1L, true, 1L);
+    end(handler, error);
+
+    handler.flushExpired();
+    assertThat(gatewayplay.spans()).isEmpty();
+
+    nanoTime += TimeUnit.SECONDS.toNanos(10);
+    handler.flushExpired();
+    assertThat(gatewayplay.spans()).hasSize(1);
+  }
+
+  TailSamplingSpanHandler build(TailSamplingSpanHandler.Builder builder) {
+    TailSamplingSpanHandler result = builder.build();
+    result.nanoTime = () -> nanoTime;
+    return result;
+  }
+
+  static void end(TailSamplingSpanHandler handler, MutableSpan span) {
+    handler.end(context(span), span, Cause.FINISHED);
+  }
+
+  static TraceContext context(MutableSpan span) {
+    return TraceContext.newBuilder()
+        .traceId(Long.parseUnsignedLong(span.traceId(), 16))
+        .spanId(Long.parseUnsignedLong(span.id(), 16))
+        .sampled(true)
+        .build();
+  }
+
+  static MutableSpan span(long traceId, long spanId, boolean error, long durationMicros) {
+    MutableSpan result = new MutableSpan();
+    result.traceId(String.format("%016x", traceId));
+    result.id(String.format("%016x", spanId));
+    result.startTimestamp(1L);
+    result.finishTimestamp(1L + durationMicros);
+    if (error) result.tag("error", "500");
+    return result;
+  }
+}
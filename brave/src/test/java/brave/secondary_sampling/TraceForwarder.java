@@ -13,12 +13,28 @@
  */
 package brave.secondary_sampling;
 
+import brave.Span.Kind;
+import brave.Tags;
 import brave.handler.MutableSpan;
+import brave.handler.MutableSpanBytesEncoder;
 import brave.handler.SpanHandler;
 import brave.internal.Nullable;
 import brave.propagation.TraceContext;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import zipkin2.Annotation;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.BytesEncoder;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.BytesMessageEncoder;
+import zipkin2.reporter.Reporter;
+
+import static brave.internal.codec.HexCodec.lowerHexToUnsignedLong;
 
 /**
  * This is a simulation of <a href="https://github.com/openzipkin-contrib/zipkin-secondary-sampling/tree/master/docs/design.md#the-trace-forwarder">Trace
@@ -41,10 +57,45 @@ import java.util.Map;
  * to know the hierarchy was rewritten at that point.
  */
 public final class TraceForwarder extends SpanHandler {
+  static final String PARENT_ID_PARAMETER = ";parentId=";
+  static final int MAX_ROUTING_PLANS = 1024;
+
   Map<String, SpanHandler> samplingKeyToSpanHandler = new LinkedHashMap<>();
+  /** Routing by {@code sampled_keys} value, minus any parent IDs. */
+  final Map<String, RoutingPlan> routingPlans = new ConcurrentHashMap<>();
+  @Nullable DependencyLinkAggregator dependencyLinks;
+  @Nullable SamplingKeyQuotas quotas;
 
   public TraceForwarder configureSamplingKey(String samplingKey, SpanHandler consumer) {
     samplingKeyToSpanHandler.put(samplingKey, consumer);
+    routingPlans.clear();
+    return this;
+  }
+
+  /**
+   * Configures a sampling key to report spans already encoded in the given format, for example to
+   * an {@link zipkin2.reporter.AsyncReporter} built with {@link #encodedSpans(Encoding)}.
+   *
+   * <p>A span is encoded once per format, and the same bytes are shared by all sampling keys that
+   * receive it unmodified. Only sampling keys that relink the span to a different {@code parentId}
+   * get their own encoding. This keeps the cost per span flat as more sampling keys overlap.
+   */
+  public TraceForwarder configureSamplingKey(String samplingKey, Encoding encoding,
+      Reporter<byte[]> reporter) {
+    return configureSamplingKey(samplingKey, new EncodedSpanReporter(encoding, reporter));
+  }
+
+  /** Aggregates dependency links of each configured sampling key as spans are forwarded. */
+  public TraceForwarder aggregateDependencyLinks(DependencyLinkAggregator dependencyLinks) {
+    if (dependencyLinks == null) throw new NullPointerException("dependencyLinks == null");
+    this.dependencyLinks = dependencyLinks;
+    return this;
+  }
+
+  /** Drops spans of a sampling key over its quota, and counts usage of all sampling keys. */
+  public TraceForwarder quotas(SamplingKeyQuotas quotas) {
+    if (quotas == null) throw new NullPointerException("quotas == null");
+    this.quotas = quotas;
     return this;
   }
 
@@ -52,31 +103,286 @@ public final class TraceForwarder extends SpanHandler {
     String sampledKeys = span.removeTag("sampled_keys");
     if (sampledKeys == null) return false; // drop data not tagged properly
 
-    // Find any parent ID matching
-    MutableSpan copy = null;
-    for (String entry : sampledKeys.split(",", 100)) {
-      String[] nameMetadata = entry.split(";", 100);
-      String sampledKey = nameMetadata[0];
-      String parentId = findParentId(nameMetadata);
+    // Only parent IDs vary per span, so the rest of the tag value is used to look up routing.
+    String keySet = sampledKeys;
+    String[] parentIds = null;
+    if (sampledKeys.indexOf(PARENT_ID_PARAMETER) != -1) {
+      parentIds = new String[countEntries(sampledKeys)];
+      keySet = removeParentIds(sampledKeys, parentIds);
+    }
+    RoutingPlan plan = routingPlans.get(keySet);
+    if (plan == null) plan = newRoutingPlan(keySet);
+
+    // Encodings of the unmodified span, shared by all sampling keys that report it as-is
+    byte[][] encodedSpans = null;
+    // Size charged to quotas, computed once. Relinked copies are charged the same size.
+    int sizeInBytes = -1;
 
-      if (!samplingKeyToSpanHandler.containsKey(sampledKey)) continue; // skip when unconfigured
+    for (int i = 0; i < plan.samplingKeys.length; i++) {
+      String sampledKey = plan.samplingKeys[i];
+      String parentId = plan.relinks[i] ? parentIds[plan.entryIndexes[i]] : null;
 
-      // Relink the trace to last upstream, saving the real parent ID off as a tag.
+      // Relink the trace to last upstream, saving the real parent ID off as a tag. Each sampling
+      // key gets its own copy as the last upstream can differ between them.
       MutableSpan next = span;
       if (parentId != null) {
-        if (copy == null) {
-          copy = new MutableSpan(span);
-          copy.tag("linkedParentId", span.parentId());
-          copy.unsetShared();
-        }
-        copy.parentId(parentId);
+        next = new MutableSpan(span);
+        next.tag("linkedParentId", span.parentId());
+        next.unsetShared();
+        next.parentId(parentId);
       }
 
-      samplingKeyToSpanHandler.get(sampledKey).end(context, next, cause);
+      if (quotas != null) {
+        if (sizeInBytes == -1) sizeInBytes = EncodedSpanReporter.JSON_V2.sizeInBytes(span);
+        if (!quotas.tryAcquire(sampledKey, sizeInBytes)) continue;
+      }
+      if (dependencyLinks != null) dependencyLinks.accept(sampledKey, next);
+      SpanHandler handler = plan.handlers[i];
+      if (handler instanceof EncodedSpanReporter && next == span) {
+        EncodedSpanReporter reporter = (EncodedSpanReporter) handler;
+        if (encodedSpans == null) encodedSpans = new byte[Encoding.values().length][];
+        int format = reporter.encoding.ordinal();
+        if (encodedSpans[format] == null) encodedSpans[format] = reporter.encode(span);
+        reporter.reporter.report(encodedSpans[format]);
+      } else {
+        handler.end(context, next, cause);
+      }
     }
     return true;
   }
 
+  /**
+   * Routing of a {@code sampled_keys} value, after parent IDs were removed. Entries are in tag
+   * order, and unconfigured sampling keys are skipped.
+   */
+  static final class RoutingPlan {
+    final String[] samplingKeys;
+    final SpanHandler[] handlers;
+    /** Whether the entry has a {@code parentId} parameter */
+    final boolean[] relinks;
+    /** Index of the entry in the tag value, which is also the index of its parent ID */
+    final int[] entryIndexes;
+
+    RoutingPlan(List<String> samplingKeys, List<SpanHandler> handlers, List<Boolean> relinks,
+        List<Integer> entryIndexes) {
+      int size = samplingKeys.size();
+      this.samplingKeys = samplingKeys.toArray(new String[0]);
+      this.handlers = handlers.toArray(new SpanHandler[0]);
+      this.relinks = new boolean[size];
+      this.entryIndexes = new int[size];
+      for (int i = 0; i < size; i++) {
+        this.relinks[i] = relinks.get(i);
+        this.entryIndexes[i] = entryIndexes.get(i);
+      }
+    }
+  }
+
+  RoutingPlan newRoutingPlan(String keySet) {
+    List<String> samplingKeys = new ArrayList<>();
+    List<SpanHandler> handlers = new ArrayList<>();
+    List<Boolean> relinks = new ArrayList<>();
+    List<Integer> entryIndexes = new ArrayList<>();
+    String[] entries = keySet.split(",", 100);
+    for (int i = 0; i < entries.length; i++) {
+      String[] nameMetadata = entries[i].split(";", 100);
+      SpanHandler handler = samplingKeyToSpanHandler.get(nameMetadata[0]);
+      if (handler == null) continue; // skip when unconfigured
+
+      samplingKeys.add(nameMetadata[0]);
+      handlers.add(handler);
+      relinks.add(findParentId(nameMetadata) != null);
+      entryIndexes.add(i);
+    }
+    RoutingPlan result = new RoutingPlan(samplingKeys, handlers, relinks, entryIndexes);
+    // Parent IDs are removed from the key, so this only overflows on abuse. Start over if it does.
+    if (routingPlans.size() >= MAX_ROUTING_PLANS) routingPlans.clear();
+    routingPlans.put(keySet, result);
+    return result;
+  }
+
+  static int countEntries(String sampledKeys) {
+    int result = 1;
+    for (int i = 0, length = sampledKeys.length(); i < length; i++) {
+      if (sampledKeys.charAt(i) == ',') result++;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the tag value with any {@code parentId} values removed, collecting them into the
+   * array by entry index. Ex. {@code b3,gatewayplay;parentId=a} becomes {@code
+   * b3,gatewayplay;parentId=} and {@code parentIds[1] = "a"}.
+   */
+  static String removeParentIds(String sampledKeys, String[] parentIds) {
+    StringBuilder result = new StringBuilder(sampledKeys.length());
+    int entryIndex = 0, i = 0, length = sampledKeys.length();
+    while (i < length) {
+      char c = sampledKeys.charAt(i);
+      if (c == ',') {
+        entryIndex++;
+      } else if (c == ';' && sampledKeys.startsWith(PARENT_ID_PARAMETER, i)) {
+        int valueStart = i + PARENT_ID_PARAMETER.length(), valueEnd = valueStart;
+        while (valueEnd < length) {
+          char v = sampledKeys.charAt(valueEnd);
+          if (v == ',' || v == ';') break;
+          valueEnd++;
+        }
+        if (valueEnd > valueStart) {
+          parentIds[entryIndex] = sampledKeys.substring(valueStart, valueEnd);
+        }
+        result.append(PARENT_ID_PARAMETER);
+        i = valueEnd;
+        continue;
+      }
+      result.append(c);
+      i++;
+    }
+    return result.toString();
+  }
+
+  /** Returns an encoder for spans already encoded in the given format. */
+  public static BytesEncoder<byte[]> encodedSpans(Encoding encoding) {
+    if (encoding == null) throw new NullPointerException("encoding == null");
+    return new BytesEncoder<byte[]>() {
+      @Override public Encoding encoding() {
+        return encoding;
+      }
+
+      @Override public int sizeInBytes(byte[] encodedSpan) {
+        return encodedSpan.length;
+      }
+
+      @Override public byte[] encode(byte[] encodedSpan) {
+        return encodedSpan;
+      }
+
+      @Override public byte[] encodeList(List<byte[]> encodedSpans) {
+        return BytesMessageEncoder.forEncoding(encoding).encode(encodedSpans);
+      }
+    };
+  }
+
+  static final class EncodedSpanReporter extends SpanHandler {
+    static final MutableSpanBytesEncoder JSON_V2 = MutableSpanBytesEncoder.zipkinJsonV2(Tags.ERROR);
+
+    final Encoding encoding;
+    final Reporter<byte[]> reporter;
+
+    EncodedSpanReporter(Encoding encoding, Reporter<byte[]> reporter) {
+      if (encoding == null) throw new NullPointerException("encoding == null");
+      if (reporter == null) throw new NullPointerException("reporter == null");
+      if (encoding == Encoding.THRIFT) throw new IllegalArgumentException("THRIFT is unsupported");
+      this.encoding = encoding;
+      this.reporter = reporter;
+    }
+
+    /** Used when the span was relinked for this sampling key, so can't share an encoding. */
+    @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+      reporter.report(encode(span));
+      return true;
+    }
+
+    byte[] encode(MutableSpan span) {
+      if (encoding == Encoding.JSON) return JSON_V2.encode(span);
+      return SpanBytesEncoder.PROTO3.encode(toSpan(span));
+    }
+
+    @Override public String toString() {
+      return "EncodedSpanReporter{" + encoding + ", " + reporter + "}";
+    }
+  }
+
+  /**
+   * Routes a span decoded from a Zipkin endpoint, such as {@link TraceForwarderServer}, the same
+   * way as if it were {@link #end(TraceContext, MutableSpan, Cause) reported in-process}.
+   */
+  public boolean forward(Span span) {
+    return end(toTraceContext(span), toMutableSpan(span), Cause.FINISHED);
+  }
+
+  static TraceContext toTraceContext(Span span) {
+    String traceId = span.traceId();
+    TraceContext.Builder builder = TraceContext.newBuilder()
+        .traceId(lowerHexToUnsignedLong(traceId, traceId.length() - 16))
+        .spanId(lowerHexToUnsignedLong(span.id()))
+        .shared(Boolean.TRUE.equals(span.shared()));
+    if (traceId.length() == 32) builder.traceIdHigh(lowerHexToUnsignedLong(traceId, 0));
+    if (span.parentId() != null) builder.parentId(lowerHexToUnsignedLong(span.parentId()));
+    return builder.build();
+  }
+
+  static MutableSpan toMutableSpan(Span span) {
+    MutableSpan result = new MutableSpan();
+    result.traceId(span.traceId());
+    result.parentId(span.parentId());
+    result.id(span.id());
+    if (span.kind() != null) result.kind(Kind.valueOf(span.kind().name()));
+    result.name(span.name());
+    long timestamp = span.timestampAsLong(), duration = span.durationAsLong();
+    result.startTimestamp(timestamp);
+    if (timestamp != 0L && duration != 0L) result.finishTimestamp(timestamp + duration);
+
+    Endpoint local = span.localEndpoint();
+    if (local != null) {
+      result.localServiceName(local.serviceName());
+      result.localIp(local.ipv6() != null ? local.ipv6() : local.ipv4());
+      result.localPort(local.portAsInt());
+    }
+    Endpoint remote = span.remoteEndpoint();
+    if (remote != null) {
+      result.remoteServiceName(remote.serviceName());
+      result.remoteIpAndPort(remote.ipv6() != null ? remote.ipv6() : remote.ipv4(),
+          remote.portAsInt());
+    }
+
+    for (Annotation annotation : span.annotations()) {
+      result.annotate(annotation.timestamp(), annotation.value());
+    }
+    span.tags().forEach(result::tag);
+    if (Boolean.TRUE.equals(span.debug())) result.setDebug();
+    if (Boolean.TRUE.equals(span.shared())) result.setShared();
+    return result;
+  }
+
+  static Span toSpan(MutableSpan span) {
+    Span.Builder result = Span.newBuilder()
+        .traceId(span.traceId())
+        .parentId(span.parentId())
+        .id(span.id())
+        .name(span.name());
+    if (span.kind() != null) result.kind(Span.Kind.valueOf(span.kind().name()));
+    long start = span.startTimestamp(), finish = span.finishTimestamp();
+    result.timestamp(start);
+    if (start != 0L && finish != 0L) result.duration(Math.max(finish - start, 1L));
+
+    if (span.localServiceName() != null || span.localIp() != null) {
+      result.localEndpoint(Endpoint.newBuilder()
+          .serviceName(span.localServiceName())
+          .ip(span.localIp())
+          .port(span.localPort())
+          .build());
+    }
+    if (span.remoteServiceName() != null || span.remoteIp() != null) {
+      result.remoteEndpoint(Endpoint.newBuilder()
+          .serviceName(span.remoteServiceName())
+          .ip(span.remoteIp())
+          .port(span.remotePort())
+          .build());
+    }
+
+    span.forEachAnnotation((builder, timestamp, value) -> builder.addAnnotation(timestamp, value),
+        result);
+    span.forEachTag((builder, key, value) -> builder.putTag(key, value), result);
+    Throwable error = span.error();
+    if (error != null && span.tag("error") == null) { // same as Tags.ERROR
+      String message = error.getMessage();
+      result.putTag("error", message != null ? message : error.getClass().getSimpleName());
+    }
+    if (span.debug()) result.debug(true);
+    if (span.shared()) result.shared(true);
+    return result.build();
+  }
+
   @Nullable static String findParentId(String[] nameMetadata) {
     for (int i = 1; i < nameMetadata.length; i++) {
       String[] nameValue = nameMetadata[i].split("=", 2);
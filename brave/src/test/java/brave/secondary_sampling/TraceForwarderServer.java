@@ -0,0 +1,636 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+
+/**
+ * This is a minimal <a href="https://zipkin.io/zipkin-api/#/default/post_spans">Zipkin-compatible
+ * endpoint</a> for the {@link TraceForwarder}. It accepts {@code POST /api/v2/spans}, so that
+ * applications can report directly to the forwarder instead of through a Zipkin server which only
+ * re-dispatches the same data. Legacy applications can also {@code POST /api/v1/spans}, in JSON or
+ * Thrift.
+ *
+ * <p>All connections are serviced by a single selector thread: there is no thread per request.
+ * Requests are read into small pooled direct buffers. The body is never buffered whole: each part
+ * is pushed into a {@link StreamingSpanDecoder} as it arrives from the socket, and every span it
+ * completes is handed to {@link TraceForwarder#forward(Span)} on that same thread. A {@code
+ * Content-Encoding: gzip} body is inflated into the decoder as it arrives, too. So, heap per
+ * request is bounded by the largest span, not by the size of the request, and requests aren't
+ * limited in size unless {@link #maxRequestBytes(int)} is set. If a list is malformed, the
+ * response is status 400, but spans before the malformed one will have already been forwarded.
+ *
+ * <p>This only implements what Zipkin reporters send: requests must include {@code
+ * Content-Length}, as chunked encoding is not supported.
+ */
+public final class TraceForwarderServer implements Closeable {
+  static final Logger LOG = Logger.getLogger(TraceForwarderServer.class.getName());
+  static final int MAX_HEADER_BYTES = 8192, MAX_SPAN_BYTES = 1024 * 1024;
+  /** Size of pooled buffers, which is enough for the headers and a small body. */
+  static final int POOLED_BUFFER_BYTES = 16 * 1024;
+
+  final TraceForwarder forwarder;
+  int maxRequestBytes = Integer.MAX_VALUE, maxPooledBuffers = 8, maxConnections = 256;
+  int connectionCount;
+  final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+  // Inflater only accepts arrays in Java 8. As there is only one thread, these can be shared.
+  final byte[] inflateIn = new byte[8192], inflateOut = new byte[8192];
+
+  volatile boolean closed;
+  Selector selector;
+  ServerSocketChannel serverChannel;
+  SelectionKey serverKey;
+  Thread selectorThread;
+
+  public TraceForwarderServer(TraceForwarder forwarder) {
+    if (forwarder == null) throw new NullPointerException("forwarder == null");
+    this.forwarder = forwarder;
+  }
+
+  /**
+   * Requests whose body, after any decompression, exceed this are rejected with status 413. As
+   * bodies are decoded as they arrive, this doesn't affect memory use. Defaults to no limit.
+   */
+  public TraceForwarderServer maxRequestBytes(int maxRequestBytes) {
+    if (maxRequestBytes <= 0) throw new IllegalArgumentException("maxRequestBytes <= 0");
+    this.maxRequestBytes = maxRequestBytes;
+    return this;
+  }
+
+  /** Limits how many idle direct buffers are retained for reuse by later requests. */
+  public TraceForwarderServer maxPooledBuffers(int maxPooledBuffers) {
+    if (maxPooledBuffers < 0) throw new IllegalArgumentException("maxPooledBuffers < 0");
+    this.maxPooledBuffers = maxPooledBuffers;
+    return this;
+  }
+
+  /**
+   * Limits how many connections are open at the same time. Once reached, new connections wait in
+   * the accept backlog until an open one closes.
+   */
+  public TraceForwarderServer maxConnections(int maxConnections) {
+    if (maxConnections <= 0) throw new IllegalArgumentException("maxConnections <= 0");
+    this.maxConnections = maxConnections;
+    return this;
+  }
+
+  /** Binds the server and starts the selector thread. Use port zero to pick an ephemeral port. */
+  public TraceForwarderServer start(InetSocketAddress address) throws IOException {
+    if (selector != null) throw new IllegalStateException("already started");
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.configureBlocking(false);
+    serverChannel.bind(address);
+    serverKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    selectorThread = new Thread(this::run, "TraceForwarderServer");
+    selectorThread.setDaemon(true);
+    selectorThread.start();
+    return this;
+  }
+
+  /** The port this server is listening on, which is useful when started with port zero. */
+  public int port() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  @Override public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    if (selector == null) return;
+    selector.wakeup();
+    try {
+      selectorThread.join(1000L);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  void run() {
+    try {
+      while (!closed) {
+        selector.select();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          try {
+            if (!key.isValid()) continue;
+            if (key.isAcceptable()) {
+              accept();
+            } else {
+              Connection connection = (Connection) key.attachment();
+              if (key.isReadable()) connection.read();
+              if (key.isValid() && key.isWritable()) connection.write();
+            }
+          } catch (IOException | RuntimeException e) {
+            LOG.log(Level.FINE, "dropping connection", e);
+            if (key.attachment() != null) ((Connection) key.attachment()).close();
+          }
+        }
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "selector loop failed", e);
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() != null) ((Connection) key.attachment()).close();
+      }
+      closeQuietly(serverChannel);
+      closeQuietly(selector);
+    }
+  }
+
+  void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) return;
+    channel.configureBlocking(false);
+    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+    key.attach(new Connection(key, channel));
+    // stop accepting until a connection closes, leaving new ones in the backlog
+    if (++connectionCount == maxConnections) serverKey.interestOps(0);
+  }
+
+  void connectionClosed() {
+    if (connectionCount-- == maxConnections && serverKey.isValid()) {
+      serverKey.interestOps(SelectionKey.OP_ACCEPT);
+    }
+  }
+
+  ByteBuffer acquireBuffer() {
+    ByteBuffer result = bufferPool.pollFirst();
+    if (result == null) result = ByteBuffer.allocateDirect(POOLED_BUFFER_BYTES);
+    result.clear();
+    return result;
+  }
+
+  /** Only buffers from the pool are returned to it, as grown ones are sized for one request. */
+  void releaseBuffer(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect() || buffer.capacity() != POOLED_BUFFER_BYTES) return;
+    if (bufferPool.size() < maxPooledBuffers) bufferPool.addFirst(buffer);
+  }
+
+  /** Tracks the HTTP/1.1 exchanges of one socket. Only accessed by the selector thread. */
+  final class Connection {
+    final SelectionKey key;
+    final SocketChannel channel;
+    /**
+     * Socket input: the request headers, followed by any part of the body not yet decoded, as
+     * received on the wire.
+     */
+    ByteBuffer input;
+    GzipInflater gzip;
+    StreamingSpanDecoder decoder;
+    ByteBuffer response;
+
+    // state of the current request
+    int headerLength = -1, contentLength, bodyRead, inflatedLength;
+    boolean closeAfterResponse, gzipped;
+    SpanBytesDecoder format;
+    int errorStatus;
+    boolean closed;
+
+    Connection(SelectionKey key, SocketChannel channel) {
+      this.key = key;
+      this.channel = channel;
+    }
+
+    void read() throws IOException {
+      if (input == null) input = acquireBuffer();
+      if (channel.read(input) == -1) {
+        close();
+        return;
+      }
+      processInput();
+    }
+
+    void processInput() throws IOException {
+      if (response != null) return; // wait until the prior response is flushed
+      if (headerLength == -1 && !parseHeaders()) return;
+
+      if (errorStatus == 0) readBody();
+      if (errorStatus != 0) {
+        // We can't trust the remaining input, so don't continue the connection.
+        closeAfterResponse = true;
+        respond(errorStatus);
+      } else if (bodyRead == contentLength) {
+        respond(dispatch());
+      }
+    }
+
+    /** Returns false if more input is needed to read all headers. */
+    boolean parseHeaders() {
+      int end = indexOfHeaderEnd(input);
+      if (end == -1) {
+        if (input.position() >= MAX_HEADER_BYTES) {
+          headerLength = input.position();
+          errorStatus = 431;
+          return true;
+        }
+        return false;
+      }
+      headerLength = end;
+      byte[] headerBytes = new byte[end];
+      ByteBuffer duplicate = (ByteBuffer) input.duplicate().flip();
+      duplicate.get(headerBytes);
+      String[] lines = new String(headerBytes, StandardCharsets.ISO_8859_1).split("\r\n");
+      String[] requestLine = lines[0].split(" ", 3);
+      contentLength = -1;
+      String contentType = "application/json";
+      closeAfterResponse = requestLine.length == 3 && "HTTP/1.0".equals(requestLine[2]);
+      gzipped = false;
+      for (int i = 1; i < lines.length; i++) {
+        int colon = lines[i].indexOf(':');
+        if (colon == -1) continue;
+        String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+        String value = lines[i].substring(colon + 1).trim();
+        switch (name) {
+          case "content-length":
+            try {
+              contentLength = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+              errorStatus = 400;
+            }
+            break;
+          case "content-encoding":
+            gzipped = "gzip".equalsIgnoreCase(value);
+            if (!gzipped && !"identity".equalsIgnoreCase(value)) errorStatus = 415;
+            break;
+          case "content-type":
+            contentType = value;
+            break;
+          case "connection":
+            closeAfterResponse = "close".equalsIgnoreCase(value);
+            break;
+          case "transfer-encoding":
+            if (!"identity".equalsIgnoreCase(value)) errorStatus = 411;
+            break;
+          default:
+        }
+      }
+      if (errorStatus != 0) return true;
+      if (requestLine.length != 3) {
+        errorStatus = 400;
+      } else if (!"/api/v2/spans".equals(requestLine[1])
+          && !"/api/v1/spans".equals(requestLine[1])) {
+        errorStatus = 404;
+      } else if (!"POST".equals(requestLine[0])) {
+        errorStatus = 405;
+      } else if ((format = formatForContentType(requestLine[1], contentType)) == null) {
+        errorStatus = 415;
+      } else if (contentLength == -1) {
+        errorStatus = 411;
+      } else if (contentLength > maxRequestBytes) {
+        errorStatus = 413;
+      } else {
+        if (gzipped) {
+          if (gzip == null) gzip = new GzipInflater();
+          gzip.reset();
+          inflatedLength = 0;
+        }
+        if (decoder == null) decoder = new StreamingSpanDecoder(MAX_SPAN_BYTES);
+        decoder.begin(format, forwarder::forward);
+      }
+      return true;
+    }
+
+    /** Decodes whatever part of the body arrived since the last read, then drops it from input. */
+    void readBody() {
+      int available = Math.min(contentLength - bodyRead, input.position() - headerLength);
+      if (available == 0) return;
+      ByteBuffer body = input.duplicate();
+      body.limit(headerLength + available).position(headerLength);
+      try {
+        if (!gzipped) {
+          decoder.feed(body);
+        } else if (!gzip.inflate(body, this)) {
+          errorStatus = 413;
+          return;
+        }
+      } catch (DataFormatException | IllegalArgumentException e) {
+        LOG.log(Level.FINE, "could not decode spans", e);
+        errorStatus = 400;
+        return;
+      }
+      bodyRead += available;
+      compact(input, headerLength, available);
+      if (bodyRead == contentLength && gzipped && !gzip.finished()) errorStatus = 400;
+    }
+
+    /** Returns false if the inflated body would exceed {@link #maxRequestBytes}. */
+    boolean decodeInflated(byte[] bytes, int length) {
+      if (length > maxRequestBytes - inflatedLength) return false;
+      inflatedLength += length;
+      decoder.feed(ByteBuffer.wrap(bytes, 0, length));
+      return true;
+    }
+
+    int dispatch() {
+      try {
+        decoder.finish();
+      } catch (IllegalArgumentException e) {
+        LOG.log(Level.FINE, "could not decode spans", e);
+        return 400;
+      }
+      return 202;
+    }
+
+    void respond(int status) throws IOException {
+      // Remove the headers just processed, leaving any pipelined request in the input buffer. The
+      // body was already removed as it was decoded.
+      compact(input, 0, Math.min(headerLength, input.position()));
+      headerLength = -1;
+      bodyRead = 0;
+      errorStatus = 0;
+
+      response = ByteBuffer.wrap(statusLine(status, closeAfterResponse));
+      write();
+    }
+
+    void write() throws IOException {
+      channel.write(response);
+      if (response.hasRemaining()) {
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      response = null;
+      if (closeAfterResponse) {
+        close();
+        return;
+      }
+      key.interestOps(SelectionKey.OP_READ);
+      if (input.position() > 0) {
+        processInput();
+      } else {
+        releaseBuffer(input);
+        input = null;
+      }
+    }
+
+    void close() {
+      if (closed) return;
+      closed = true;
+      connectionClosed();
+      key.cancel();
+      closeQuietly(channel);
+      releaseBuffer(input);
+      input = null;
+    }
+  }
+
+  /**
+   * Inflates a gzip stream incrementally, as parts of it arrive. This parses the <a
+   * href="https://tools.ietf.org/html/rfc1952">gzip</a> header and trailer, which {@link Inflater}
+   * does not.
+   */
+  final class GzipInflater {
+    static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+    static final int
+        STATE_HEADER = 0,
+        STATE_EXTRA_LENGTH = 1,
+        STATE_EXTRA = 2,
+        STATE_NAME = 3,
+        STATE_COMMENT = 4,
+        STATE_HEADER_CRC = 5,
+        STATE_DEFLATE = 6,
+        STATE_TRAILER = 7,
+        STATE_FINISHED = 8;
+
+    final Inflater inflater = new Inflater(true);
+    final CRC32 crc = new CRC32();
+    final byte[] trailer = new byte[8];
+    int state, flags, remaining, extraLength;
+
+    void reset() {
+      inflater.reset();
+      crc.reset();
+      state = STATE_HEADER;
+      flags = 0;
+      remaining = 10;
+      extraLength = 0;
+    }
+
+    boolean finished() {
+      return state == STATE_FINISHED;
+    }
+
+    /**
+     * Consumes the input, decoding any inflated bytes on the connection. Returns false if the
+     * inflated body is too large.
+     */
+    boolean inflate(ByteBuffer in, Connection out) throws DataFormatException {
+      while (in.hasRemaining()) {
+        switch (state) {
+          case STATE_HEADER:
+            readFixedHeader(in.get());
+            break;
+          case STATE_EXTRA_LENGTH:
+            extraLength |= (in.get() & 0xff) << (8 * (2 - remaining));
+            if (--remaining == 0) {
+              remaining = extraLength;
+              state = remaining == 0 ? nextHeaderState(STATE_EXTRA) : STATE_EXTRA;
+            }
+            break;
+          case STATE_EXTRA:
+            int skip = Math.min(remaining, in.remaining());
+            in.position(in.position() + skip);
+            if ((remaining -= skip) == 0) state = nextHeaderState(STATE_EXTRA);
+            break;
+          case STATE_NAME:
+          case STATE_COMMENT:
+            if (in.get() == 0) state = nextHeaderState(state);
+            break;
+          case STATE_HEADER_CRC:
+            in.get();
+            if (--remaining == 0) state = STATE_DEFLATE;
+            break;
+          case STATE_DEFLATE:
+            if (!inflateDeflate(in, out)) return false;
+            break;
+          case STATE_TRAILER:
+            trailer[8 - remaining] = in.get();
+            if (--remaining == 0) verifyTrailer();
+            break;
+          default: // STATE_FINISHED: ignore anything after the trailer
+            in.position(in.limit());
+        }
+      }
+      return true;
+    }
+
+    void readFixedHeader(byte b) throws DataFormatException {
+      int index = 10 - remaining--;
+      if ((index == 0 && b != (byte) 0x1f) || (index == 1 && b != (byte) 0x8b)) {
+        throw new DataFormatException("not in gzip format");
+      } else if (index == 2 && b != 8) {
+        throw new DataFormatException("unsupported compression method " + b);
+      } else if (index == 3) {
+        flags = b;
+      }
+      if (remaining == 0) state = nextHeaderState(STATE_HEADER);
+    }
+
+    /** Returns the state after the given one, skipping optional header fields not present. */
+    int nextHeaderState(int state) {
+      if (state < STATE_EXTRA_LENGTH && (flags & FEXTRA) != 0) {
+        remaining = 2;
+        return STATE_EXTRA_LENGTH;
+      }
+      if (state < STATE_NAME && (flags & FNAME) != 0) return STATE_NAME;
+      if (state < STATE_COMMENT && (flags & FCOMMENT) != 0) return STATE_COMMENT;
+      if (state < STATE_HEADER_CRC && (flags & FHCRC) != 0) {
+        remaining = 2;
+        return STATE_HEADER_CRC;
+      }
+      return STATE_DEFLATE;
+    }
+
+    boolean inflateDeflate(ByteBuffer in, Connection out) throws DataFormatException {
+      int length = Math.min(in.remaining(), inflateIn.length);
+      in.get(inflateIn, 0, length);
+      inflater.setInput(inflateIn, 0, length);
+      while (true) {
+        int count = inflater.inflate(inflateOut);
+        if (count > 0) {
+          if (!out.decodeInflated(inflateOut, count)) return false;
+          crc.update(inflateOut, 0, count);
+        }
+        if (inflater.finished()) {
+          // Give back any input past the deflate stream, as that's the trailer.
+          in.position(in.position() - inflater.getRemaining());
+          state = STATE_TRAILER;
+          remaining = 8;
+          return true;
+        }
+        if (inflater.needsInput()) return true;
+        if (inflater.needsDictionary()) throw new DataFormatException("dictionary required");
+      }
+    }
+
+    void verifyTrailer() throws DataFormatException {
+      if (readIntLe(trailer, 0) != (int) crc.getValue()) {
+        throw new DataFormatException("corrupt gzip trailer: crc mismatch");
+      }
+      if (readIntLe(trailer, 4) != (int) inflater.getBytesWritten()) {
+        throw new DataFormatException("corrupt gzip trailer: size mismatch");
+      }
+      state = STATE_FINISHED;
+    }
+  }
+
+  /** Returns null if the content type is not supported on the given path. */
+  static SpanBytesDecoder formatForContentType(String path, String contentType) {
+    int semicolon = contentType.indexOf(';');
+    String mediaType = (semicolon == -1 ? contentType : contentType.substring(0, semicolon))
+        .trim().toLowerCase(Locale.ROOT);
+    boolean v1 = "/api/v1/spans".equals(path);
+    switch (mediaType) {
+      case "application/json":
+        return v1 ? SpanBytesDecoder.JSON_V1 : SpanBytesDecoder.JSON_V2;
+      case "application/x-protobuf":
+        return v1 ? null : SpanBytesDecoder.PROTO3;
+      case "application/x-thrift":
+        return v1 ? SpanBytesDecoder.THRIFT : null;
+      default:
+        return null;
+    }
+  }
+
+  /** Returns the length of the headers including the terminating CRLF CRLF, or -1. */
+  static int indexOfHeaderEnd(ByteBuffer input) {
+    for (int i = 3, length = input.position(); i < length; i++) {
+      if (input.get(i) == '\n' && input.get(i - 1) == '\r'
+          && input.get(i - 2) == '\n' && input.get(i - 3) == '\r') {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  /** Removes {@code length} bytes starting at {@code offset} from the written part of buffer. */
+  static void compact(ByteBuffer buffer, int offset, int length) {
+    if (length == 0) return;
+    int end = buffer.position();
+    for (int i = offset + length; i < end; i++) {
+      buffer.put(i - length, buffer.get(i));
+    }
+    buffer.position(end - length);
+  }
+
+  static int readIntLe(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff)
+        | (bytes[offset + 1] & 0xff) << 8
+        | (bytes[offset + 2] & 0xff) << 16
+        | (bytes[offset + 3] & 0xff) << 24;
+  }
+
+  static byte[] statusLine(int status, boolean close) {
+    String reason;
+    switch (status) {
+      case 202:
+        reason = "Accepted";
+        break;
+      case 400:
+        reason = "Bad Request";
+        break;
+      case 404:
+        reason = "Not Found";
+        break;
+      case 405:
+        reason = "Method Not Allowed";
+        break;
+      case 411:
+        reason = "Length Required";
+        break;
+      case 413:
+        reason = "Payload Too Large";
+        break;
+      case 415:
+        reason = "Unsupported Media Type";
+        break;
+      case 431:
+        reason = "Request Header Fields Too Large";
+        break;
+      default:
+        reason = "Error";
+    }
+    return ("HTTP/1.1 " + status + " " + reason + "\r\n"
+        + "Content-Length: 0\r\n"
+        + (close ? "Connection: close\r\n" : "")
+        + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.handler.MutableSpan;
+import brave.test.TestSpanHandler;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TraceForwarderServerTest {
+  TestSpanHandler zipkin = new TestSpanHandler();
+  TestSpanHandler gatewayplay = new TestSpanHandler();
+
+  TraceForwarder traceForwarder = new TraceForwarder()
+      .configureSamplingKey("b3", zipkin)
+      .configureSamplingKey("gatewayplay", gatewayplay);
+  TraceForwarderServer server = new TraceForwarderServer(traceForwarder);
+
+  Span gateway = Span.newBuilder()
+      .traceId("463ac35c9f6413ad48485a3953bb6124")
+      .id("a")
+      .kind(Span.Kind.SERVER)
+      .name("get /play")
+      .localEndpoint(Endpoint.newBuilder().serviceName("gateway").ip("10.0.0.1").build())
+      .timestamp(1472470996199000L)
+      .duration(207000L)
+      .putTag("sampled_keys", "b3,gatewayplay")
+      .build();
+  Span playback = Span.newBuilder()
+      .traceId("463ac35c9f6413ad48485a3953bb6124")
+      .parentId("b")
+      .id("c")
+      .kind(Span.Kind.SERVER)
+      .name("get /play")
+      .localEndpoint(Endpoint.newBuilder().serviceName("playback").build())
+      .shared(true)
+      .putTag("sampled_keys", "b3")
+      .build();
+  List<Span> spans = Arrays.asList(gateway, playback);
+
+  @Before public void start() throws IOException {
+    server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+  }
+
+  @After public void close() throws IOException {
+    server.close();
+  }
+
+  @Test public void acceptsJson() throws IOException {
+    byte[] body = SpanBytesEncoder.JSON_V2.encodeList(spans);
+
+    assertThat(post("/api/v2/spans", "application/json", false, body)).isEqualTo(202);
+
+    assertThat(zipkin).extracting(MutableSpan::localServiceName)
+        .containsExactly("gateway", "playback");
+    assertThat(gatewayplay).extracting(MutableSpan::localServiceName)
+        .containsExactly("gateway");
+  }
+
+  @Test public void acceptsProto3() throws IOException {
+    byte[] body = SpanBytesEncoder.PROTO3.encodeList(spans);
+
+    assertThat(post("/api/v2/spans", "application/x-protobuf", false, body)).isEqualTo(202);
+
+    assertThat(zipkin).extracting(MutableSpan::localServiceName)
+        .containsExactly("gateway", "playback");
+  }
+
+  @Test public void acceptsGzip() throws IOException {
+    byte[] body = gzip(SpanBytesEncoder.JSON_V2.encodeList(spans));
+
+    assertThat(post("/api/v2/spans", "application/json", true, body)).isEqualTo(202);
+
+    assertThat(zipkin).extracting(MutableSpan::localServiceName)
+        .containsExactly("gateway", "playback");
+  }
+
+  /** HttpURLConnection re-uses the socket, so this shows the connection is reset between calls */
+  @Test public void keepAlive() throws IOException {
+    byte[] body = SpanBytesEncoder.JSON_V2.encodeList(spans);
+
+    for (int i = 0; i < 3; i++) {
+      assertThat(post("/api/v2/spans", "application/json", i % 2 == 0, i % 2 == 0 ? gzip(body) : body))
+          .isEqualTo(202);
+    }
+
+    assertThat(zipkin.spans()).hasSize(6);
+  }
+
+  @Test public void convertsToMutableSpan() throws IOException {
+    post("/api/v2/spans", "application/json", false, SpanBytesEncoder.JSON_V2.encodeList(spans));
+
+    MutableSpan span = zipkin.get(0);
+    assertThat(span.traceId()).isEqualTo(gateway.traceId());
+    assertThat(span.id()).isEqualTo("000000000000000a");
+    assertThat(span.kind()).isEqualTo(brave.Span.Kind.SERVER);
+    assertThat(span.localIp()).isEqualTo("10.0.0.1");
+    assertThat(span.startTimestamp()).isEqualTo(gateway.timestampAsLong());
+    assertThat(span.finishTimestamp() - span.startTimestamp()).isEqualTo(gateway.durationAsLong());
+    assertThat(span.tags()).doesNotContainKey("sampled_keys");
+    assertThat(zipkin.get(1).shared()).isTrue();
+  }
+
+  @Test public void badRequest_malformedBody() throws IOException {
+    assertThat(post("/api/v2/spans", "application/json", false, new byte[] {'[', '{'}))
+        .isEqualTo(400);
+    assertThat(zipkin).isEmpty();
+  }
+
+  @Test public void badRequest_malformedGzip() throws IOException {
+    assertThat(post("/api/v2/spans", "application/json", true, new byte[] {1, 2, 3}))
+        .isEqualTo(400);
+  }
+
+  @Test public void acceptsLegacyThrift() throws IOException {
+    byte[] body = SpanBytesEncoder.THRIFT.encodeList(spans);
+
+    assertThat(post("/api/v1/spans", "application/x-thrift", false, body)).isEqualTo(202);
+    assertThat(zipkin.spans()).extracting(MutableSpan::localServiceName)
+        .containsExactly("gateway", "playback");
+    assertThat(gatewayplay.spans()).hasSize(1);
+  }
+
+  @Test public void notFound() throws IOException {
+    assertThat(post("/api/v2/traces", "application/json", false, new byte[] {'[', ']'}))
+        .isEqualTo(404);
+  }
+
+  @Test public void unsupportedMediaType() throws IOException {
+    assertThat(post("/api/v2/spans", "text/plain", false, new byte[] {1}))
+        .isEqualTo(415);
+    assertThat(post("/api/v2/spans", "application/x-thrift", false, new byte[] {1}))
+        .isEqualTo(415);
+  }
+
+  @Test public void payloadTooLarge() throws IOException {
+    server.close();
+    server = new TraceForwarderServer(traceForwarder).maxRequestBytes(16 * 1024)
+        .start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+    assertThat(post("/api/v2/spans", "application/json", false, new byte[32 * 1024]))
+        .isEqualTo(413);
+  }
+
+  /** Bodies are decoded as they arrive, so aren't limited by the size of a buffer. */
+  @Test public void largeRequest() throws IOException {
+    List<Span> many = new ArrayList<>();
+    for (int i = 1; i <= 500; i++) {
+      many.add(gateway.toBuilder().id(i).build());
+    }
+    byte[] body = SpanBytesEncoder.JSON_V2.encodeList(many);
+    assertThat(body.length).isGreaterThan(TraceForwarderServer.POOLED_BUFFER_BYTES * 4);
+
+    assertThat(post("/api/v2/spans", "application/json", false, body)).isEqualTo(202);
+    assertThat(post("/api/v2/spans", "application/json", true, gzip(body))).isEqualTo(202);
+
+    assertThat(zipkin.spans()).hasSize(1000);
+  }
+
+  /** Shows spans are forwarded before the rest of the body is sent. */
+  @Test public void forwardsSpansAsBodyArrives() throws Exception {
+    byte[] body = SpanBytesEncoder.JSON_V2.encodeList(spans);
+    int firstSpanEnd = SpanBytesEncoder.JSON_V2.encodeList(spans.subList(0, 1)).length - 1;
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+      OutputStream out = socket.getOutputStream();
+      out.write(("POST /api/v2/spans HTTP/1.1\r\n"
+          + "Content-Type: application/json\r\n"
+          + "Content-Length: " + body.length + "\r\n"
+          + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      out.write(body, 0, firstSpanEnd);
+      out.flush();
+
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (zipkin.spans().isEmpty() && System.nanoTime() < deadline) Thread.sleep(10L);
+      assertThat(zipkin).extracting(MutableSpan::localServiceName).containsExactly("gateway");
+
+      out.write(body, firstSpanEnd, body.length - firstSpanEnd);
+      out.flush();
+      byte[] statusLine = new byte[12];
+      new DataInputStream(socket.getInputStream()).readFully(statusLine);
+      assertThat(new String(statusLine, StandardCharsets.ISO_8859_1)).isEqualTo("HTTP/1.1 202");
+    }
+    assertThat(zipkin.spans()).hasSize(2);
+  }
+
+  @Test public void payloadTooLarge_gzip() throws IOException {
+    server.close();
+    server = new TraceForwarderServer(traceForwarder).maxRequestBytes(16 * 1024)
+        .start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+    // whitespace is valid JSON, so this is rejected for its size, not as malformed
+    byte[] body = new byte[32 * 1024];
+    Arrays.fill(body, (byte) ' ');
+    body[0] = '[';
+    assertThat(post("/api/v2/spans", "application/json", true, gzip(body))).isEqualTo(413);
+  }
+
+  @Test public void maxConnections() throws IOException {
+    server.close();
+    server = new TraceForwarderServer(traceForwarder).maxConnections(1)
+        .start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    byte[] body = SpanBytesEncoder.JSON_V2.encodeList(spans);
+
+    Socket idle = new Socket(InetAddress.getLoopbackAddress(), server.port());
+    try {
+      // the idle connection holds the only slot, so this request isn't read
+      assertThatThrownBy(() -> post("/api/v2/spans", "application/json", false, body, 500))
+          .isInstanceOf(SocketTimeoutException.class);
+    } finally {
+      idle.close();
+    }
+
+    assertThat(post("/api/v2/spans", "application/json", false, body)).isEqualTo(202);
+  }
+
+  int post(String path, String contentType, boolean gzip, byte[] body) throws IOException {
+    return post(path, contentType, gzip, body, 0);
+  }
+
+  int post(String path, String contentType, boolean gzip, byte[] body, int readTimeout)
+      throws IOException {
+    URL url = new URL("http://127.0.0.1:" + server.port() + path);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod("POST");
+    connection.setReadTimeout(readTimeout);
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", contentType);
+    if (gzip) connection.setRequestProperty("Content-Encoding", "gzip");
+    connection.setFixedLengthStreamingMode(body.length);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(body);
+    } catch (IOException e) {
+      // the server can respond before reading the body, for example when it is too large
+    }
+    int status = connection.getResponseCode();
+    // Closing the response, as opposed to disconnecting, allows the socket to be reused.
+    InputStream response = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+    if (response != null) response.close();
+    return status;
+  }
+
+  static byte[] gzip(byte[] input) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+      gzip.write(input);
+    }
+    return bytes.toByteArray();
+  }
+}
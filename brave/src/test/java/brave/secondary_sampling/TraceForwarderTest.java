@@ -0,0 +1,146 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.Span.Kind;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler.Cause;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesDecoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceForwarderTest {
+  List<byte[]> zipkin = new ArrayList<>(), gatewayplay = new ArrayList<>();
+  List<byte[]> authcache = new ArrayList<>(), license = new ArrayList<>();
+
+  TraceContext context = TraceContext.newBuilder().traceId(1L).parentId(2L).spanId(3L).build();
+  MutableSpan span = new MutableSpan(context, null);
+
+  {
+    span.kind(Kind.SERVER);
+    span.name("get /play");
+    span.localServiceName("playback");
+    span.startTimestamp(1000L);
+    span.finishTimestamp(1500L);
+  }
+
+  @Test public void encodesOncePerFormat() {
+    TraceForwarder traceForwarder = new TraceForwarder()
+        .configureSamplingKey("b3", Encoding.JSON, zipkin::add)
+        .configureSamplingKey("gatewayplay", Encoding.JSON, gatewayplay::add)
+        .configureSamplingKey("authcache", Encoding.PROTO3, authcache::add)
+        .configureSamplingKey("license100pct", Encoding.PROTO3, license::add);
+
+    span.tag("sampled_keys", "b3,gatewayplay,authcache,license100pct");
+    traceForwarder.end(context, span, Cause.FINISHED);
+
+    assertThat(gatewayplay.get(0)).isSameAs(zipkin.get(0));
+    assertThat(license.get(0)).isSameAs(authcache.get(0));
+
+    assertThat(SpanBytesDecoder.JSON_V2.decodeOne(zipkin.get(0)))
+        .isEqualTo(SpanBytesDecoder.PROTO3.decodeOne(authcache.get(0)))
+        .extracting(Span::localServiceName).isEqualTo("playback");
+  }
+
+  @Test public void encodesRelinkedSpanPerSamplingKey() {
+    TraceForwarder traceForwarder = new TraceForwarder()
+        .configureSamplingKey("b3", Encoding.JSON, zipkin::add)
+        .configureSamplingKey("gatewayplay", Encoding.JSON, gatewayplay::add)
+        .configureSamplingKey("authcache", Encoding.JSON, authcache::add);
+
+    span.tag("sampled_keys", "b3,gatewayplay;parentId=000000000000000a,authcache");
+    traceForwarder.end(context, span, Cause.FINISHED);
+
+    assertThat(authcache.get(0)).isSameAs(zipkin.get(0));
+    assertThat(gatewayplay.get(0)).isNotSameAs(zipkin.get(0));
+
+    Span relinked = SpanBytesDecoder.JSON_V2.decodeOne(gatewayplay.get(0));
+    assertThat(relinked.parentId()).isEqualTo("000000000000000a");
+    assertThat(relinked.tags()).containsEntry("linkedParentId", "0000000000000002");
+  }
+
+  @Test public void routingPlan_cachedByKeySet() {
+    TraceForwarder traceForwarder = new TraceForwarder()
+        .configureSamplingKey("b3", Encoding.JSON, zipkin::add)
+        .configureSamplingKey("gatewayplay", Encoding.JSON, gatewayplay::add);
+
+    for (String parentId : Arrays.asList("000000000000000a", "000000000000000b")) {
+      MutableSpan next = new MutableSpan(span);
+      next.tag("sampled_keys", "b3,authcache,gatewayplay;parentId=" + parentId + ";ttl=1");
+      traceForwarder.end(context, next, Cause.FINISHED);
+    }
+
+    assertThat(traceForwarder.routingPlans).containsOnlyKeys(
+        "b3,authcache,gatewayplay;parentId=;ttl=1");
+    TraceForwarder.RoutingPlan plan = traceForwarder.routingPlans.values().iterator().next();
+    assertThat(plan.samplingKeys).containsExactly("b3", "gatewayplay"); // authcache unconfigured
+    assertThat(plan.relinks).containsExactly(false, true);
+    assertThat(plan.entryIndexes).containsExactly(0, 2);
+
+    assertThat(gatewayplay).extracting(b -> SpanBytesDecoder.JSON_V2.decodeOne(b).parentId())
+        .containsExactly("000000000000000a", "000000000000000b");
+  }
+
+  @Test public void routingPlan_invalidatedOnConfigure() {
+    TraceForwarder traceForwarder = new TraceForwarder()
+        .configureSamplingKey("b3", Encoding.JSON, zipkin::add);
+
+    span.tag("sampled_keys", "b3,gatewayplay");
+    traceForwarder.end(context, new MutableSpan(span), Cause.FINISHED);
+    traceForwarder.configureSamplingKey("gatewayplay", Encoding.JSON, gatewayplay::add);
+    traceForwarder.end(context, new MutableSpan(span), Cause.FINISHED);
+
+    assertThat(zipkin).hasSize(2);
+    assertThat(gatewayplay).hasSize(1);
+  }
+
+  @Test public void removeParentIds() {
+    String[] parentIds = new String[3];
+
+    assertThat(TraceForwarder.removeParentIds(
+        "b3;parentId=a,gatewayplay,authcache;ttl=1;parentId=b", parentIds))
+        .isEqualTo("b3;parentId=,gatewayplay,authcache;ttl=1;parentId=");
+    assertThat(parentIds).containsExactly("a", null, "b");
+  }
+
+  @Test public void encodedSpans_encodesList() {
+    byte[] span1 = {'{', '}'}, span2 = {'{', '}'};
+
+    assertThat(TraceForwarder.encodedSpans(Encoding.JSON).encodeList(Arrays.asList(span1, span2)))
+        .isEqualTo(new byte[] {'[', '{', '}', ',', '{', '}', ']'});
+  }
+
+  @Test public void toSpan_roundTrips() {
+    span.remoteServiceName("api");
+    span.localIp("10.0.0.1");
+    span.annotate(1200L, "wr");
+    span.tag("http.path", "/play");
+    span.error(new IllegalStateException("boom"));
+
+    Span converted = TraceForwarder.toSpan(span);
+    assertThat(converted.tags()).containsEntry("error", "boom");
+
+    MutableSpan roundTripped = TraceForwarder.toMutableSpan(converted);
+    roundTripped.error(span.error());
+    roundTripped.removeTag("error");
+    assertThat(roundTripped).isEqualTo(span);
+  }
+}
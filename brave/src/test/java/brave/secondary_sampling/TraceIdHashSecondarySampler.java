@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This samples each key at a fixed rate, deciding from a hash of the trace ID instead of a counter
+ * or random number. Every node configured with the same salt and rate makes the same decision for
+ * a trace, without propagating state or sharing counters. This results in consistent partial
+ * traces, as opposed to fragments recorded by uncorrelated nodes.
+ *
+ * <p>The hash mixes in the sampling key, so that keys at the same rate don't select the same
+ * traces. The salt lets a deployment choose different traces than another with the same keys.
+ *
+ * <p>When the trace starts at this node, there is no trace ID yet, as it is only created with the
+ * first span. Rather than decide randomly, and disagree with downstream nodes that hash the actual
+ * trace ID, keys at a partial rate are not sampled here. The key is still propagated, so nodes
+ * downstream decide from the trace ID as usual.
+ */
+public final class TraceIdHashSecondarySampler implements SecondarySampler {
+  public static Builder newBuilder(long salt) {
+    return new Builder(salt);
+  }
+
+  public static final class Builder {
+    final long salt;
+    final Map<String, Float> rates = new LinkedHashMap<>();
+
+    Builder(long salt) {
+      this.salt = salt;
+    }
+
+    /** @param rate the ratio of traces sampled for this key, from 0.0 to 1.0 */
+    public Builder putRate(String samplingKey, float rate) {
+      if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+      if (!(rate >= 0.0f && rate <= 1.0f)) {
+        throw new IllegalArgumentException("rate should be between 0.0 and 1.0: was " + rate);
+      }
+      rates.put(samplingKey, rate);
+      return this;
+    }
+
+    public TraceIdHashSecondarySampler build() {
+      return new TraceIdHashSecondarySampler(this);
+    }
+  }
+
+  final Map<String, Rule> rules = new LinkedHashMap<>();
+
+  TraceIdHashSecondarySampler(Builder builder) {
+    builder.rates.forEach((key, rate) -> {
+      // String.hashCode is specified, so the seed is the same on every node
+      long seed = mix(builder.salt ^ key.hashCode());
+      rules.put(key, new Rule(seed, threshold(rate)));
+    });
+  }
+
+  @Override public boolean isSampled(Object request, MutableSecondarySamplingState state) {
+    Rule rule = rules.get(state.samplingKey());
+    if (rule == null) return false;
+    if (rule.threshold == 0L) return false;
+    if (rule.threshold == Long.MAX_VALUE) return true;
+
+    long traceIdHigh = state.traceIdHigh(), traceId = state.traceId();
+    if (traceId == 0L) return false; // no trace ID to agree on
+    long hash = mix(rule.seed ^ mix(traceIdHigh ^ mix(traceId)));
+    return (hash >>> 1) < rule.threshold; // compare the top 63 bits, as they are non-negative
+  }
+
+  /** Returns the top 63-bit hash value sampled at the given rate, with maximum meaning always. */
+  static long threshold(float rate) {
+    if (rate >= 1.0f) return Long.MAX_VALUE;
+    return (long) (rate * (double) Long.MAX_VALUE);
+  }
+
+  /** The finalizer of MurmurHash3, which spreads each input bit across the whole result. */
+  static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  static final class Rule {
+    final long seed, threshold;
+
+    Rule(long seed, long threshold) {
+      this.seed = seed;
+      this.threshold = threshold;
+    }
+  }
+}
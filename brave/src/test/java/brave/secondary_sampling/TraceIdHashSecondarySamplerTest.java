@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.http.HttpServerRequest;
+import brave.propagation.B3SinglePropagation;
+import brave.propagation.TraceContext.Extractor;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TraceIdHashSecondarySamplerTest {
+  TraceIdHashSecondarySampler sampler = TraceIdHashSecondarySampler.newBuilder(42L)
+      .putRate("gatewayplay", 0.1f)
+      .putRate("authcache", 0.1f)
+      .putRate("links", 1.0f)
+      .putRate("disabled", 0.0f)
+      .build();
+  Random random = new Random(1L);
+
+  @Test public void sampledAtRate() {
+    int sampled = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (isSampled(sampler, "gatewayplay", random.nextLong())) sampled++;
+    }
+    assertThat(sampled).isBetween(900, 1100);
+  }
+
+  @Test public void everyNodeAgrees() {
+    TraceIdHashSecondarySampler otherNode = TraceIdHashSecondarySampler.newBuilder(42L)
+        .putRate("gatewayplay", 0.1f)
+        .build();
+
+    for (int i = 0; i < 1000; i++) {
+      long traceId = random.nextLong();
+      assertThat(isSampled(otherNode, "gatewayplay", traceId))
+          .isEqualTo(isSampled(sampler, "gatewayplay", traceId));
+    }
+  }
+
+  @Test public void keysAndSaltsSelectDifferentTraces() {
+    TraceIdHashSecondarySampler otherSalt = TraceIdHashSecondarySampler.newBuilder(43L)
+        .putRate("gatewayplay", 0.1f)
+        .build();
+
+    int sameKey = 0, otherKey = 0;
+    for (int i = 0; i < 10000; i++) {
+      long traceId = random.nextLong();
+      boolean gatewayplay = isSampled(sampler, "gatewayplay", traceId);
+      if (gatewayplay && isSampled(sampler, "authcache", traceId)) otherKey++;
+      if (gatewayplay && isSampled(otherSalt, "gatewayplay", traceId)) sameKey++;
+    }
+    // independent choices overlap at 0.1 * 0.1 = 1%
+    assertThat(otherKey).isBetween(50, 150);
+    assertThat(sameKey).isBetween(50, 150);
+  }
+
+  @Test public void rateBounds() {
+    for (int i = 0; i < 1000; i++) {
+      long traceId = random.nextLong();
+      assertThat(isSampled(sampler, "links", traceId)).isTrue();
+      assertThat(isSampled(sampler, "disabled", traceId)).isFalse();
+      assertThat(isSampled(sampler, "unconfigured", traceId)).isFalse();
+    }
+  }
+
+  /** A random decision at the root would disagree with nodes that hash the trace ID. */
+  @Test public void noTraceId_onlySampledAtFullRate() {
+    assertThat(isSampled(sampler, "gatewayplay", 0L)).isFalse();
+    assertThat(isSampled(sampler, "links", 0L)).isTrue();
+  }
+
+  @Test public void invalidRate() {
+    assertThatThrownBy(() -> TraceIdHashSecondarySampler.newBuilder(42L).putRate("links", 1.1f))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> TraceIdHashSecondarySampler.newBuilder(42L).putRate("links", -0.1f))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void extractor_readsTraceIdFromRequest() {
+    SecondarySampling secondarySampling = SecondarySampling.newBuilder()
+        .propagationFactory(B3SinglePropagation.FACTORY)
+        .secondarySampler(sampler)
+        .build();
+    Extractor<HttpServerRequest> extractor = secondarySampling.extractor(HttpServerRequest::header);
+
+    int agreed = 0;
+    for (int i = 0; i < 100; i++) {
+      long traceId = random.nextLong() | 1L;
+      FakeHttpRequest.Server request =
+          new FakeHttpRequest.Server(new FakeHttpRequest.Client("/play"));
+      request.header("b3", String.format("%016x-%016x-0", traceId, traceId));
+      request.header("sampling", "gatewayplay");
+
+      SecondarySamplingDecisions decisions =
+          extractor.extract(request).context().findExtra(SecondarySamplingDecisions.class);
+      boolean sampled = decisions.get(SecondarySamplingState.create("gatewayplay"));
+      if (sampled == isSampled(sampler, "gatewayplay", traceId)) agreed++;
+    }
+    assertThat(agreed).isEqualTo(100);
+  }
+
+  static boolean isSampled(SecondarySampler sampler, String samplingKey, long traceId) {
+    MutableSecondarySamplingState state = MutableSecondarySamplingState.create(samplingKey);
+    state.traceId = traceId;
+    return sampler.isSampled(null, state);
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.sampler.Matcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This selects the secondary rules that apply to a request by its type, once per concrete request
+ * class. Guarding each rule with {@link brave.unmerged.MoreMatchers#ifInstanceOf} instead checks
+ * the type once per rule, on every request.
+ *
+ * <p>Each rule is registered with the type of request it accepts, such as {@link
+ * brave.http.HttpRequest} or {@link brave.rpc.RpcRequest}. The first time a request class is seen,
+ * the rules whose type it is assignable to are grouped by sampling key, in the order added. This
+ * is cached with a {@link ClassValue}, so later requests of that class only look up the key.
+ *
+ * <p>A key is sampled if any of its applicable rules sample it.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * sampler = TypeDispatchingSecondarySampler.newBuilder()
+ *   .putRule(HttpRequest.class, "gatewayplay",
+ *     active(dispatched(pathStartsWith("/play")), sampler))
+ *   .putRule(RpcRequest.class, "authcache", active(dispatched(methodEquals("Auth")), sampler))
+ *   .build();
+ * }</pre>
+ */
+public final class TypeDispatchingSecondarySampler implements SecondarySampler {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    final List<Rule> rules = new ArrayList<>();
+
+    /**
+     * Adds a rule for requests of the given type, replacing any prior rule with the same type and
+     * sampling key. The sampler is only called with requests assignable to the type.
+     */
+    public <P> Builder putRule(Class<P> requestType, String samplingKey,
+        SecondarySampler sampler) {
+      if (requestType == null) throw new NullPointerException("requestType == null");
+      if (samplingKey == null) throw new NullPointerException("samplingKey == null");
+      if (sampler == null) throw new NullPointerException("sampler == null");
+      Rule rule = new Rule(requestType, samplingKey, sampler);
+      for (int i = 0; i < rules.size(); i++) {
+        Rule existing = rules.get(i);
+        if (existing.requestType == requestType && existing.samplingKey.equals(samplingKey)) {
+          rules.set(i, rule);
+          return this;
+        }
+      }
+      rules.add(rule);
+      return this;
+    }
+
+    public Builder putAllRules(TypeDispatchingSecondarySampler sampler) {
+      if (sampler == null) throw new NullPointerException("sampler == null");
+      for (Rule rule : sampler.rules) putRule(rule.requestType, rule.samplingKey, rule.sampler);
+      return this;
+    }
+
+    public TypeDispatchingSecondarySampler build() {
+      return new TypeDispatchingSecondarySampler(this);
+    }
+  }
+
+  final List<Rule> rules;
+  final ClassValue<Map<String, SecondarySampler[]>> rulesByClass =
+      new ClassValue<Map<String, SecondarySampler[]>>() {
+        @Override protected Map<String, SecondarySampler[]> computeValue(Class<?> requestClass) {
+          return applicableRules(requestClass);
+        }
+      };
+
+  TypeDispatchingSecondarySampler(Builder builder) {
+    rules = Collections.unmodifiableList(new ArrayList<>(builder.rules));
+  }
+
+  @Override public boolean isSampled(Object request, MutableSecondarySamplingState state) {
+    if (request == null) return false;
+    SecondarySampler[] samplers = rulesByClass.get(request.getClass()).get(state.samplingKey());
+    if (samplers == null) return false;
+    for (SecondarySampler sampler : samplers) {
+      if (sampler.isSampled(request, state)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Widens a matcher of a rule's request type, so that it can be used with {@link
+   * SecondarySamplers#active(Matcher, brave.sampler.Sampler, int)}. This is only safe for rules
+   * added with the same type, as this class never passes them other requests.
+   */
+  @SuppressWarnings("unchecked")
+  static <P> Matcher<Object> dispatched(Matcher<P> matcher) {
+    return (Matcher<Object>) (Matcher<?>) matcher;
+  }
+
+  /** Groups the rules whose type accepts the request class by sampling key. */
+  Map<String, SecondarySampler[]> applicableRules(Class<?> requestClass) {
+    Map<String, List<SecondarySampler>> grouped = new LinkedHashMap<>();
+    for (Rule rule : rules) {
+      if (!rule.requestType.isAssignableFrom(requestClass)) continue;
+      grouped.computeIfAbsent(rule.samplingKey, k -> new ArrayList<>()).add(rule.sampler);
+    }
+    Map<String, SecondarySampler[]> result = new LinkedHashMap<>();
+    grouped.forEach((key, samplers) -> result.put(key, samplers.toArray(new SecondarySampler[0])));
+    return result;
+  }
+
+  static final class Rule {
+    final Class<?> requestType;
+    final String samplingKey;
+    final SecondarySampler sampler;
+
+    Rule(Class<?> requestType, String samplingKey, SecondarySampler sampler) {
+      this.requestType = requestType;
+      this.samplingKey = samplingKey;
+      this.sampler = sampler;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.secondary_sampling;
+
+import brave.http.HttpRequest;
+import brave.rpc.RpcRequest;
+import brave.sampler.Sampler;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static brave.http.HttpRequestMatchers.pathStartsWith;
+import static brave.rpc.RpcRequestMatchers.methodEquals;
+import static brave.secondary_sampling.SecondarySamplers.active;
+import static brave.secondary_sampling.SecondarySamplers.passive;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TypeDispatchingSecondarySamplerTest {
+  List<Object> called = new ArrayList<>();
+  TypeDispatchingSecondarySampler sampler = TypeDispatchingSecondarySampler.newBuilder()
+      .putRule(HttpRequest.class, "gatewayplay", recording(active()))
+      .putRule(RpcRequest.class, "authcache", recording(active()))
+      .putRule(Object.class, "links", recording(passive()))
+      .build();
+
+  FakeHttpRequest.Client http = new FakeHttpRequest.Client("/play");
+  FakeRpcRequest.Client rpc = new FakeRpcRequest.Client("/auth");
+
+  @Test public void dispatchesByType() {
+    assertThat(sampler.isSampled(http, state("gatewayplay"))).isTrue();
+    assertThat(sampler.isSampled(http, state("authcache"))).isFalse();
+    assertThat(sampler.isSampled(rpc, state("gatewayplay"))).isFalse();
+    assertThat(sampler.isSampled(rpc, state("authcache"))).isTrue();
+
+    // samplers are only called with requests of their type
+    assertThat(called).containsExactly(http, rpc);
+  }
+
+  @Test public void supertype() {
+    assertThat(sampler.isSampled(http, state("links"))).isFalse(); // passive
+    assertThat(sampler.isSampled("message", state("links"))).isFalse();
+
+    assertThat(called).containsExactly(http, "message");
+  }
+
+  @Test public void unconfiguredKey() {
+    assertThat(sampler.isSampled(http, state("unconfigured"))).isFalse();
+    assertThat(sampler.isSampled(null, state("gatewayplay"))).isFalse();
+    assertThat(called).isEmpty();
+  }
+
+  @Test public void rulesComputedOncePerClass() {
+    assertThat(sampler.rulesByClass.get(http.getClass()))
+        .containsOnlyKeys("gatewayplay", "links")
+        .isSameAs(sampler.rulesByClass.get(http.getClass()));
+    assertThat(sampler.rulesByClass.get(rpc.getClass()))
+        .containsOnlyKeys("authcache", "links");
+    assertThat(sampler.rulesByClass.get(String.class))
+        .containsOnlyKeys("links");
+  }
+
+  @Test public void anyApplicableRuleSamples() {
+    sampler = TypeDispatchingSecondarySampler.newBuilder()
+        .putRule(Object.class, "gatewayplay", recording(passive()))
+        .putRule(HttpRequest.class, "gatewayplay", recording(active()))
+        .build();
+
+    assertThat(sampler.isSampled(http, state("gatewayplay"))).isTrue();
+    assertThat(sampler.isSampled(rpc, state("gatewayplay"))).isFalse();
+    assertThat(called).containsExactly(http, http, rpc);
+  }
+
+  @Test public void putRule_replacesSameTypeAndKey() {
+    sampler = TypeDispatchingSecondarySampler.newBuilder()
+        .putRule(HttpRequest.class, "gatewayplay", recording(active()))
+        .putRule(HttpRequest.class, "gatewayplay", recording(passive()))
+        .build();
+
+    assertThat(sampler.rules).hasSize(1);
+    assertThat(sampler.isSampled(http, state("gatewayplay"))).isFalse();
+  }
+
+  @Test public void putAllRules() {
+    sampler = TypeDispatchingSecondarySampler.newBuilder()
+        .putAllRules(sampler)
+        .putRule(HttpRequest.class, "links", recording(active()))
+        .build();
+
+    assertThat(sampler.rules).hasSize(4);
+    assertThat(sampler.isSampled(http, state("gatewayplay"))).isTrue();
+    assertThat(sampler.isSampled(http, state("links"))).isTrue();
+  }
+
+  @Test public void samplerController_keepsRulesOfEachTypeForKey() {
+    SecondarySampler controller = new SamplerController.Default()
+        .putSecondaryHttpRule("gateway", "gatewayplay", pathStartsWith("/play"),
+            Sampler.ALWAYS_SAMPLE)
+        .putSecondaryRpcRule("gateway", "gatewayplay", methodEquals("GetToken"),
+            Sampler.ALWAYS_SAMPLE, 1)
+        .secondarySampler("gateway");
+
+    assertThat(controller.isSampled(http, state("gatewayplay"))).isTrue();
+    assertThat(controller.isSampled(new FakeHttpRequest.Client("/auth"), state("gatewayplay")))
+        .isFalse();
+    assertThat(controller.isSampled(new FakeRpcRequest.Client("GetToken"), state("gatewayplay")))
+        .isTrue();
+    assertThat(controller.isSampled(rpc, state("gatewayplay"))).isFalse();
+  }
+
+  SecondarySampler recording(SecondarySampler delegate) {
+    return (request, state) -> {
+      called.add(request);
+      return delegate.isSampled(request, state);
+    };
+  }
+
+  static MutableSecondarySamplingState state(String samplingKey) {
+    return MutableSecondarySamplingState.create(samplingKey);
+  }
+}
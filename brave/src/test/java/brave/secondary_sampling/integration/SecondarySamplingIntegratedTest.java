@@ -19,6 +19,7 @@ import brave.propagation.B3SinglePropagation;
 import brave.propagation.Propagation;
 import brave.sampler.RateLimitingSampler;
 import brave.sampler.Sampler;
+import brave.secondary_sampling.DependencyLinkAggregator;
 import brave.secondary_sampling.FakeHttpRequest;
 import brave.secondary_sampling.MutableSecondarySamplingState;
 import brave.secondary_sampling.SamplerController;
@@ -30,6 +31,7 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Stream;
 import org.junit.After;
@@ -56,11 +58,14 @@ public class SecondarySamplingIntegratedTest {
   TestSpanHandler authcache = new TestSpanHandler();
   TestSpanHandler license = new TestSpanHandler();
 
+  DependencyLinkAggregator dependencyLinks = new DependencyLinkAggregator();
+
   TraceForwarder traceForwarder = new TraceForwarder()
     .configureSamplingKey("b3", zipkin)
     .configureSamplingKey("gatewayplay", gatewayplay)
     .configureSamplingKey("authcache", authcache)
-    .configureSamplingKey("license100pct", license);
+    .configureSamplingKey("license100pct", license)
+    .aggregateDependencyLinks(dependencyLinks);
 
   Propagation.Factory b3 = B3SinglePropagation.FACTORY;
 
@@ -239,6 +244,7 @@ public class SecondarySamplingIntegratedTest {
       DependencyLink.newBuilder().parent("gateway").child("playback").callCount(1).build()
     );
     assertThat(getDependencies(authcache)).isEmpty();
+    assertStreamingDependenciesMatch("gatewayplay", gatewayplay);
 
     // Hit playback directly as opposed to via the gateway. This should not increase the trace count
     FakeHttpRequest.Client request = new FakeHttpRequest.Client("/play");
@@ -289,6 +295,7 @@ public class SecondarySamplingIntegratedTest {
     assertThat(getDependencies(authcache)).containsExactly(
       DependencyLink.newBuilder().parent("auth").child("cache").callCount(2).build()
     );
+    assertStreamingDependenciesMatch("authcache", authcache);
   }
 
   @Test public void authcache_b3_sampled() {
@@ -353,6 +360,9 @@ public class SecondarySamplingIntegratedTest {
     assertThat(getDependencies(authcache)).containsExactly( // doesn't double-count!
       DependencyLink.newBuilder().parent("auth").child("cache").callCount(2).build()
     );
+    assertStreamingDependenciesMatch("b3", zipkin);
+    assertStreamingDependenciesMatch("gatewayplay", gatewayplay);
+    assertStreamingDependenciesMatch("authcache", authcache);
   }
 
   @Test public void license_provision_and_sample() {
@@ -370,6 +380,7 @@ public class SecondarySamplingIntegratedTest {
       DependencyLink.newBuilder().parent("license").child("cache").callCount(1).build(),
       DependencyLink.newBuilder().parent("cache").child("licensedb").callCount(1).build()
     );
+    assertStreamingDependenciesMatch("license100pct", license);
   }
 
   @After public void close() {
@@ -380,6 +391,13 @@ public class SecondarySamplingIntegratedTest {
     return (int) spans.spans().stream().map(MutableSpan::traceId).distinct().count();
   }
 
+  /** Ensures links aggregated as spans were forwarded match those of linking stored spans. */
+  void assertStreamingDependenciesMatch(String samplingKey, TestSpanHandler spans) {
+    long endTs = System.currentTimeMillis(), lookback = TimeUnit.DAYS.toMillis(1);
+    assertThat(dependencyLinks.getDependencies(samplingKey, endTs, lookback))
+      .containsExactlyInAnyOrderElementsOf(getDependencies(spans));
+  }
+
   static List<DependencyLink> getDependencies(TestSpanHandler spans) {
     DependencyLinker linker = new DependencyLinker();
     List<Span> zipkinSpans = new ArrayList<>();